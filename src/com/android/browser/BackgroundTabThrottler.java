@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+import android.webkit.ValueCallback;
+import android.webkit.WebView;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Pauses the WebViews of background tabs once they have been in the
+ * background for a grace period, so that switching back and forth stays
+ * cheap but tabs the user has left stop competing for the CPU. Tabs that are
+ * still loading or playing media are left running and looked at again later.
+ *
+ * WebView timers are global, so they stay with {@link WebViewTimersControl};
+ * this only calls {@link WebView#onPause()} on individual tabs.
+ *
+ * The WebView does not report CPU use per view. The process CPU time is
+ * split evenly over the tabs that were running while it was spent, which
+ * gives a per tab estimate, reported by {@link #getStats()}.
+ *
+ * All methods must be called on the UI thread.
+ */
+class BackgroundTabThrottler {
+
+    private static final String LOGTAG = "BackgroundTabThrottler";
+    private static final boolean LOGV_ENABLED = Browser.LOGV_ENABLED;
+
+    // Time a tab keeps running after it went to the background
+    private static final long GRACE_PERIOD = 10 * 1000;
+    // Time before a tab that could not be paused is looked at again
+    private static final long RECHECK_INTERVAL = 30 * 1000;
+
+    // Evaluates to true if the page has audible media playing
+    private static final String MEDIA_PLAYING_JS = "(function() {"
+            + "var m = document.querySelectorAll('video, audio');"
+            + "for (var i = 0; i < m.length; i++) {"
+            + "  if (!m[i].paused && !m[i].muted && m[i].volume > 0) return true;"
+            + "}"
+            + "return false; })()";
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    // Tabs whose WebView is not paused
+    private final HashSet<Tab> mRunning = new HashSet<Tab>();
+    private final HashMap<Tab, Long> mCpuTime = new HashMap<Tab, Long>();
+    private long mLastCpuTime = Process.getElapsedCpuTime();
+
+    /**
+     * The tab became the current one. Its WebView is resumed by
+     * {@link Tab#putInForeground()}.
+     */
+    void onForeground(Tab t) {
+        mHandler.removeCallbacksAndMessages(t);
+        setRunning(t, true);
+    }
+
+    /**
+     * The tab was created in, or went to, the background. It is paused
+     * after the grace period.
+     */
+    void onBackground(Tab t) {
+        if (t.getWebView() == null) {
+            return;
+        }
+        setRunning(t, true);
+        scheduleCheck(t, GRACE_PERIOD);
+    }
+
+    /**
+     * Forget about a tab that was closed or lost its WebView.
+     */
+    void onRemoved(Tab t) {
+        mHandler.removeCallbacksAndMessages(t);
+        setRunning(t, false);
+        mCpuTime.remove(t);
+    }
+
+    void cancelAll() {
+        mHandler.removeCallbacksAndMessages(null);
+        mRunning.clear();
+        mCpuTime.clear();
+    }
+
+    /**
+     * @return the running and paused tabs, each with the estimated CPU time
+     *      it used since it was opened in this session
+     */
+    String getStats() {
+        sampleCpuTime();
+        StringBuilder running = new StringBuilder();
+        StringBuilder paused = new StringBuilder();
+        for (Map.Entry<Tab, Long> entry : mCpuTime.entrySet()) {
+            Tab t = entry.getKey();
+            StringBuilder sb = mRunning.contains(t) ? running : paused;
+            sb.append(sb.length() > 0 ? ", " : "").append(t.getId()).append(": ")
+                    .append(entry.getValue()).append("ms");
+        }
+        return "Background tabs: running [" + running + "], paused [" + paused + "] cpu";
+    }
+
+    private void scheduleCheck(final Tab t, long delay) {
+        mHandler.removeCallbacksAndMessages(t);
+        mHandler.postAtTime(new Runnable() {
+            @Override
+            public void run() {
+                check(t);
+            }
+        }, t, SystemClock.uptimeMillis() + delay);
+    }
+
+    private void check(final Tab t) {
+        final WebView web = t.getWebView();
+        if (t.inForeground() || web == null) {
+            return;
+        }
+        if (t.inPageLoad()) {
+            // Let the load finish before pausing
+            scheduleCheck(t, RECHECK_INTERVAL);
+            return;
+        }
+        web.evaluateJavascript(MEDIA_PLAYING_JS, new ValueCallback<String>() {
+            @Override
+            public void onReceiveValue(String playing) {
+                if (t.inForeground() || t.getWebView() != web) {
+                    return;
+                }
+                if ("true".equals(playing)) {
+                    scheduleCheck(t, RECHECK_INTERVAL);
+                    return;
+                }
+                t.pause();
+                setRunning(t, false);
+                if (LOGV_ENABLED) {
+                    Log.v(LOGTAG, "Paused background tab " + t.getId() + ", " + getStats());
+                }
+            }
+        });
+    }
+
+    private void setRunning(Tab t, boolean running) {
+        sampleCpuTime();
+        if (running) {
+            mRunning.add(t);
+        } else {
+            mRunning.remove(t);
+        }
+    }
+
+    private void sampleCpuTime() {
+        long now = Process.getElapsedCpuTime();
+        long delta = now - mLastCpuTime;
+        mLastCpuTime = now;
+        Iterator<Tab> it = mRunning.iterator();
+        while (it.hasNext()) {
+            // Evicted tabs no longer run anything
+            if (it.next().getWebView() == null) {
+                it.remove();
+            }
+        }
+        if (mRunning.isEmpty() || delta <= 0) {
+            return;
+        }
+        long share = delta / mRunning.size();
+        for (Tab t : mRunning) {
+            Long time = mCpuTime.get(t);
+            mCpuTime.put(t, (time != null ? time : 0) + share);
+        }
+    }
+}
@@ -251,11 +251,6 @@ public abstract class BaseUi implements UI {
         }
     }
 
-    @Override
-    public boolean needsRestoreAllTabs() {
-        return true;
-    }
-
     @Override
     public void addTab(Tab tab) {
     }
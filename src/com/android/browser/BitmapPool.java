@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser;
+
+import android.content.ComponentCallbacks2;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Color;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+/**
+ * Process wide pool of mutable bitmaps, so that thumbnails, screenshots and
+ * decoded list images reuse memory instead of allocating for every use.
+ *
+ * Bitmaps are bucketed by the power of two below their allocation size. A
+ * request for n bytes is served from the bucket n falls in, by a bitmap of
+ * at least n bytes, or from the one above it, and the bitmap is
+ * reconfigured to the requested size or decoded into with inBitmap. The least recently returned bitmaps are
+ * dropped once the pool holds more than its budget.
+ *
+ * A bitmap given back with {@link #put(Bitmap)} must no longer be used or
+ * displayed by the caller.
+ */
+public class BitmapPool {
+
+    private static final String LOGTAG = "BitmapPool";
+    private static final boolean LOGV_ENABLED = Browser.LOGV_ENABLED;
+
+    private static final long MAX_SIZE = 4 * 1024 * 1024;
+    private static final int BUCKETS = 32;
+
+    private static BitmapPool sInstance;
+
+    private final long mMaxSize;
+    @SuppressWarnings("unchecked")
+    private final ArrayDeque<Bitmap>[] mBuckets = new ArrayDeque[BUCKETS];
+    // Every pooled bitmap, least recently returned first
+    private final LinkedHashSet<Bitmap> mLru = new LinkedHashSet<Bitmap>();
+    private long mSize;
+
+    // Accounting
+    private int mHits;
+    private int mMisses;
+    private int mEvictions;
+    private long mReusedBytes;
+
+    public static synchronized BitmapPool getInstance() {
+        if (sInstance == null) {
+            sInstance = new BitmapPool(MAX_SIZE);
+        }
+        return sInstance;
+    }
+
+    BitmapPool(long maxSize) {
+        mMaxSize = maxSize;
+        for (int i = 0; i < BUCKETS; i++) {
+            mBuckets[i] = new ArrayDeque<Bitmap>();
+        }
+    }
+
+    /**
+     * @return a mutable bitmap of the given size and config, cleared to
+     *      transparent, taken from the pool if possible
+     */
+    public Bitmap get(int width, int height, Bitmap.Config config) {
+        long bytes = (long) width * height * bytesPerPixel(config);
+        Bitmap b = take(bytes);
+        if (b != null) {
+            try {
+                b.reconfigure(width, height, config);
+                b.eraseColor(Color.TRANSPARENT);
+                return b;
+            } catch (IllegalArgumentException e) {
+                // Not reusable after all, fall through and allocate
+                unhit(bytes);
+            }
+        }
+        return Bitmap.createBitmap(width, height, config);
+    }
+
+    /**
+     * Decode data, reusing a pooled bitmap through inBitmap when one is big
+     * enough. The result is mutable. opts may be null; its inBitmap and
+     * inMutable fields are overwritten.
+     */
+    public Bitmap decode(byte[] data, BitmapFactory.Options opts) {
+        if (opts == null) {
+            opts = new BitmapFactory.Options();
+        }
+        opts.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, 0, data.length, opts);
+        opts.inJustDecodeBounds = false;
+        if (opts.outWidth <= 0 || opts.outHeight <= 0) {
+            return null;
+        }
+        int sample = Math.max(1, opts.inSampleSize);
+        long width = (opts.outWidth + sample - 1) / sample;
+        long height = (opts.outHeight + sample - 1) / sample;
+        long bytes = width * height * bytesPerPixel(opts.inPreferredConfig);
+        Bitmap candidate = take(bytes);
+        opts.inMutable = true;
+        opts.inBitmap = candidate;
+        try {
+            return BitmapFactory.decodeByteArray(data, 0, data.length, opts);
+        } catch (IllegalArgumentException e) {
+            // The decoder refused the bitmap, decode into a new one
+            if (candidate != null) {
+                unhit(bytes);
+                put(candidate);
+            }
+            opts.inBitmap = null;
+            return BitmapFactory.decodeByteArray(data, 0, data.length, opts);
+        } finally {
+            opts.inBitmap = null;
+        }
+    }
+
+    /**
+     * Give a bitmap back to the pool. Immutable and recycled bitmaps are
+     * ignored.
+     */
+    public synchronized void put(Bitmap b) {
+        if (b == null || b.isRecycled() || !b.isMutable() || mLru.contains(b)) {
+            return;
+        }
+        int size = b.getAllocationByteCount();
+        if (size > mMaxSize) {
+            return;
+        }
+        mBuckets[floorLog2(size)].addLast(b);
+        mLru.add(b);
+        mSize += size;
+        trimToSize(mMaxSize);
+    }
+
+    /**
+     * Release pooled bitmaps in response to memory pressure, see
+     * {@link ComponentCallbacks2}.
+     */
+    public synchronized void trim(int level) {
+        if (LOGV_ENABLED) {
+            Log.v(LOGTAG, "trim(" + level + "): " + getStats());
+        }
+        if (level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE
+                || level == ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            trimToSize(mMaxSize / 2);
+        } else {
+            trimToSize(0);
+        }
+    }
+
+    public synchronized String getStats() {
+        int requests = mHits + mMisses;
+        return "Bitmap pool: " + mLru.size() + " bitmaps, " + (mSize / 1024) + "k of "
+                + (mMaxSize / 1024) + "k, " + mHits + "/" + requests + " hits, "
+                + (mReusedBytes / 1024) + "k reused, " + mEvictions + " evicted";
+    }
+
+    private synchronized Bitmap take(long bytes) {
+        if (bytes <= 0 || bytes > mMaxSize) {
+            mMisses++;
+            return null;
+        }
+        // Bitmaps of the requested size are in the same bucket, the next
+        // bucket up still wastes at most 3/4 of the bitmap
+        int bucket = floorLog2(bytes);
+        for (int i = bucket; i < Math.min(bucket + 2, BUCKETS); i++) {
+            Iterator<Bitmap> it = mBuckets[i].iterator();
+            while (it.hasNext()) {
+                Bitmap b = it.next();
+                if (b.getAllocationByteCount() >= bytes) {
+                    it.remove();
+                    mLru.remove(b);
+                    mSize -= b.getAllocationByteCount();
+                    mHits++;
+                    mReusedBytes += bytes;
+                    return b;
+                }
+            }
+        }
+        mMisses++;
+        return null;
+    }
+
+    // Undo the accounting of a take() whose bitmap turned out unusable
+    private synchronized void unhit(long bytes) {
+        mHits--;
+        mMisses++;
+        mReusedBytes -= bytes;
+    }
+
+    private void trimToSize(long size) {
+        Iterator<Bitmap> it = mLru.iterator();
+        while (mSize > size && it.hasNext()) {
+            Bitmap b = it.next();
+            it.remove();
+            int allocation = b.getAllocationByteCount();
+            mBuckets[floorLog2(allocation)].remove(b);
+            mSize -= allocation;
+            mEvictions++;
+        }
+    }
+
+    private static int bytesPerPixel(Bitmap.Config config) {
+        if (config == Bitmap.Config.ALPHA_8) {
+            return 1;
+        } else if (config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444) {
+            return 2;
+        }
+        // ARGB_8888, and what decodes default to
+        return 4;
+    }
+
+    private static int floorLog2(long n) {
+        return 63 - Long.numberOfLeadingZeros(n);
+    }
+}
@@ -41,6 +41,7 @@ public class Browser extends Application {
         CookieSyncManager.createInstance(this);
         BrowserSettings.initialize(getApplicationContext());
         Preloader.initialize(getApplicationContext());
+        OmniboxIndex.initialize(getApplicationContext());
     }
 
 }
@@ -114,6 +114,10 @@ public class BrowserBookmarksAdapter extends
         item.has_thumbnail = thumbnail != null;
         if (thumbnail != null
                 && (item.thumbnail == null || item.thumbnail.getBitmap() != thumbnail)) {
+            if (item.thumbnail != null) {
+                // The row is being rebound, its old image can be reused
+                BitmapPool.getInstance().put(item.thumbnail.getBitmap());
+            }
             item.thumbnail = new BitmapDrawable(mContext.getResources(), thumbnail);
         }
         item.is_folder = c.getInt(BookmarksLoader.COLUMN_INDEX_IS_FOLDER) != 0;
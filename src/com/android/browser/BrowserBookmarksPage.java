@@ -249,12 +249,15 @@ public class BrowserBookmarksPage extends Fragment implements View.OnCreateConte
         opts.inBitmap = inBitmap;
         opts.inSampleSize = 1;
         opts.inScaled = false;
-        try {
-            return BitmapFactory.decodeByteArray(data, 0, data.length, opts);
-        } catch (IllegalArgumentException ex) {
-            // Failed to re-use bitmap, create a new one
-            return BitmapFactory.decodeByteArray(data, 0, data.length);
+        if (inBitmap != null) {
+            try {
+                return BitmapFactory.decodeByteArray(data, 0, data.length, opts);
+            } catch (IllegalArgumentException ex) {
+                // Failed to re-use bitmap, take one from the pool instead
+                opts.inBitmap = null;
+            }
         }
+        return BitmapPool.getInstance().decode(data, opts);
     }
 
     private MenuItem.OnMenuItemClickListener mContextItemClickListener =
@@ -61,6 +61,8 @@ import android.widget.ListView;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import com.android.browser.provider.BrowserProvider2;
+
 /**
  * Activity for displaying the browser's history, divided into
  * days of viewing.
@@ -129,7 +131,8 @@ public class BrowserHistoryPage extends Fragment
                         .build();
                 String where = Combined.VISITS + " > 0";
                 CursorLoader loader = new CursorLoader(getActivity(), uri,
-                        HistoryQuery.PROJECTION, where, null, Combined.VISITS + " DESC");
+                        HistoryQuery.PROJECTION, where, null,
+                        BrowserProvider2.HISTORY_FRECENCY + " DESC");
                 return loader;
             }
 
@@ -15,22 +15,60 @@
  */
 package com.android.browser;
 
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.content.pm.PackageManager;
+import android.os.Looper;
+import android.os.MessageQueue;
 import android.util.AttributeSet;
+import android.util.Log;
 import android.view.View;
 import android.webkit.CookieManager;
 import android.webkit.WebView;
 
+import java.util.ArrayDeque;
+
 /**
  * Web view factory class for creating {@link BrowserWebView}'s.
+ *
+ * The factory can keep a few WebViews built ahead of time, normal and
+ * incognito, so that opening a tab doesn't pay for the construction on the
+ * spot. The pool is refilled one view at a time while the main thread is
+ * idle and emptied on memory pressure.
  */
 public class BrowserWebViewFactory implements WebViewFactory {
 
+    private static final String LOGTAG = "BrowserWebViewFactory";
+    private static final boolean LOGV_ENABLED = Browser.LOGV_ENABLED;
+
     private final Context mContext;
 
+    private final int mPoolSize;
+    private final int mIncognitoPoolSize;
+    private final ArrayDeque<WebView> mPool = new ArrayDeque<WebView>();
+    private final ArrayDeque<WebView> mIncognitoPool = new ArrayDeque<WebView>();
+    // Incognito views are only kept around once one has been asked for
+    private boolean mIncognitoUsed;
+    private boolean mRefillScheduled;
+
+    // Pool statistics
+    private int mHits;
+    private int mMisses;
+    private int mBuilds;
+    private long mBuildNanos;
+
     public BrowserWebViewFactory(Context context) {
+        this(context, 0, 0);
+    }
+
+    /**
+     * @param poolSize the number of normal WebViews to keep ready
+     * @param incognitoPoolSize the number of incognito WebViews to keep ready
+     */
+    public BrowserWebViewFactory(Context context, int poolSize, int incognitoPoolSize) {
         mContext = context;
+        mPoolSize = poolSize;
+        mIncognitoPoolSize = incognitoPoolSize;
     }
 
     protected WebView instantiateWebView(AttributeSet attrs, int defStyle,
@@ -45,12 +83,108 @@ public class BrowserWebViewFactory implements WebViewFactory {
 
     @Override
     public WebView createWebView(boolean privateBrowsing) {
+        if (privateBrowsing) {
+            mIncognitoUsed = true;
+        }
+        WebView w = (privateBrowsing ? mIncognitoPool : mPool).poll();
+        if (w != null) {
+            mHits++;
+        } else {
+            w = buildWebView(privateBrowsing);
+            mMisses++;
+        }
+        if (LOGV_ENABLED) {
+            Log.v(LOGTAG, "createWebView: " + getPoolStats());
+        }
+        scheduleRefill();
+        return w;
+    }
+
+    private WebView buildWebView(boolean privateBrowsing) {
+        long start = System.nanoTime();
         WebView w = instantiateWebView(null, android.R.attr.webViewStyle, privateBrowsing);
         initWebViewSettings(w);
         ((BrowserWebView)w).setPrivateBrowsing(privateBrowsing);
+        mBuildNanos += System.nanoTime() - start;
+        mBuilds++;
         return w;
     }
 
+    private void scheduleRefill() {
+        if (mRefillScheduled || !needsRefill()
+                || Looper.myLooper() != Looper.getMainLooper()) {
+            return;
+        }
+        mRefillScheduled = true;
+        Looper.myQueue().addIdleHandler(mRefill);
+    }
+
+    private boolean needsRefill() {
+        return mPool.size() < mPoolSize
+                || (mIncognitoUsed && mIncognitoPool.size() < mIncognitoPoolSize);
+    }
+
+    private final MessageQueue.IdleHandler mRefill = new MessageQueue.IdleHandler() {
+        @Override
+        public boolean queueIdle() {
+            // One view per idle pass, so no single stall is longer than a
+            // normal construction
+            if (mPool.size() < mPoolSize) {
+                mPool.add(buildWebView(false));
+            } else if (mIncognitoUsed && mIncognitoPool.size() < mIncognitoPoolSize) {
+                mIncognitoPool.add(buildWebView(true));
+            }
+            mRefillScheduled = needsRefill();
+            return mRefillScheduled;
+        }
+    };
+
+    /**
+     * Release pooled WebViews in response to memory pressure, see
+     * {@link ComponentCallbacks2}. The pool is refilled on the next
+     * createWebView once things are idle again.
+     */
+    public void trimPool(int level) {
+        drain(mIncognitoPool);
+        if (level > ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+            drain(mPool);
+        }
+        if (mRefillScheduled) {
+            Looper.myQueue().removeIdleHandler(mRefill);
+            mRefillScheduled = false;
+        }
+    }
+
+    /**
+     * Destroy all pooled WebViews. The pool holds on to the factory's
+     * context, so this must be called once it goes away.
+     */
+    public void destroyPool() {
+        trimPool(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+        if (mHits + mMisses > 0) {
+            Log.i(LOGTAG, getPoolStats());
+        }
+    }
+
+    /**
+     * @return the pool's hit rate and the construction time it saved
+     */
+    public String getPoolStats() {
+        int requests = mHits + mMisses;
+        long average = mBuilds > 0 ? mBuildNanos / mBuilds : 0;
+        return "WebView pool: " + mHits + "/" + requests + " hits ("
+                + (requests > 0 ? mHits * 100 / requests : 0) + "%), ~"
+                + (mHits * average / 1000000) + "ms saved, "
+                + (average / 1000000) + "ms per build";
+    }
+
+    private static void drain(ArrayDeque<WebView> pool) {
+        WebView w;
+        while ((w = pool.poll()) != null) {
+            w.destroy();
+        }
+    }
+
     protected void initWebViewSettings(WebView w) {
         w.setScrollbarFadingEnabled(true);
         w.setScrollBarStyle(View.SCROLLBARS_OUTSIDE_OVERLAY);
@@ -17,10 +17,12 @@
 package com.android.browser;
 
 import android.app.Activity;
+import android.app.ActivityManager;
 import android.app.Dialog;
 import android.app.DownloadManager;
 import android.app.ProgressDialog;
 import android.content.ClipboardManager;
+import android.content.ComponentCallbacks2;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
@@ -38,6 +40,8 @@ import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
 import android.net.Uri;
 import android.net.http.SslError;
 import android.os.AsyncTask;
@@ -97,6 +101,7 @@ import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
@@ -160,14 +165,11 @@ public class Controller
         "file"
     };
 
-    // A bitmap that is re-used in createScreenshot as scratch space
-    private static Bitmap sThumbnailBitmap;
-
     private Activity mActivity;
     private UI mUi;
     private TabControl mTabControl;
     private BrowserSettings mSettings;
-    private WebViewFactory mFactory;
+    private BrowserWebViewFactory mFactory;
 
     private WakeLock mWakeLock;
 
@@ -237,7 +239,18 @@ public class Controller
         mSettings.setController(this);
         mCrashRecoveryHandler = CrashRecoveryHandler.initialize(this);
         mCrashRecoveryHandler.preloadCrashState();
-        mFactory = new BrowserWebViewFactory(browser);
+        mTabControl.setOnTabEvictedListener(new TabControl.OnTabEvictedListener() {
+            @Override
+            public void onTabEvicted(Tab t, long freed, int level) {
+                Log.i(LOGTAG, "Evicted tab " + t.getId() + " at trim level " + level
+                        + ", ~" + (freed / 1024) + "k freed");
+                // The eviction saved its state, journal that
+                mCrashRecoveryHandler.backupState(t);
+            }
+        });
+        mFactory = new BrowserWebViewFactory(browser,
+                browser.getResources().getInteger(R.integer.webview_pool_size),
+                browser.getResources().getInteger(R.integer.incognito_webview_pool_size));
 
         mUrlHandler = new UrlHandler(this);
         mIntentHandler = new IntentHandler(mActivity, this);
@@ -247,6 +260,7 @@ public class Controller
         mBookmarksObserver = new ContentObserver(mHandler) {
             @Override
             public void onChange(boolean selfChange) {
+                DataController.getInstance(mActivity).invalidateBookmarks();
                 int size = mTabControl.getTabCount();
                 for (int i = 0; i < size; i++) {
                     mTabControl.getTab(i).updateBookmarkedStatus();
@@ -340,8 +354,9 @@ public class Controller
             }
             mUi.updateTabs(mTabControl.getTabs());
         } else {
-            mTabControl.restoreState(icicle, currentTabId, restoreIncognitoTabs,
-                    mUi.needsRestoreAllTabs());
+            // Every UI prefetches the current tab's neighbours, as many as
+            // R.integer.live_tab_neighbours allows
+            mTabControl.restoreState(icicle, currentTabId, restoreIncognitoTabs, true);
             List<Tab> tabs = mTabControl.getTabs();
             ArrayList<Long> restoredTabs = new ArrayList<Long>(tabs.size());
             for (Tab t : tabs) {
@@ -385,18 +400,23 @@ public class Controller
             if (mIds == null || mIds.size() == 0) {
                 cr.delete(Thumbnails.CONTENT_URI, null, null);
             } else {
-                int length = mIds.size();
-                StringBuilder where = new StringBuilder();
-                where.append(Thumbnails._ID);
-                where.append(" not in (");
-                for (int i = 0; i < length; i++) {
-                    where.append(mIds.get(i));
-                    if (i < (length - 1)) {
-                        where.append(",");
+                // Thumbnails live in files and can only be deleted by id
+                Cursor c = cr.query(Thumbnails.CONTENT_URI,
+                        new String[] { Thumbnails._ID }, null, null, null);
+                if (c == null) {
+                    return;
+                }
+                try {
+                    while (c.moveToNext()) {
+                        long id = c.getLong(0);
+                        if (!mIds.contains(id)) {
+                            cr.delete(ContentUris.withAppendedId(
+                                    Thumbnails.CONTENT_URI, id), null, null);
+                        }
                     }
+                } finally {
+                    c.close();
                 }
-                where.append(")");
-                cr.delete(Thumbnails.CONTENT_URI, where.toString(), null);
             }
         }
     }
@@ -453,6 +473,21 @@ public class Controller
         return mActivity.getResources().getInteger(R.integer.max_tabs);
     }
 
+    int getLiveTabNeighbours() {
+        return mActivity.getResources().getInteger(R.integer.live_tab_neighbours);
+    }
+
+    /**
+     * @return the estimated number of bytes the open tabs may use, a share
+     *      of the heap the system gives us
+     */
+    long getTabMemoryBudget() {
+        ActivityManager am = (ActivityManager) mActivity.getSystemService(
+                Context.ACTIVITY_SERVICE);
+        int percent = mActivity.getResources().getInteger(R.integer.tab_memory_budget_percent);
+        return (long) am.getMemoryClass() * 1024 * 1024 * percent / 100;
+    }
+
     @Override
     public TabControl getTabControl() {
         return mTabControl;
@@ -661,10 +696,6 @@ public class Controller
 
         WebView.disablePlatformNotifications();
         NfcHandler.unregister(mActivity);
-        if (sThumbnailBitmap != null) {
-            sThumbnailBitmap.recycle();
-            sThumbnailBitmap = null;
-        }
     }
 
     @Override
@@ -692,6 +723,19 @@ public class Controller
         return saveState;
     }
 
+    /**
+     * Like createSaveState, but only saves the state of dirtyTabs. The
+     * tab positions and current tab are always included.
+     */
+    /* package */ Bundle createSaveState(Collection<Tab> dirtyTabs) {
+        Bundle saveState = new Bundle();
+        mTabControl.saveState(saveState, dirtyTabs);
+        if (!saveState.isEmpty()) {
+            saveState.putSerializable("lastActiveDate", Calendar.getInstance());
+        }
+        return saveState;
+    }
+
     @Override
     public void onResume() {
         if (!mActivityPaused) {
@@ -770,6 +814,7 @@ public class Controller
         mActivity.getContentResolver().unregisterContentObserver(mBookmarksObserver);
         // Destroy all the tabs
         mTabControl.destroy();
+        mFactory.destroyPool();
         WebIconDatabase.getInstance().close();
         // Stop watching the default geolocation permissions
         mSystemAllowGeolocationOrigins.stop();
@@ -782,7 +827,16 @@ public class Controller
 
     @Override
     public void onLowMemory() {
-        mTabControl.freeMemory();
+        mFactory.trimPool(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+        BitmapPool.getInstance().trim(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+        mTabControl.trimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        mFactory.trimPool(level);
+        BitmapPool.getInstance().trim(level);
+        mTabControl.trimMemory(level);
     }
 
     @Override
@@ -865,7 +919,7 @@ public class Controller
 
     @Override
     public void onPageFinished(Tab tab) {
-        mCrashRecoveryHandler.backupState();
+        mCrashRecoveryHandler.backupState(tab);
         mUi.onTabDataChanged(tab);
 
         // Performance probe
@@ -988,23 +1042,12 @@ public class Controller
             return;
         }
         DataController.getInstance(mActivity).updateVisitedHistory(url);
-        mCrashRecoveryHandler.backupState();
+        mCrashRecoveryHandler.backupState(tab);
     }
 
     @Override
     public void getVisitedHistory(final ValueCallback<String[]> callback) {
-        AsyncTask<Void, Void, String[]> task =
-                new AsyncTask<Void, Void, String[]>() {
-            @Override
-            public String[] doInBackground(Void... unused) {
-                return Browser.getVisitedHistory(mActivity.getContentResolver());
-            }
-            @Override
-            public void onPostExecute(String[] result) {
-                callback.onReceiveValue(result);
-            }
-        };
-        task.execute();
+        DataController.getInstance(mActivity).getVisitedHistory(callback);
     }
 
     @Override
@@ -2029,16 +2072,10 @@ public class Controller
         final int filter_scale = 2;
         int scaledWidth = width * filter_scale;
         int scaledHeight = height * filter_scale;
-        if (sThumbnailBitmap == null || sThumbnailBitmap.getWidth() != scaledWidth
-                || sThumbnailBitmap.getHeight() != scaledHeight) {
-            if (sThumbnailBitmap != null) {
-                sThumbnailBitmap.recycle();
-                sThumbnailBitmap = null;
-            }
-            sThumbnailBitmap =
-                    Bitmap.createBitmap(scaledWidth, scaledHeight, Bitmap.Config.RGB_565);
-        }
-        Canvas canvas = new Canvas(sThumbnailBitmap);
+        // Scratch space, given back once it has been scaled down
+        Bitmap scratch = BitmapPool.getInstance().get(scaledWidth, scaledHeight,
+                Bitmap.Config.RGB_565);
+        Canvas canvas = new Canvas(scratch);
         int contentWidth = view.getContentWidth();
         float overviewScale = scaledWidth / (view.getScale() * contentWidth);
         if (view instanceof BrowserWebView) {
@@ -2053,9 +2090,13 @@ public class Controller
         } else {
             view.draw(canvas);
         }
-        Bitmap ret = Bitmap.createScaledBitmap(sThumbnailBitmap,
-                width, height, true);
+        Bitmap ret = BitmapPool.getInstance().get(width, height, Bitmap.Config.RGB_565);
+        canvas.setBitmap(ret);
+        canvas.setMatrix(null);
+        canvas.drawBitmap(scratch, null, new Rect(0, 0, width, height),
+                new Paint(Paint.FILTER_BITMAP_FLAG));
         canvas.setBitmap(null);
+        BitmapPool.getInstance().put(scratch);
         return ret;
     }
 
@@ -2118,6 +2159,7 @@ public class Controller
                     Log.w(LOGTAG, "Error when running updateScreenshot ", s);
                 } finally {
                     if (cursor != null) cursor.close();
+                    BitmapPool.getInstance().put(bm);
                 }
                 return null;
             }
@@ -2303,6 +2345,14 @@ public class Controller
     }
 
     private Tab showPreloadedTab(final UrlData urlData) {
+        return showPreloadedTab(urlData, null);
+    }
+
+    /**
+     * @param parent the tab the preloaded one is opened from, or null. The
+     *      preloaded tab is added right after it, as its child.
+     */
+    private Tab showPreloadedTab(final UrlData urlData, Tab parent) {
         if (!urlData.isPreloaded()) {
             return null;
         }
@@ -2324,12 +2374,39 @@ public class Controller
         }
         Tab t = tabControl.getTab();
         t.refreshIdAfterPreload();
-        mTabControl.addPreloadedTab(t);
+        if (parent != null && mTabControl.getTabPosition(parent) < 0) {
+            // Closed to make room
+            parent = null;
+        }
+        mTabControl.addPreloadedTab(t, parent);
+        if (parent != null) {
+            parent.addChildTab(t);
+        }
         addTab(t);
         setActiveTab(t);
         return t;
     }
 
+    /**
+     * Show the tab preloaded for the intent as a child of parent, right
+     * after it, so that parent keeps its history and Back from the preloaded
+     * tab returns to it. If the preload is gone the intent's url is loaded
+     * in parent.
+     * @return true if the preloaded tab is showing
+     */
+    @Override
+    public boolean openPreloadedTabFrom(Tab parent, Intent intent) {
+        UrlData urlData = IntentHandler.getUrlDataFromIntent(intent);
+        Tab tab = showPreloadedTab(urlData, parent);
+        if (tab == null) {
+            if (parent != null && !urlData.isEmpty()) {
+                loadUrlDataIn(parent, urlData);
+            }
+            return false;
+        }
+        return true;
+    }
+
     // open a non inconito tab with the given url data
     // and set as active tab
     public Tab openTab(UrlData urlData) {
@@ -25,19 +25,44 @@ import android.os.Message;
 import android.os.Parcel;
 import android.util.Log;
 
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
 
+/**
+ * Keeps the tabs' state on disk so it can be restored after a crash.
+ *
+ * The state is kept as a journal of records, each either the state of one
+ * tab or the tab layout (positions and current tab). Backups only save the
+ * tabs that changed and append them, the latest record for a tab wins on
+ * replay. Once the journal has grown well past the size of the state it
+ * describes it is rewritten in the background with just the latest records.
+ */
 public class CrashRecoveryHandler {
 
     private static final boolean LOGV_ENABLED = Browser.LOGV_ENABLED;
     private static final String LOGTAG = "BrowserCrashRecovery";
+    // Single snapshot written by older versions, only ever deleted now
     private static final String STATE_FILE = "browser_state.parcel";
-    private static final int BUFFER_SIZE = 4096;
+    private static final String JOURNAL_FILE = "browser_state.journal";
+    private static final int JOURNAL_MAGIC = 0x42524a31;
+    private static final int RECORD_LAYOUT = 1;
+    private static final int RECORD_TAB = 2;
+    // Compact once the journal is this many times the size of the live state
+    private static final int COMPACT_RATIO = 3;
+    private static final long COMPACT_MIN_SIZE = 256 * 1024;
     private static final long BACKUP_DELAY = 500; // 500ms between writes
     /* This is the duration for which we will prompt to restore
      * instead of automatically restoring. The first time the browser crashes,
@@ -60,6 +85,19 @@ public class CrashRecoveryHandler {
     private boolean mDidPreload = false;
     private Bundle mRecoveryState = null;
 
+    // UI thread: tabs changed since the last backup, and whether the next
+    // backup has to save every tab (nothing of this run journaled yet)
+    private HashSet<Tab> mDirtyTabs = new HashSet<Tab>();
+    private HashSet<Long> mJournaledTabs = new HashSet<Long>();
+    private boolean mNeedsFullBackup = true;
+
+    // Guarded by this: the latest record of the layout and of each tab,
+    // as written to the journal
+    private byte[] mLayoutRecord;
+    private long[] mPositions;
+    private LinkedHashMap<Long, byte[]> mTabRecords = new LinkedHashMap<Long, byte[]>();
+    private long mJournalSize;
+
     public static CrashRecoveryHandler initialize(Controller controller) {
         if (sInstance == null) {
             sInstance = new CrashRecoveryHandler(controller);
@@ -84,16 +122,13 @@ public class CrashRecoveryHandler {
                 switch (msg.what) {
                 case MSG_WRITE_STATE:
                     Bundle saveState = (Bundle) msg.obj;
-                    writeState(saveState);
+                    writeState(saveState, msg.arg1 != 0);
                     break;
                 case MSG_CLEAR_STATE:
                     if (LOGV_ENABLED) {
                         Log.v(LOGTAG, "Clearing crash recovery state");
                     }
-                    File state = new File(mContext.getCacheDir(), STATE_FILE);
-                    if (state.exists()) {
-                        state.delete();
-                    }
+                    clearJournal();
                     break;
                 case MSG_PRELOAD_STATE:
                     mRecoveryState = loadCrashState();
@@ -108,17 +143,48 @@ public class CrashRecoveryHandler {
         };
     }
 
+    /**
+     * Backs up the tab layout, for when tabs were added, removed or moved.
+     */
     public void backupState() {
         mForegroundHandler.postDelayed(mCreateState, BACKUP_DELAY);
     }
 
+    /**
+     * Backs up the state of tab, along with the tab layout.
+     */
+    public void backupState(Tab tab) {
+        mDirtyTabs.add(tab);
+        backupState();
+    }
+
     private Runnable mCreateState = new Runnable() {
 
         @Override
         public void run() {
             try {
-                final Bundle state = mController.createSaveState();
-                Message.obtain(mBackgroundHandler, MSG_WRITE_STATE, state)
+                final boolean full = mNeedsFullBackup;
+                final Bundle state;
+                if (full) {
+                    state = mController.createSaveState();
+                    mJournaledTabs.clear();
+                } else {
+                    // Tabs that were never saved count as changed
+                    for (Tab tab : mController.getTabControl().getTabs()) {
+                        if (!mJournaledTabs.contains(tab.getId())) {
+                            mDirtyTabs.add(tab);
+                        }
+                    }
+                    state = mController.createSaveState(mDirtyTabs);
+                }
+                mDirtyTabs.clear();
+                mNeedsFullBackup = false;
+                for (String key : state.keySet()) {
+                    if (state.get(key) instanceof Bundle) {
+                        mJournaledTabs.add(Long.parseLong(key));
+                    }
+                }
+                Message.obtain(mBackgroundHandler, MSG_WRITE_STATE, full ? 1 : 0, 0, state)
                         .sendToTarget();
                 // Remove any queued up saves
                 mForegroundHandler.removeCallbacks(mCreateState);
@@ -131,6 +197,9 @@ public class CrashRecoveryHandler {
     };
 
     public void clearState() {
+        mDirtyTabs.clear();
+        mJournaledTabs.clear();
+        mNeedsFullBackup = true;
         mBackgroundHandler.sendEmptyMessage(MSG_CLEAR_STATE);
         updateLastRecovered(0);
     }
@@ -154,23 +223,62 @@ public class CrashRecoveryHandler {
         }
         BrowserSettings browserSettings = BrowserSettings.getInstance();
         browserSettings.setLastRunPaused(false);
-        Bundle state = null;
         Parcel parcel = Parcel.obtain();
         FileInputStream fin = null;
         try {
-            File stateFile = new File(mContext.getCacheDir(), STATE_FILE);
-            fin = new FileInputStream(stateFile);
-            ByteArrayOutputStream dataStream = new ByteArrayOutputStream();
-            byte[] buffer = new byte[BUFFER_SIZE];
-            int read;
-            while ((read = fin.read(buffer)) > 0) {
-                dataStream.write(buffer, 0, read);
-            }
-            byte[] data = dataStream.toByteArray();
-            parcel.unmarshall(data, 0, data.length);
-            parcel.setDataPosition(0);
-            state = parcel.readBundle();
-            if (state != null && !state.isEmpty()) {
+            File journal = new File(mContext.getCacheDir(), JOURNAL_FILE);
+            fin = new FileInputStream(journal);
+            FileChannel channel = fin.getChannel();
+            MappedByteBuffer buffer = channel.map(
+                    FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.remaining() < 4 || buffer.getInt() != JOURNAL_MAGIC) {
+                return null;
+            }
+            Bundle state = null;
+            HashMap<Long, Bundle> tabStates = new HashMap<Long, Bundle>();
+            CRC32 crc = new CRC32();
+            int records = 0;
+            while (buffer.remaining() >= 8) {
+                int length = buffer.getInt();
+                int checksum = buffer.getInt();
+                if (length < 0 || length > buffer.remaining()) {
+                    // Torn write at the tail, everything before it is good
+                    break;
+                }
+                byte[] data = new byte[length];
+                buffer.get(data);
+                crc.reset();
+                crc.update(data, 0, length);
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+                parcel.unmarshall(data, 0, length);
+                parcel.setDataPosition(0);
+                if (parcel.readInt() == RECORD_TAB) {
+                    long id = parcel.readLong();
+                    tabStates.put(id, parcel.readBundle());
+                } else {
+                    state = parcel.readBundle();
+                }
+                records++;
+            }
+            if (LOGV_ENABLED) {
+                Log.v(LOGTAG, "Replayed " + records + " records from "
+                        + channel.size() + " bytes");
+            }
+            long[] positions = state != null ? state.getLongArray(TabControl.POSITIONS) : null;
+            if (positions == null) {
+                return null;
+            }
+            boolean hasTabs = false;
+            for (long id : positions) {
+                Bundle tabState = tabStates.get(id);
+                if (tabState != null) {
+                    state.putBundle(Long.toString(id), tabState);
+                    hasTabs = true;
+                }
+            }
+            if (hasTabs) {
                 return state;
             }
         } catch (FileNotFoundException e) {
@@ -220,30 +328,149 @@ public class CrashRecoveryHandler {
      * Errors are swallowed, but logged.
      * @param state The state to write out
      */
-    synchronized void writeState(Bundle state) {
+    void writeState(Bundle state) {
+        writeState(state, true);
+    }
+
+    /**
+     * Journals the state synchronously. Errors are swallowed, but logged.
+     * @param state The state to write out, as from Controller.createSaveState
+     * @param full Whether state has every tab, rather than just the changed ones
+     */
+    synchronized void writeState(Bundle state, boolean full) {
         if (LOGV_ENABLED) {
-            Log.v(LOGTAG, "Saving crash recovery state");
+            Log.v(LOGTAG, "Saving crash recovery state, full " + full);
         }
-        Parcel p = Parcel.obtain();
         try {
-            state.writeToParcel(p, 0);
-            File stateJournal = new File(mContext.getCacheDir(),
-                    STATE_FILE + ".journal");
-            FileOutputStream fout = new FileOutputStream(stateJournal);
-            fout.write(p.marshall());
-            fout.close();
-            File stateFile = new File(mContext.getCacheDir(),
-                    STATE_FILE);
-            if (!stateJournal.renameTo(stateFile)) {
-                // Failed to rename, try deleting the existing
-                // file and try again
-                stateFile.delete();
-                stateJournal.renameTo(stateFile);
+            if (full) {
+                mTabRecords.clear();
+            }
+            Bundle layout = new Bundle(state);
+            Parcel p = Parcel.obtain();
+            LinkedHashMap<Long, byte[]> records = new LinkedHashMap<Long, byte[]>();
+            try {
+                for (String key : state.keySet()) {
+                    Object value = state.get(key);
+                    if (!(value instanceof Bundle)) {
+                        continue;
+                    }
+                    layout.remove(key);
+                    long id = Long.parseLong(key);
+                    p.setDataSize(0);
+                    p.writeInt(RECORD_TAB);
+                    p.writeLong(id);
+                    p.writeBundle((Bundle) value);
+                    records.put(id, p.marshall());
+                }
+                p.setDataSize(0);
+                p.writeInt(RECORD_LAYOUT);
+                p.writeBundle(layout);
+                mLayoutRecord = p.marshall();
+            } finally {
+                p.recycle();
+            }
+            mPositions = layout.getLongArray(TabControl.POSITIONS);
+            mTabRecords.putAll(records);
+            dropClosedTabs();
+            if (full || mJournalSize == 0) {
+                compactJournal();
+                return;
+            }
+            appendToJournal(records);
+            long liveSize = getLiveSize();
+            if (mJournalSize > Math.max(COMPACT_MIN_SIZE, COMPACT_RATIO * liveSize)) {
+                compactJournal();
             }
         } catch (Throwable e) {
             Log.i(LOGTAG, "Failed to save persistent state", e);
+            // Start over with a full backup
+            mJournalSize = 0;
+        }
+    }
+
+    private void dropClosedTabs() {
+        HashSet<Long> open = new HashSet<Long>();
+        if (mPositions != null) {
+            for (long id : mPositions) {
+                open.add(id);
+            }
+        }
+        Iterator<Long> it = mTabRecords.keySet().iterator();
+        while (it.hasNext()) {
+            if (!open.contains(it.next())) {
+                it.remove();
+            }
+        }
+    }
+
+    private long getLiveSize() {
+        long size = 4 + 8 + mLayoutRecord.length;
+        for (byte[] record : mTabRecords.values()) {
+            size += 8 + record.length;
+        }
+        return size;
+    }
+
+    private void appendToJournal(Map<Long, byte[]> records) throws IOException {
+        File journal = new File(mContext.getCacheDir(), JOURNAL_FILE);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(journal, true)));
+        try {
+            for (byte[] record : records.values()) {
+                writeRecord(out, record);
+            }
+            // The layout goes last, so the tabs it refers to are there
+            writeRecord(out, mLayoutRecord);
+        } finally {
+            out.close();
+        }
+        mJournalSize += out.size();
+    }
+
+    /**
+     * Rewrites the journal with only the latest records.
+     */
+    private void compactJournal() throws IOException {
+        File journal = new File(mContext.getCacheDir(), JOURNAL_FILE);
+        File temp = new File(mContext.getCacheDir(), JOURNAL_FILE + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(temp)));
+        try {
+            out.writeInt(JOURNAL_MAGIC);
+            for (byte[] record : mTabRecords.values()) {
+                writeRecord(out, record);
+            }
+            writeRecord(out, mLayoutRecord);
         } finally {
-            p.recycle();
+            out.close();
+        }
+        if (!temp.renameTo(journal)) {
+            // Failed to rename, try deleting the existing
+            // file and try again
+            journal.delete();
+            temp.renameTo(journal);
+        }
+        if (LOGV_ENABLED) {
+            Log.v(LOGTAG, "Compacted journal from " + mJournalSize + " to "
+                    + out.size() + " bytes");
         }
+        mJournalSize = out.size();
+    }
+
+    private static void writeRecord(DataOutputStream out, byte[] record) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(record, 0, record.length);
+        out.writeInt(record.length);
+        out.writeInt((int) crc.getValue());
+        out.write(record);
+    }
+
+    private synchronized void clearJournal() {
+        mLayoutRecord = null;
+        mPositions = null;
+        mTabRecords.clear();
+        mJournalSize = 0;
+        new File(mContext.getCacheDir(), JOURNAL_FILE).delete();
+        new File(mContext.getCacheDir(), STATE_FILE).delete();
     }
-}
\ No newline at end of file
+}
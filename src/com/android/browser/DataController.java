@@ -17,28 +17,43 @@
 
 package com.android.browser;
 
+import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
+import android.database.ContentObserver;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteException;
 import android.graphics.Bitmap;
 import android.net.Uri;
 import android.os.Handler;
 import android.os.Message;
+import android.os.RemoteException;
+import android.os.SystemClock;
 import android.provider.BrowserContract;
 import android.provider.BrowserContract.History;
 import android.util.Log;
+import android.webkit.ValueCallback;
 
+import com.android.browser.provider.BrowserProvider2;
 import com.android.browser.provider.BrowserProvider2.Thumbnails;
 
-import java.nio.ByteBuffer;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 
 public class DataController {
     private static final String LOGTAG = "DataController";
+    private static final boolean LOGV_ENABLED = Browser.LOGV_ENABLED;
     // Message IDs
     private static final int HISTORY_UPDATE_VISITED = 100;
     private static final int HISTORY_UPDATE_TITLE = 101;
@@ -46,12 +61,33 @@ public class DataController {
     private static final int TAB_LOAD_THUMBNAIL = 201;
     private static final int TAB_SAVE_THUMBNAIL = 202;
     private static final int TAB_DELETE_THUMBNAIL = 203;
+    private static final int BOOKMARKS_RELOAD = 204;
+    private static final int VISITED_HISTORY_QUERY = 205;
+    private static final int HISTORY_CHANGED = 206;
+    // History operations between yield points, under the provider's limit of 500
+    private static final int HISTORY_YIELD_INTERVAL = 250;
     private static DataController sInstance;
 
     private Context mContext;
     private DataControllerHandler mDataHandler;
     private Handler mCbHandler; // To respond on the UI thread
-    private ByteBuffer mBuffer; // to capture thumbnails
+    // Thumbnails are stored compressed, see ThumbnailStore
+    private static final Bitmap.CompressFormat THUMBNAIL_FORMAT = Bitmap.CompressFormat.WEBP;
+    private static final int THUMBNAIL_QUALITY = 80;
+
+    private ByteArrayOutputStream mBuffer; // to capture thumbnails
+
+    // Every bookmarked url, so bookmark status can be answered without a
+    // provider query. Replaced wholesale on reload and null while stale.
+    private volatile Set<String> mBookmarkUrls;
+    // Bumped on every invalidation so a reload racing with a change
+    // doesn't publish what it read before the change
+    private volatile int mBookmarkGeneration;
+
+    // Every visited url as handed to WebView. Built from the background
+    // thread's visited urls, which grow with each history write, and
+    // dropped whenever they change; it shares their strings.
+    private volatile String[] mVisitedUrls;
 
     /* package */ static interface OnQueryUrlIsBookmark {
         void onQueryUrlIsBookmark(String url, boolean isBookmark);
@@ -61,6 +97,71 @@ public class DataController {
         Object[] args;
     }
 
+    // Pending history writes for one url, merged from several messages
+    private static class HistoryUpdate {
+        int visits;
+        String title;
+    }
+
+    /**
+     * Insert-only set of urls. Membership is kept as 64 bit hashes in an
+     * open addressed table, the strings only in the order they were added,
+     * which is all getVisitedHistory() needs. A hash collision just leaves
+     * a link uncoloured.
+     */
+    private static class UrlSet {
+        private long[] mHashes = new long[256];
+        private final ArrayList<String> mUrls = new ArrayList<String>();
+
+        boolean add(String url) {
+            if (mUrls.size() * 2 >= mHashes.length) {
+                long[] old = mHashes;
+                mHashes = new long[old.length * 2];
+                for (long hash : old) {
+                    if (hash != 0) {
+                        insert(hash);
+                    }
+                }
+            }
+            if (!insert(hash(url))) {
+                return false;
+            }
+            mUrls.add(url);
+            return true;
+        }
+
+        int size() {
+            return mUrls.size();
+        }
+
+        String[] toArray() {
+            return mUrls.toArray(new String[mUrls.size()]);
+        }
+
+        private boolean insert(long hash) {
+            int mask = mHashes.length - 1;
+            int i = (int) (hash ^ (hash >>> 32)) & mask;
+            while (mHashes[i] != 0) {
+                if (mHashes[i] == hash) {
+                    return false;
+                }
+                i = (i + 1) & mask;
+            }
+            mHashes[i] = hash;
+            return true;
+        }
+
+        // 64 bit FNV-1a, never 0 as that marks a free slot
+        private static long hash(String url) {
+            long hash = 0xcbf29ce484222325L;
+            for (int i = 0; i < url.length(); i++) {
+                hash ^= url.charAt(i);
+                hash *= 0x100000001b3L;
+            }
+            return hash != 0 ? hash : 1;
+        }
+    }
+
     private static class DCMessage {
         int what;
         Object obj;
@@ -94,9 +195,32 @@ public class DataController {
                         cb.onQueryUrlIsBookmark(url, isBookmark);
                         break;
                     }
+                    case VISITED_HISTORY_QUERY: {
+                        @SuppressWarnings("unchecked")
+                        ValueCallback<String[]> cb = (ValueCallback<String[]>) cc.replyTo;
+                        cb.onReceiveValue((String[]) cc.args[0]);
+                        break;
+                    }
                 }
             }
         };
+        mContext.getContentResolver().registerContentObserver(
+                BrowserContract.Bookmarks.CONTENT_URI, true, new ContentObserver(null) {
+            @Override
+            public void onChange(boolean selfChange) {
+                invalidateBookmarks();
+            }
+        });
+        // Our own visits are already in the visited urls, this is for
+        // deletions
+        mContext.getContentResolver().registerContentObserver(
+                History.CONTENT_URI, true, new ContentObserver(null) {
+            @Override
+            public void onChange(boolean selfChange) {
+                mDataHandler.sendMessage(HISTORY_CHANGED, null);
+            }
+        });
+        mDataHandler.sendMessage(BOOKMARKS_RELOAD, null);
     }
 
     public void updateVisitedHistory(String url) {
@@ -113,7 +237,50 @@ public class DataController {
             replyTo.onQueryUrlIsBookmark(url, false);
             return;
         }
-        mDataHandler.sendMessage(QUERY_URL_IS_BOOKMARK, url.trim(), replyTo);
+        url = url.trim();
+        Set<String> bookmarkUrls = mBookmarkUrls;
+        if (bookmarkUrls != null) {
+            replyTo.onQueryUrlIsBookmark(url, bookmarkUrls.contains(url));
+            return;
+        }
+        mDataHandler.sendMessage(QUERY_URL_IS_BOOKMARK, url, replyTo);
+    }
+
+    /**
+     * Drops the in-memory bookmark set; queries go through the background
+     * thread until it has been reloaded. Observers of the bookmarks uri
+     * must call this before re-querying, as the order in which observers
+     * are notified isn't defined.
+     */
+    void invalidateBookmarks() {
+        mBookmarkGeneration++;
+        mBookmarkUrls = null;
+        mDataHandler.sendMessage(BOOKMARKS_RELOAD, null);
+    }
+
+    /**
+     * Hands the visited urls to callback on the UI thread. Once loaded the
+     * same array is reused for every WebView until history changes.
+     */
+    public void getVisitedHistory(ValueCallback<String[]> callback) {
+        String[] visitedUrls = mVisitedUrls;
+        if (visitedUrls != null) {
+            callback.onReceiveValue(visitedUrls);
+            return;
+        }
+        mDataHandler.sendMessage(VISITED_HISTORY_QUERY, null, callback);
+    }
+
+    /**
+     * The deepest queue drained in one go and the cost of the history
+     * batches written so far.
+     */
+    String getStats() {
+        long flushes = mDataHandler.mFlushCount;
+        return "DataController: max queue " + mDataHandler.mMaxQueueDepth + ", "
+                + flushes + " history flushes, "
+                + (flushes == 0 ? 0 : mDataHandler.mTotalFlushMillis / flushes) + "ms avg, "
+                + mDataHandler.mMaxFlushMillis + "ms max";
     }
 
     public void loadThumbnail(Tab tab) {
@@ -133,6 +300,30 @@ public class DataController {
     class DataControllerHandler extends Thread {
         private BlockingQueue<DCMessage> mMessageQueue
                 = new LinkedBlockingQueue<DCMessage>();
+        private ArrayList<DCMessage> mDrained = new ArrayList<DCMessage>();
+        // History writes are coalesced per url and flushed as one batch
+        // once everything queued up so far has been handled.
+        private LinkedHashMap<String, HistoryUpdate> mHistoryUpdates
+                = new LinkedHashMap<String, HistoryUpdate>();
+        // Bookmark status queries are answered together, once per url
+        private LinkedHashMap<String, ArrayList<Object>> mBookmarkQueries
+                = new LinkedHashMap<String, ArrayList<Object>>();
+        private boolean mReloadBookmarks;
+        // Visited urls, null until first asked for, and the visited history
+        // rows they were loaded from
+        private UrlSet mVisited;
+        private final HistoryCounts mVisitedRows = new HistoryCounts(History.VISITS + " > 0");
+        private ArrayList<Object> mVisitedQueries = new ArrayList<Object>();
+        private boolean mHistoryChanged;
+        // The thumbnail last written per tab id, so a capture that came out
+        // the same isn't written again
+        private HashMap<Long, byte[]> mSavedThumbnails = new HashMap<Long, byte[]>();
+
+        // Stats, only written from this thread
+        volatile int mMaxQueueDepth;
+        volatile long mFlushCount;
+        volatile long mTotalFlushMillis;
+        volatile long mMaxFlushMillis;
 
         public DataControllerHandler() {
             super("DataControllerHandler");
@@ -143,10 +334,21 @@ public class DataController {
             setPriority(Thread.MIN_PRIORITY);
             while (true) {
                 try {
-                    handleMessage(mMessageQueue.take());
+                    mDrained.add(mMessageQueue.take());
                 } catch (InterruptedException ex) {
                     break;
                 }
+                mMessageQueue.drainTo(mDrained);
+                if (mDrained.size() > mMaxQueueDepth) {
+                    mMaxQueueDepth = mDrained.size();
+                }
+                for (DCMessage msg : mDrained) {
+                    handleMessage(msg);
+                }
+                mDrained.clear();
+                answerBookmarkQueries();
+                flushHistoryUpdates();
+                answerVisitedQueries();
             }
         }
 
@@ -164,22 +366,36 @@ public class DataController {
         private void handleMessage(DCMessage msg) {
             switch (msg.what) {
             case HISTORY_UPDATE_VISITED:
-                doUpdateVisitedHistory((String) msg.obj);
+                getHistoryUpdate((String) msg.obj).visits++;
                 break;
             case HISTORY_UPDATE_TITLE:
                 String[] args = (String[]) msg.obj;
-                doUpdateHistoryTitle(args[0], args[1]);
+                getHistoryUpdate(args[0]).title = args[1];
                 break;
             case QUERY_URL_IS_BOOKMARK:
-                // TODO: Look for identical messages in the queue and remove them
-                // TODO: Also, look for partial matches and merge them (such as
-                //       multiple callbacks querying the same URL)
-                doQueryBookmarkStatus((String) msg.obj, msg.replyTo);
+                ArrayList<Object> replyTos = mBookmarkQueries.get((String) msg.obj);
+                if (replyTos == null) {
+                    replyTos = new ArrayList<Object>();
+                    mBookmarkQueries.put((String) msg.obj, replyTos);
+                }
+                if (!replyTos.contains(msg.replyTo)) {
+                    replyTos.add(msg.replyTo);
+                }
+                break;
+            case BOOKMARKS_RELOAD:
+                mReloadBookmarks = true;
+                break;
+            case VISITED_HISTORY_QUERY:
+                mVisitedQueries.add(msg.replyTo);
+                break;
+            case HISTORY_CHANGED:
+                mHistoryChanged = true;
                 break;
             case TAB_LOAD_THUMBNAIL:
                 doLoadThumbnail((Tab) msg.obj);
                 break;
             case TAB_DELETE_THUMBNAIL:
+                mSavedThumbnails.remove((Long) msg.obj);
                 ContentResolver cr = mContext.getContentResolver();
                 try {
                     cr.delete(ContentUris.withAppendedId(
@@ -194,25 +410,26 @@ public class DataController {
         }
 
         private byte[] getCaptureBlob(Tab tab) {
-            synchronized (tab) {
-                Bitmap capture = tab.getScreenshot();
-                if (capture == null) {
-                    return null;
-                }
-                if (mBuffer == null || mBuffer.limit() < capture.getByteCount()) {
-                    mBuffer = ByteBuffer.allocate(capture.getByteCount());
-                }
-                capture.copyPixelsToBuffer(mBuffer);
-                mBuffer.rewind();
-                return mBuffer.array();
+            // A copy, so the tab isn't held up while we compress
+            Bitmap capture = tab.copyScreenshot();
+            if (capture == null) {
+                return null;
+            }
+            if (mBuffer == null) {
+                mBuffer = new ByteArrayOutputStream(capture.getByteCount() / 4);
             }
+            mBuffer.reset();
+            boolean compressed = capture.compress(THUMBNAIL_FORMAT, THUMBNAIL_QUALITY, mBuffer);
+            BitmapPool.getInstance().put(capture);
+            return compressed ? mBuffer.toByteArray() : null;
         }
 
         private void doSaveThumbnail(Tab tab) {
             byte[] blob = getCaptureBlob(tab);
-            if (blob == null) {
+            if (blob == null || Arrays.equals(blob, mSavedThumbnails.get(tab.getId()))) {
                 return;
             }
+            mSavedThumbnails.put(tab.getId(), blob);
             ContentResolver cr = mContext.getContentResolver();
             ContentValues values = new ContentValues();
             values.put(Thumbnails._ID, tab.getId());
@@ -240,63 +457,215 @@ public class DataController {
             }
         }
 
-        private void doUpdateVisitedHistory(String url) {
+        private HistoryUpdate getHistoryUpdate(String url) {
+            HistoryUpdate update = mHistoryUpdates.get(url);
+            if (update == null) {
+                update = new HistoryUpdate();
+                mHistoryUpdates.put(url, update);
+            }
+            return update;
+        }
+
+        /**
+         * Writes all the pending history updates in a single provider
+         * transaction, so a burst of visits costs one commit and one round
+         * of change notifications.
+         */
+        private void flushHistoryUpdates() {
+            if (mHistoryUpdates.isEmpty()) {
+                return;
+            }
+            long start = SystemClock.uptimeMillis();
             ContentResolver cr = mContext.getContentResolver();
-            Cursor c = null;
-            try {
-                c = cr.query(History.CONTENT_URI, new String[] { History._ID, History.VISITS },
-                        History.URL + "=?", new String[] { url }, null);
-                if (c.moveToFirst()) {
+            ArrayList<ContentProviderOperation> ops = new ArrayList<ContentProviderOperation>();
+            boolean inserting = false;
+            long now = System.currentTimeMillis();
+            for (Map.Entry<String, HistoryUpdate> entry : mHistoryUpdates.entrySet()) {
+                String url = entry.getKey();
+                HistoryUpdate update = entry.getValue();
+                if (update.visits > 0 && mVisited != null && mVisited.add(url)) {
+                    mVisitedUrls = null;
+                }
+                if (update.visits == 0) {
                     ContentValues values = new ContentValues();
-                    values.put(History.VISITS, c.getInt(1) + 1);
-                    values.put(History.DATE_LAST_VISITED, System.currentTimeMillis());
-                    cr.update(ContentUris.withAppendedId(History.CONTENT_URI, c.getLong(0)),
-                            values, null, null);
-                } else {
-                    android.provider.Browser.truncateHistory(cr);
+                    values.put(History.TITLE, update.title);
+                    addHistoryOp(ops, ContentProviderOperation.newUpdate(History.CONTENT_URI)
+                            .withSelection(History.URL + "=?", new String[] { url })
+                            .withValues(values));
+                    continue;
+                }
+                Cursor c = null;
+                try {
+                    c = cr.query(History.CONTENT_URI, new String[] { History._ID },
+                            History.URL + "=?", new String[] { url }, null);
                     ContentValues values = new ContentValues();
-                    values.put(History.URL, url);
-                    values.put(History.VISITS, 1);
-                    values.put(History.DATE_LAST_VISITED, System.currentTimeMillis());
-                    values.put(History.TITLE, url);
-                    values.put(History.DATE_CREATED, 0);
-                    values.put(History.USER_ENTERED, 0);
-                    cr.insert(History.CONTENT_URI, values);
+                    values.put(History.DATE_LAST_VISITED, now);
+                    if (c.moveToFirst()) {
+                        if (update.title != null) {
+                            values.put(History.TITLE, update.title);
+                        }
+                        // The provider adds the visits and their frecency to the row
+                        Uri uri = ContentUris.withAppendedId(History.CONTENT_URI, c.getLong(0))
+                                .buildUpon()
+                                .appendQueryParameter(BrowserProvider2.PARAM_ADD_VISITS,
+                                        Integer.toString(update.visits))
+                                .build();
+                        addHistoryOp(ops, ContentProviderOperation.newUpdate(uri)
+                                .withValues(values));
+                    } else {
+                        values.put(History.URL, url);
+                        values.put(History.VISITS, update.visits);
+                        values.put(BrowserProvider2.HISTORY_FRECENCY,
+                                update.visits * BrowserProvider2.FRECENCY_VISIT_WEIGHT);
+                        values.put(History.TITLE, update.title != null ? update.title : url);
+                        values.put(History.DATE_CREATED, 0);
+                        values.put(History.USER_ENTERED, 0);
+                        addHistoryOp(ops, ContentProviderOperation.newInsert(History.CONTENT_URI)
+                                .withValues(values));
+                        inserting = true;
+                    }
+                } finally {
+                    if (c != null) c.close();
+                }
+            }
+            mHistoryUpdates.clear();
+            // Rows deleted by others before this batch still reload the
+            // visited urls. The oldest rows truncateHistory() drops below are
+            // left in them, which only keeps those links coloured.
+            if (inserting && mVisited != null && mVisitedRows.check(cr)) {
+                mVisited = null;
+                mVisitedUrls = null;
+            }
+            try {
+                cr.applyBatch(BrowserContract.AUTHORITY, ops);
+            } catch (RemoteException e) {
+                Log.e(LOGTAG, "Failed to update history", e);
+            } catch (OperationApplicationException e) {
+                Log.e(LOGTAG, "Failed to update history", e);
+            }
+            // Only once the batch is in, it updates rows by the ids read above
+            if (inserting) {
+                android.provider.Browser.truncateHistory(cr);
+                if (mVisited != null) {
+                    mVisitedRows.check(cr);
                 }
+            }
+            long elapsed = SystemClock.uptimeMillis() - start;
+            mFlushCount++;
+            mTotalFlushMillis += elapsed;
+            if (elapsed > mMaxFlushMillis) {
+                mMaxFlushMillis = elapsed;
+            }
+            if (LOGV_ENABLED) {
+                Log.v(LOGTAG, "Flushed " + ops.size() + " history updates in " + elapsed + "ms, "
+                        + getStats());
+            }
+        }
+
+        // The provider rejects batches with 500 operations between yield points
+        private void addHistoryOp(ArrayList<ContentProviderOperation> ops,
+                ContentProviderOperation.Builder builder) {
+            if (!ops.isEmpty() && ops.size() % HISTORY_YIELD_INTERVAL == 0) {
+                builder.withYieldAllowed(true);
+            }
+            ops.add(builder.build());
+        }
+
+        private void answerBookmarkQueries() {
+            Set<String> bookmarkUrls = mBookmarkUrls;
+            if (mReloadBookmarks || (bookmarkUrls == null && !mBookmarkQueries.isEmpty())) {
+                mReloadBookmarks = false;
+                bookmarkUrls = loadBookmarkUrls();
+            }
+            for (Map.Entry<String, ArrayList<Object>> entry : mBookmarkQueries.entrySet()) {
+                String url = entry.getKey();
+                boolean isBookmark = bookmarkUrls != null && bookmarkUrls.contains(url);
+                for (Object replyTo : entry.getValue()) {
+                    CallbackContainer cc = new CallbackContainer();
+                    cc.replyTo = replyTo;
+                    cc.args = new Object[] { url, isBookmark };
+                    mCbHandler.obtainMessage(QUERY_URL_IS_BOOKMARK, cc).sendToTarget();
+                }
+            }
+            mBookmarkQueries.clear();
+        }
+
+        private void answerVisitedQueries() {
+            if (mHistoryChanged) {
+                mHistoryChanged = false;
+                // Our own visits are in the set already, only deletions reload
+                if (mVisited != null && mVisitedRows.check(mContext.getContentResolver())) {
+                    mVisited = null;
+                    mVisitedUrls = null;
+                }
+            }
+            if (mVisitedQueries.isEmpty()) {
+                return;
+            }
+            if (mVisited == null) {
+                loadVisitedUrls();
+            }
+            String[] visitedUrls = mVisitedUrls;
+            if (visitedUrls == null) {
+                visitedUrls = mVisited.toArray();
+                mVisitedUrls = visitedUrls;
+            }
+            for (Object replyTo : mVisitedQueries) {
+                CallbackContainer cc = new CallbackContainer();
+                cc.replyTo = replyTo;
+                cc.args = new Object[] { visitedUrls };
+                mCbHandler.obtainMessage(VISITED_HISTORY_QUERY, cc).sendToTarget();
+            }
+            mVisitedQueries.clear();
+        }
+
+        private void loadVisitedUrls() {
+            mVisited = new UrlSet();
+            ContentResolver cr = mContext.getContentResolver();
+            // Counted first, so rows deleted while loading reload again
+            mVisitedRows.check(cr);
+            Cursor cursor = null;
+            try {
+                cursor = cr.query(History.CONTENT_URI,
+                        new String[] { History.URL }, History.VISITS + " > 0", null, null);
+                while (cursor.moveToNext()) {
+                    mVisited.add(cursor.getString(0));
+                }
+            } catch (SQLiteException e) {
+                Log.e(LOGTAG, "Error loading visited history: " + e);
             } finally {
-                if (c != null) c.close();
+                if (cursor != null) cursor.close();
             }
+            if (LOGV_ENABLED) Log.v(LOGTAG, "Loaded " + mVisited.size() + " visited urls");
         }
 
-        private void doQueryBookmarkStatus(String url, Object replyTo) {
-            // Check to see if the site is bookmarked
+        /**
+         * Reads the bookmarked urls and publishes them unless they were
+         * invalidated meanwhile. Returns what was read, or null on error.
+         */
+        private Set<String> loadBookmarkUrls() {
+            int generation = mBookmarkGeneration;
+            Set<String> bookmarkUrls = new HashSet<String>();
             Cursor cursor = null;
-            boolean isBookmark = false;
             try {
                 cursor = mContext.getContentResolver().query(
                         BookmarkUtils.getBookmarksUri(mContext),
                         new String[] { BrowserContract.Bookmarks.URL },
-                        BrowserContract.Bookmarks.URL + " == ?",
-                        new String[] { url },
-                        null);
-                isBookmark = cursor.moveToFirst();
+                        BrowserContract.Bookmarks.URL + " IS NOT NULL",
+                        null, null);
+                while (cursor.moveToNext()) {
+                    bookmarkUrls.add(cursor.getString(0));
+                }
             } catch (SQLiteException e) {
-                Log.e(LOGTAG, "Error checking for bookmark: " + e);
+                Log.e(LOGTAG, "Error loading bookmarks: " + e);
+                return null;
             } finally {
                 if (cursor != null) cursor.close();
             }
-            CallbackContainer cc = new CallbackContainer();
-            cc.replyTo = replyTo;
-            cc.args = new Object[] { url, isBookmark };
-            mCbHandler.obtainMessage(QUERY_URL_IS_BOOKMARK, cc).sendToTarget();
-        }
-
-        private void doUpdateHistoryTitle(String url, String title) {
-            ContentResolver cr = mContext.getContentResolver();
-            ContentValues values = new ContentValues();
-            values.put(History.TITLE, title);
-            cr.update(History.CONTENT_URI, values, History.URL + "=?",
-                    new String[] { url });
+            if (generation == mBookmarkGeneration) {
+                mBookmarkUrls = bookmarkUrls;
+            }
+            return bookmarkUrls;
         }
     }
 }
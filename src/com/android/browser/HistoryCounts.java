@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.provider.BrowserContract.History;
+import android.util.Log;
+
+/**
+ * Tells whether history rows were deleted since the last check, from the
+ * number of rows and the highest _id, read with a single aggregate query
+ * instead of a cursor over the rows. History ids are never reused, so rows
+ * were deleted if fewer are left with ids up to the highest one seen last.
+ *
+ * Not thread safe, each user keeps its own and checks it on one thread.
+ */
+class HistoryCounts {
+
+    private static final String LOGTAG = "HistoryCounts";
+
+    private final String mSelection;
+    // -1 before the first check or after a failed one
+    private long mRows = -1;
+    private long mMaxId;
+
+    /**
+     * @param selection the history rows to count, null for all
+     */
+    HistoryCounts(String selection) {
+        mSelection = selection;
+    }
+
+    /**
+     * Count the rows again.
+     *
+     * @return true if rows counted by the last check are gone, or if it
+     *      can't tell
+     */
+    boolean check(ContentResolver cr) {
+        String id = "history." + History._ID;
+        Cursor c = null;
+        try {
+            c = cr.query(History.CONTENT_URI, new String[] {
+                    "COUNT(*) AS row_count",
+                    "MAX(" + id + ") AS max_id",
+                    "TOTAL(" + id + " > " + mMaxId + ") AS added_count" },
+                    mSelection, null, null);
+            if (c == null || !c.moveToFirst()) {
+                mRows = -1;
+                return true;
+            }
+            long rows = c.getLong(0);
+            boolean deleted = mRows < 0 || rows - c.getLong(2) < mRows;
+            mRows = rows;
+            if (!c.isNull(1)) {
+                mMaxId = c.getLong(1);
+            }
+            return deleted;
+        } catch (RuntimeException e) {
+            Log.w(LOGTAG, "Failed to count history", e);
+            mRows = -1;
+            return true;
+        } finally {
+            if (c != null) c.close();
+        }
+    }
+}
@@ -56,4 +56,16 @@ public class LogTag {
         EventLog.writeEvent(EventLogTags.BROWSER_TIMEONPAGE, url + "|"
             + duration);
     }
+
+    /**
+     * log the load time saved by opening a prerendered page
+     *
+     * @param url the url of the prerendered page.
+     * @param saved how long the page had been loading when it was opened,
+     *      or its whole load time if it had finished.
+     */
+    public static void logPrerenderUsed(String url, long saved) {
+        EventLog.writeEvent(EventLogTags.BROWSER_PRERENDER_USED, url + "|"
+            + saved);
+    }
 }
@@ -44,7 +44,6 @@ import com.android.browser.TabControl.OnThumbnailUpdatedListener;
 import com.android.browser.UI.ComboViews;
 
 import java.util.HashMap;
-import java.util.List;
 
 public class NavScreen extends RelativeLayout
         implements OnClickListener, OnMenuItemClickListener, OnThumbnailUpdatedListener {
@@ -71,7 +70,7 @@ public class NavScreen extends RelativeLayout
     NavTabScroller mScroller;
     TabAdapter mAdapter;
     int mOrientation;
-    HashMap<Tab, View> mTabViews;
+    HashMap<Tab, NavTabView> mTabViews;
 
     public NavScreen(Activity activity, UiController ctl, PhoneUi ui) {
         super(activity);
@@ -132,7 +131,7 @@ public class NavScreen extends RelativeLayout
         mMore.setOnClickListener(this);
         mScroller = (NavTabScroller) findViewById(R.id.scroller);
         TabControl tc = mUiController.getTabControl();
-        mTabViews = new HashMap<Tab, View>(tc.getTabCount());
+        mTabViews = new HashMap<Tab, NavTabView>(tc.getTabCount());
         mAdapter = new TabAdapter(mContext, tc);
         mScroller.setOrientation(mOrientation == Configuration.ORIENTATION_LANDSCAPE
                 ? LinearLayout.HORIZONTAL : LinearLayout.VERTICAL);
@@ -232,12 +231,7 @@ public class NavScreen extends RelativeLayout
         if (v != null && v instanceof NavTabView) {
             long tabId = ((NavTabView)v).getWebViewId();
             if (tabId != -1) {
-                List<Tab> tabs = mUiController.getTabs();
-                for (int i = 0; i < tabs.size(); i++) {
-                    if (tabs.get(i).getId() == tabId) {
-                        return tabs.get(i);
-                    }
-                }
+                return mUiController.getTabControl().getTabFromId(tabId);
             }
         }
         return null;
@@ -287,10 +281,19 @@ public class NavScreen extends RelativeLayout
 
         @Override
         public View getView(final int position, View convertView, ViewGroup parent) {
-            final NavTabView tabview = new NavTabView(mActivity);
+            final NavTabView tabview;
+            if (convertView instanceof NavTabView) {
+                tabview = (NavTabView) convertView;
+                Tab previous = tabview.getTab();
+                if (previous != null && mTabViews.get(previous) == tabview) {
+                    mTabViews.remove(previous);
+                }
+            } else {
+                tabview = new NavTabView(mActivity);
+            }
             final Tab tab = getItem(position);
             tabview.setWebView(tab);
-            mTabViews.put(tab, tabview.mImage);
+            mTabViews.put(tab, tabview);
             tabview.setOnClickListener(new OnClickListener() {
                 @Override
                 public void onClick(View v) {
@@ -312,9 +315,9 @@ public class NavScreen extends RelativeLayout
 
     @Override
     public void onThumbnailUpdated(Tab t) {
-        View v = mTabViews.get(t);
+        NavTabView v = mTabViews.get(t);
         if (v != null) {
-            v.invalidate();
+            v.mImage.invalidate();
         }
     }
 
@@ -34,8 +34,15 @@ import android.widget.LinearLayout;
 
 import com.android.browser.view.ScrollerView;
 
+import java.util.ArrayDeque;
+
 /**
  * custom view for displaying tabs in the nav screen
+ *
+ * Every tab has a slot in the content layout, but only the slots in and
+ * near the viewport hold views from the adapter. The rest hold empty
+ * placeholders of the same size, and adapter views that scroll out of the
+ * window are handed back to the adapter as convert views.
  */
 public class NavTabScroller extends ScrollerView {
 
@@ -60,6 +67,15 @@ public class NavTabScroller extends ScrollerView {
 
     // after drag animation velocity in pixels/sec
     private static final float MIN_VELOCITY = 1500;
+    // Number of slots either side of the viewport that are kept bound
+    private static final int WINDOW_MARGIN = 2;
+
+    private final ArrayDeque<View> mScrapViews = new ArrayDeque<View>();
+    private final ArrayDeque<View> mScrapPlaceholders = new ArrayDeque<View>();
+    // Size of a tab view, measured from the first one the adapter returns
+    private int mItemWidth;
+    private int mItemHeight;
+    private boolean mBindPending;
     private AnimatorSet mAnimator;
 
     private float mFlingVelocity;
@@ -109,7 +125,9 @@ public class NavTabScroller extends ScrollerView {
     }
 
     protected NavTabView getTabView(int pos) {
-        return (NavTabView) mContentView.getChildAt(pos);
+        bindPosition(pos);
+        View v = mContentView.getChildAt(pos);
+        return v instanceof Placeholder ? null : (NavTabView) v;
     }
 
     protected boolean isHorizontal() {
@@ -195,24 +213,170 @@ public class NavTabScroller extends ScrollerView {
         if (mGapAnimator != null) {
             mGapAnimator.cancel();
         }
-        mContentView.removeAllViews();
-        for (int i = 0; i < mAdapter.getCount(); i++) {
-            View v = mAdapter.getView(i, null, mContentView);
-            LinearLayout.LayoutParams lp = new LinearLayout.LayoutParams(
-                    LayoutParams.WRAP_CONTENT, LayoutParams.WRAP_CONTENT);
-            lp.gravity = (mHorizontal ? Gravity.CENTER_VERTICAL : Gravity.CENTER_HORIZONTAL);
-            mContentView.addView(v, lp);
+        recycleAll();
+        final int count = mAdapter.getCount();
+        measureItemSize();
+        for (int i = 0; i < count; i++) {
+            View v = obtainPlaceholder();
+            mContentView.addView(v, newItemLayoutParams());
             if (mGapPosition > INVALID_POSITION){
                 adjustViewGap(v, i);
             }
         }
         if (newscroll > INVALID_POSITION) {
-            newscroll = Math.min(mAdapter.getCount() - 1, newscroll);
+            newscroll = Math.min(count - 1, newscroll);
             mNeedsScroll = true;
             mScrollPosition = newscroll;
+            // Bind around the target now, the rest follows the layout
+            for (int i = newscroll - WINDOW_MARGIN; i <= newscroll + WINDOW_MARGIN; i++) {
+                bindPosition(i);
+            }
             requestLayout();
         } else {
             setScrollValue(scroll);
+            bindVisible();
+        }
+    }
+
+    private LinearLayout.LayoutParams newItemLayoutParams() {
+        LinearLayout.LayoutParams lp = new LinearLayout.LayoutParams(
+                mItemWidth > 0 ? mItemWidth : LayoutParams.WRAP_CONTENT,
+                mItemHeight > 0 ? mItemHeight : LayoutParams.WRAP_CONTENT);
+        lp.gravity = (mHorizontal ? Gravity.CENTER_VERTICAL : Gravity.CENTER_HORIZONTAL);
+        return lp;
+    }
+
+    private void measureItemSize() {
+        if (mItemWidth > 0 || mAdapter.getCount() == 0) {
+            return;
+        }
+        View v = mAdapter.getView(0, mScrapViews.poll(), mContentView);
+        v.setLayoutParams(new LinearLayout.LayoutParams(
+                LayoutParams.WRAP_CONTENT, LayoutParams.WRAP_CONTENT));
+        int unspecified = MeasureSpec.makeMeasureSpec(0, MeasureSpec.UNSPECIFIED);
+        v.measure(unspecified, unspecified);
+        mItemWidth = v.getMeasuredWidth();
+        mItemHeight = v.getMeasuredHeight();
+        mScrapViews.add(v);
+    }
+
+    private View obtainPlaceholder() {
+        View v = mScrapPlaceholders.poll();
+        if (v == null) {
+            v = new Placeholder(getContext());
+        } else {
+            resetView(v);
+        }
+        return v;
+    }
+
+    /**
+     * Move every child to the scrap lists and empty the content view.
+     */
+    private void recycleAll() {
+        for (int i = 0; i < mContentView.getChildCount(); i++) {
+            View v = mContentView.getChildAt(i);
+            if (v instanceof Placeholder) {
+                mScrapPlaceholders.add(v);
+            } else {
+                resetView(v);
+                mScrapViews.add(v);
+            }
+        }
+        mContentView.removeAllViews();
+    }
+
+    /**
+     * Bind the slots within the viewport plus WINDOW_MARGIN either side and
+     * unbind the others.
+     */
+    private void bindVisible() {
+        mBindPending = false;
+        final int count = mContentView.getChildCount();
+        final int extent = mHorizontal ? mItemWidth : mItemHeight;
+        final int viewport = mHorizontal ? getWidth() : getHeight();
+        if (count == 0 || extent <= 0 || viewport <= 0) {
+            return;
+        }
+        int start = getScrollValue() - (mHorizontal
+                ? mContentView.getPaddingLeft() : mContentView.getPaddingTop());
+        int first = (int) Math.floor(start / (float) extent) - WINDOW_MARGIN;
+        int last = (start + viewport) / extent + WINDOW_MARGIN;
+        for (int i = 0; i < count; i++) {
+            if (i >= first && i <= last) {
+                bindPosition(i);
+            } else if (mAnimator == null) {
+                // Leave views alone while a swipe animation may hold them
+                unbindPosition(i);
+            }
+        }
+    }
+
+    private final Runnable mBindVisible = new Runnable() {
+        @Override
+        public void run() {
+            bindVisible();
+        }
+    };
+
+    private void bindPosition(int pos) {
+        View old = mContentView.getChildAt(pos);
+        if (!(old instanceof Placeholder)) {
+            return;
+        }
+        View v = mAdapter.getView(pos, mScrapViews.poll(), mContentView);
+        replaceChild(pos, old, v);
+        mScrapPlaceholders.add(old);
+    }
+
+    private void unbindPosition(int pos) {
+        View old = mContentView.getChildAt(pos);
+        if (old == null || old instanceof Placeholder) {
+            return;
+        }
+        replaceChild(pos, old, obtainPlaceholder());
+        resetView(old);
+        mScrapViews.add(old);
+    }
+
+    private void replaceChild(int pos, View old, View v) {
+        final boolean laidOut = old.getWidth() > 0 && !mContentView.isLayoutRequested();
+        final int l = old.getLeft();
+        final int t = old.getTop();
+        final int r = old.getRight();
+        final int b = old.getBottom();
+        mContentView.removeViewInLayout(old);
+        mContentView.addChildInLayout(v, pos, newItemLayoutParams());
+        if (laidOut) {
+            // Same size slot, so lay the new child out in place instead of
+            // going through a full layout pass
+            v.measure(MeasureSpec.makeMeasureSpec(r - l, MeasureSpec.EXACTLY),
+                    MeasureSpec.makeMeasureSpec(b - t, MeasureSpec.EXACTLY));
+            v.layout(l, t, r, b);
+            mContentView.invalidate();
+        } else {
+            mContentView.requestLayout();
+        }
+        if (mGapPosition > INVALID_POSITION) {
+            adjustViewGap(v, pos);
+        }
+    }
+
+    private static void resetView(View v) {
+        v.setAlpha(1f);
+        v.setTranslationX(0);
+        v.setTranslationY(0);
+        v.setRotationX(0);
+        v.setRotationY(0);
+    }
+
+    @Override
+    protected void onScrollChanged(int l, int t, int oldl, int oldt) {
+        super.onScrollChanged(l, t, oldl, oldt);
+        // This can come from inside draw, so rebind before the next frame
+        if (!mBindPending) {
+            mBindPending = true;
+            postOnAnimation(mBindVisible);
         }
     }
 
@@ -228,6 +392,7 @@ public class NavTabScroller extends ScrollerView {
             snapToSelected(mScrollPosition, false);
             mNeedsScroll = false;
         }
+        bindVisible();
         if (mLayoutListener != null) {
             mLayoutListener.onLayout(l, t, r, b);
             mLayoutListener = null;
@@ -235,7 +400,7 @@ public class NavTabScroller extends ScrollerView {
     }
 
     void clearTabs() {
-        mContentView.removeAllViews();
+        recycleAll();
     }
 
     void snapToSelected(int pos, boolean smooth) {
@@ -418,7 +583,7 @@ public class NavTabScroller extends ScrollerView {
         final int count = mContentView.getChildCount();
         for (int i = count - 1; i >= 0; i--) {
             View child = mContentView.getChildAt(i);
-            if (child.getVisibility() == View.VISIBLE) {
+            if (child.getVisibility() == View.VISIBLE && !(child instanceof Placeholder)) {
                 if ((x >= child.getLeft()) && (x < child.getRight())
                         && (y >= child.getTop()) && (y < child.getBottom())) {
                     return child;
@@ -537,6 +702,17 @@ public class NavTabScroller extends ScrollerView {
         }
     }
 
+    /**
+     * Stands in for a tab view outside the bound window.
+     */
+    static class Placeholder extends View {
+
+        public Placeholder(Context context) {
+            super(context);
+        }
+
+    }
+
     static class ContentLayout extends LinearLayout {
 
         NavTabScroller mScroller;
@@ -546,6 +722,10 @@ public class NavTabScroller extends ScrollerView {
             mScroller = scroller;
         }
 
+        void addChildInLayout(View child, int index, ViewGroup.LayoutParams params) {
+            addViewInLayout(child, index, params, true);
+        }
+
         @Override
         protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
             super.onMeasure(widthMeasureSpec, heightMeasureSpec);
@@ -111,10 +111,15 @@ public class NavTabView extends LinearLayout {
         Bitmap image = tab.getScreenshot();
         if (image != null) {
             mImage.setImageBitmap(image);
-            if (tab != null) {
-                mImage.setContentDescription(tab.getTitle());
-            }
+        } else {
+            // The view may be recycled from another tab
+            mImage.setImageResource(R.drawable.ic_stop);
         }
+        mImage.setContentDescription(tab.getTitle());
+    }
+
+    protected Tab getTab() {
+        return mTab;
     }
 
     @Override
@@ -110,6 +110,9 @@ public class NavigationBarBase extends LinearLayout implements
             }
             mBaseUi.suggestHideTitleBar();
         }
+        if (!hasFocus) {
+            mUrlInput.getAdapter().getPrerenderer().onEditFinished();
+        }
         mUrlInput.clearNeedsUpdate();
     }
 
@@ -151,7 +154,21 @@ public class NavigationBarBase extends LinearLayout implements
      */
     @Override
     public void onAction(String text, String extra, String source) {
+        OmniboxPrerenderer prerenderer = mUrlInput.getAdapter().getPrerenderer();
+        Intent prerendered = prerenderer.onCommit(text);
         stopEditingUrl();
+        if (prerendered != null) {
+            // The prerendered page opens next to the tab being edited, which
+            // Back returns to
+            if (mUiController.openPreloadedTabFrom(mBaseUi.getActiveTab(), prerendered)) {
+                Tab t = mUiController.getCurrentTab();
+                if (t != null) {
+                    prerenderer.onPrerenderShown(t);
+                }
+            }
+            setDisplayTitle(text);
+            return;
+        }
         if (UrlInputView.TYPED.equals(source)) {
             String url = UrlUtils.smartUrlFilter(text, false);
             Tab t = mBaseUi.getActiveTab();
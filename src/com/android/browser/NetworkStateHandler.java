@@ -111,6 +111,16 @@ public class NetworkStateHandler {
         return mIsNetworkUp;
     }
 
+    /**
+     * @return true if data on the active network may cost the user money,
+     *      or there is no active network
+     */
+    static boolean isActiveNetworkMetered(Context context) {
+        ConnectivityManager cm = (ConnectivityManager) context
+                .getSystemService(Context.CONNECTIVITY_SERVICE);
+        return cm.getActiveNetworkInfo() == null || cm.isActiveNetworkMetered();
+    }
+
     private void sendNetworkType(String type, String subtype) {
         WebView w = mController.getCurrentWebView();
     }
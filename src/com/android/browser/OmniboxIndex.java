@@ -0,0 +1,538 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.provider.BrowserContract;
+import android.provider.BrowserContract.History;
+import android.util.Log;
+
+import com.android.browser.provider.BrowserProvider2;
+import com.android.browser.provider.BrowserProvider2.OmniboxSuggestions;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * In process index of the bookmarks and history the omnibox suggests, so
+ * that filtering while typing doesn't go through the provider.
+ *
+ * Entries are indexed by the tokens of their url, stripped of the scheme
+ * and "www.", and of their title, and match typed text the way the
+ * provider's full text index does: either the first typed token starts the
+ * url and the others are in it, or all typed tokens are in the title. Every
+ * typed token but the last must match a whole token, the last one a prefix.
+ * Results are ordered like v_omnibox_suggestions, bookmarks first, then by
+ * frecency.
+ *
+ * The index holds the {@link #MAX_ENTRIES} best entries. It is built on the
+ * background thread at startup. New visits are applied as deltas; other
+ * changes, such as deletions, rebuild the index in the background. While
+ * entries are left out, a query the index can't fill is left to the
+ * provider.
+ */
+public class OmniboxIndex {
+
+    private static final String LOGTAG = "OmniboxIndex";
+    private static final boolean LOGD_ENABLED = Browser.LOGD_ENABLED;
+
+    static final int MAX_ENTRIES = 2000;
+    // Time changes are collected before they are applied
+    private static final long UPDATE_DELAY = 1000;
+
+    /**
+     * The columns of the cursors returned by {@link #query(String, int)}.
+     */
+    static final String[] COLUMNS = {
+            OmniboxSuggestions._ID,
+            OmniboxSuggestions.TITLE,
+            OmniboxSuggestions.URL,
+            OmniboxSuggestions.IS_BOOKMARK,
+            OmniboxSuggestions.VISITS,
+    };
+
+    private static final String[] LOAD_PROJECTION = {
+            OmniboxSuggestions._ID,
+            OmniboxSuggestions.URL,
+            OmniboxSuggestions.TITLE,
+            OmniboxSuggestions.IS_BOOKMARK,
+            OmniboxSuggestions.VISITS,
+            OmniboxSuggestions.FRECENCY,
+    };
+
+    private static final String[] DELTA_PROJECTION = {
+            History._ID,
+            History.URL,
+            History.TITLE,
+            History.VISITS,
+            BrowserProvider2.HISTORY_FRECENCY,
+    };
+
+    private static OmniboxIndex sInstance;
+
+    static class Entry {
+        final long id;
+        final String url;
+        final String title;
+        final boolean bookmark;
+        final int visits;
+        final double frecency;
+        final String[] urlTokens;
+        final String[] titleTokens;
+        // Query that last looked at the entry, see query()
+        int mark;
+
+        Entry(long i, String u, String t, boolean b, int v, double f) {
+            id = i;
+            url = u;
+            title = t;
+            bookmark = b;
+            visits = v;
+            frecency = f;
+            urlTokens = tokenize(stripUrl(u));
+            titleTokens = tokenize(t);
+        }
+
+        // Whether this entry is suggested before e
+        boolean isBetterThan(Entry e) {
+            if (bookmark != e.bookmark) {
+                return bookmark;
+            }
+            return frecency > e.frecency;
+        }
+    }
+
+    /**
+     * The indexed entries. Replaced as a whole by a rebuild.
+     */
+    private static class Snapshot {
+        final HashMap<String, Entry> byUrl = new HashMap<String, Entry>();
+        // Token -> entries having it in their url or title
+        final TreeMap<String, ArrayList<Entry>> byToken =
+                new TreeMap<String, ArrayList<Entry>>();
+        // Whether every bookmark and history entry is indexed
+        boolean complete = true;
+
+        void add(Entry e) {
+            remove(e.url);
+            byUrl.put(e.url, e);
+            addTokens(e, e.urlTokens);
+            addTokens(e, e.titleTokens);
+        }
+
+        void remove(String url) {
+            Entry e = byUrl.remove(url);
+            if (e != null) {
+                removeTokens(e, e.urlTokens);
+                removeTokens(e, e.titleTokens);
+            }
+        }
+
+        // Drop the entries that would be suggested last, down to max
+        void trim(int max) {
+            while (byUrl.size() > max) {
+                Entry worst = null;
+                for (Entry e : byUrl.values()) {
+                    if (worst == null || worst.isBetterThan(e)) {
+                        worst = e;
+                    }
+                }
+                remove(worst.url);
+                complete = false;
+            }
+        }
+
+        private void addTokens(Entry e, String[] tokens) {
+            for (String token : tokens) {
+                ArrayList<Entry> entries = byToken.get(token);
+                if (entries == null) {
+                    entries = new ArrayList<Entry>(2);
+                    byToken.put(token, entries);
+                }
+                if (!entries.contains(e)) {
+                    entries.add(e);
+                }
+            }
+        }
+
+        private void removeTokens(Entry e, String[] tokens) {
+            for (String token : tokens) {
+                ArrayList<Entry> entries = byToken.get(token);
+                if (entries != null && entries.remove(e) && entries.isEmpty()) {
+                    byToken.remove(token);
+                }
+            }
+        }
+    }
+
+    private final Context mContext;
+    private final Handler mHandler;
+    private final Runnable mUpdate = new Runnable() {
+        @Override
+        public void run() {
+            update();
+        }
+    };
+
+    // Guarded by this
+    private Snapshot mSnapshot;
+    private int mMark;
+    // A change waiting for mUpdate needs a rebuild
+    private boolean mOtherChanged;
+    // History visited after this is not indexed yet
+    private long mIndexedUntil;
+
+    // Tells history deletions apart from new visits, only used on the
+    // background thread
+    private final HistoryCounts mHistoryRows = new HistoryCounts(null);
+
+    // Accounting
+    private int mRebuilds;
+    private int mDeltas;
+    private int mQueries;
+    private int mMisses;
+    private long mQueryNanos;
+
+    public static void initialize(Context context) {
+        sInstance = new OmniboxIndex(context);
+    }
+
+    public static OmniboxIndex getInstance() {
+        return sInstance;
+    }
+
+    private OmniboxIndex(Context context) {
+        mContext = context;
+        mHandler = new Handler(BackgroundHandler.getLooper());
+        context.getContentResolver().registerContentObserver(BrowserContract.AUTHORITY_URI,
+                true, new ContentObserver(mHandler) {
+            @Override
+            public void onChange(boolean selfChange) {
+                onChange(selfChange, null);
+            }
+
+            @Override
+            public void onChange(boolean selfChange, Uri uri) {
+                onProviderChange(uri);
+            }
+        });
+        synchronized (this) {
+            mOtherChanged = true;
+        }
+        mHandler.postDelayed(mUpdate, UPDATE_DELAY);
+    }
+
+    /**
+     * An empty index that is filled with {@link #put(Entry)}, for tests.
+     */
+    OmniboxIndex() {
+        mContext = null;
+        mHandler = null;
+        mSnapshot = new Snapshot();
+    }
+
+    /**
+     * @return up to limit entries matching filter, best first, as rows of
+     *      {@link #COLUMNS}, or null if the index is not built yet or has
+     *      fewer matches than limit while it leaves entries out
+     */
+    public Cursor query(String filter, int limit) {
+        long start = System.nanoTime();
+        String[] typed = tokenize(stripUrl(filter));
+        Entry[] top = new Entry[limit];
+        int count = 0;
+        synchronized (this) {
+            if (mSnapshot == null) {
+                return null;
+            }
+            if (typed.length > 0 && limit > 0) {
+                count = collect(typed, top);
+            }
+            mQueries++;
+            mQueryNanos += System.nanoTime() - start;
+            // The provider may have matches among the entries left out
+            if (count < limit && !mSnapshot.complete) {
+                mMisses++;
+                return null;
+            }
+        }
+        MatrixCursor cursor = new MatrixCursor(COLUMNS, count);
+        for (int i = 0; i < count; i++) {
+            Entry e = top[i];
+            cursor.addRow(new Object[] { e.id, e.title, e.url, e.bookmark ? 1 : 0, e.visits });
+        }
+        return cursor;
+    }
+
+    // Fill top with the best matches, best first, and return how many there are
+    private int collect(String[] typed, Entry[] top) {
+        int mark = ++mMark;
+        int count = 0;
+        boolean single = typed.length == 1;
+        String first = typed[0];
+        SortedMap<String, ArrayList<Entry>> candidates = single
+                ? mSnapshot.byToken.subMap(first, first + Character.MAX_VALUE)
+                : mSnapshot.byToken.subMap(first, first + '\0');
+        for (ArrayList<Entry> entries : candidates.values()) {
+            for (Entry e : entries) {
+                if (e.mark == mark) {
+                    continue;
+                }
+                e.mark = mark;
+                if (!matches(e, typed)) {
+                    continue;
+                }
+                // Insert into the few best so far
+                if (count == top.length && !e.isBetterThan(top[count - 1])) {
+                    continue;
+                }
+                int i = count < top.length ? count++ : count - 1;
+                while (i > 0 && e.isBetterThan(top[i - 1])) {
+                    top[i] = top[i - 1];
+                    i--;
+                }
+                top[i] = e;
+            }
+        }
+        return count;
+    }
+
+    private static boolean matches(Entry e, String[] typed) {
+        String[] url = e.urlTokens;
+        boolean urlMatch = url.length > 0 && tokenMatches(url[0], typed, 0);
+        for (int i = 1; urlMatch && i < typed.length; i++) {
+            urlMatch = contains(url, typed, i);
+        }
+        if (urlMatch) {
+            return true;
+        }
+        for (int i = 0; i < typed.length; i++) {
+            if (!contains(e.titleTokens, typed, i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean contains(String[] tokens, String[] typed, int i) {
+        for (String token : tokens) {
+            if (tokenMatches(token, typed, i)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // The last typed token matches a prefix, the others whole tokens
+    private static boolean tokenMatches(String token, String[] typed, int i) {
+        return i == typed.length - 1 ? token.startsWith(typed[i]) : token.equals(typed[i]);
+    }
+
+    synchronized void put(Entry e) {
+        mSnapshot.add(e);
+        mSnapshot.trim(MAX_ENTRIES);
+    }
+
+    public synchronized String getStats() {
+        return "Omnibox index: " + (mSnapshot != null ? mSnapshot.byUrl.size() : 0)
+                + " entries, " + (mSnapshot != null ? mSnapshot.byToken.size() : 0)
+                + " tokens, " + mRebuilds + " rebuilds, " + mDeltas + " deltas, " + mQueries
+                + " queries, " + mMisses + " left to the provider, "
+                + (mQueries > 0 ? mQueryNanos / mQueries / 1000 : 0) + "us average";
+    }
+
+    // Called on the background thread
+    private void onProviderChange(Uri uri) {
+        String table = uri != null && uri.getPathSegments().size() > 0
+                ? uri.getPathSegments().get(0) : null;
+        // New visits are picked up by applyHistoryDelta(), anything else rebuilds
+        boolean history = "history".equals(table);
+        if (!history && table != null && !"bookmarks".equals(table)
+                && !"combined".equals(table)) {
+            // Images, thumbnails, searches and settings aren't indexed
+            return;
+        }
+        if (!history) {
+            synchronized (this) {
+                mOtherChanged = true;
+            }
+        }
+        mHandler.removeCallbacks(mUpdate);
+        mHandler.postDelayed(mUpdate, UPDATE_DELAY);
+    }
+
+    // Called on the background thread
+    private void update() {
+        boolean rebuild;
+        synchronized (this) {
+            rebuild = mOtherChanged || mSnapshot == null;
+            mOtherChanged = false;
+        }
+        // Deletions and title changes leave no trace a delta could find, and
+        // a deletion may come with new visits
+        if (rebuild || mHistoryRows.check(mContext.getContentResolver())
+                || !applyHistoryDelta()) {
+            rebuild();
+        }
+    }
+
+    private void rebuild() {
+        long start = SystemClock.uptimeMillis();
+        long indexedUntil = System.currentTimeMillis();
+        // Counted first, so rows deleted while loading rebuild again
+        mHistoryRows.check(mContext.getContentResolver());
+        Uri uri = OmniboxSuggestions.CONTENT_URI.buildUpon()
+                .appendQueryParameter(BrowserContract.PARAM_LIMIT, Integer.toString(MAX_ENTRIES))
+                .build();
+        Cursor c = query(uri, LOAD_PROJECTION, null, null,
+                OmniboxSuggestions.IS_BOOKMARK + " DESC, " + OmniboxSuggestions.FRECENCY
+                + " DESC");
+        if (c == null) {
+            return;
+        }
+        Snapshot snapshot = new Snapshot();
+        try {
+            snapshot.complete = c.getCount() < MAX_ENTRIES;
+            while (c.moveToNext()) {
+                String url = c.getString(1);
+                if (url != null) {
+                    snapshot.add(new Entry(c.getLong(0), url, c.getString(2), c.getInt(3) != 0,
+                            c.getInt(4), c.getDouble(5)));
+                }
+            }
+        } finally {
+            c.close();
+        }
+        synchronized (this) {
+            mSnapshot = snapshot;
+            mIndexedUntil = indexedUntil;
+            mRebuilds++;
+        }
+        if (LOGD_ENABLED) {
+            Log.d(LOGTAG, "Rebuilt in " + (SystemClock.uptimeMillis() - start) + "ms, "
+                    + getStats());
+        }
+    }
+
+    /**
+     * Index the history visited since the last update.
+     *
+     * @return false if nothing was visited, so the change was something else
+     */
+    private boolean applyHistoryDelta() {
+        long since;
+        synchronized (this) {
+            since = mIndexedUntil;
+        }
+        long indexedUntil = System.currentTimeMillis();
+        Cursor c = query(History.CONTENT_URI, DELTA_PROJECTION,
+                History.DATE_LAST_VISITED + " >= ?", new String[] { Long.toString(since) },
+                null);
+        if (c == null) {
+            return false;
+        }
+        List<Entry> visited = new ArrayList<Entry>(c.getCount());
+        try {
+            while (c.moveToNext()) {
+                String url = c.getString(1);
+                if (url != null) {
+                    visited.add(new Entry(c.getLong(0), url, c.getString(2), false,
+                            c.getInt(3), c.getDouble(4)));
+                }
+            }
+        } finally {
+            c.close();
+        }
+        if (visited.isEmpty()) {
+            return false;
+        }
+        synchronized (this) {
+            for (Entry e : visited) {
+                Entry old = mSnapshot.byUrl.get(e.url);
+                // Visits to bookmarks are suggested as the bookmark
+                if (old == null || !old.bookmark) {
+                    mSnapshot.add(e);
+                }
+            }
+            mSnapshot.trim(MAX_ENTRIES);
+            mIndexedUntil = indexedUntil;
+            mDeltas++;
+        }
+        return true;
+    }
+
+    private Cursor query(Uri uri, String[] projection, String selection, String[] args,
+            String sortOrder) {
+        ContentResolver cr = mContext.getContentResolver();
+        try {
+            return cr.query(uri, projection, selection, args, sortOrder);
+        } catch (RuntimeException e) {
+            Log.w(LOGTAG, "Failed to query " + uri, e);
+            return null;
+        }
+    }
+
+    // The url without its scheme and "www.", as the provider indexes it
+    static String stripUrl(String url) {
+        String lower = url.toLowerCase(Locale.ROOT);
+        for (String prefix : new String[] { "http://", "https://" }) {
+            if (lower.startsWith(prefix)) {
+                lower = lower.substring(prefix.length());
+                break;
+            }
+        }
+        if (lower.startsWith("www.")) {
+            lower = lower.substring(4);
+        }
+        return lower;
+    }
+
+    /**
+     * Split text the way the provider's "simple" tokenizer does: every ASCII
+     * character that isn't a letter or digit separates tokens.
+     */
+    static String[] tokenize(String text) {
+        if (text == null) {
+            return new String[0];
+        }
+        String lower = text.toLowerCase(Locale.ROOT);
+        ArrayList<String> tokens = new ArrayList<String>();
+        int start = -1;
+        for (int i = 0; i <= lower.length(); i++) {
+            char c = i < lower.length() ? lower.charAt(i) : ' ';
+            boolean isTokenChar = c >= 0x80 || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9');
+            if (isTokenChar && start < 0) {
+                start = i;
+            } else if (!isTokenChar && start >= 0) {
+                tokens.add(lower.substring(start, i));
+                start = -1;
+            }
+        }
+        return tokens.toArray(new String[tokens.size()]);
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser;
+
+import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.android.browser.SuggestionsAdapter.SuggestItem;
+
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Prerenders the page the user is most likely typing into the omnibox,
+ * through the {@link Preloader}. Only the top suggestion is considered, and
+ * only when it is a bookmark or a history entry that clearly dominates the
+ * other matches for what has been typed. Each editing session may start a
+ * limited number of prerenders.
+ *
+ * All methods must be called on the UI thread.
+ */
+class OmniboxPrerenderer {
+
+    private static final String LOGTAG = "OmniboxPrerenderer";
+    private static final boolean LOGD_ENABLED = Browser.LOGD_ENABLED;
+
+    static final String SOURCE = "omnibox";
+    private static final String ID_PREFIX = "omnibox-";
+
+    // Shortest input that may trigger a prerender
+    private static final int MIN_TYPED_LENGTH = 3;
+    // Visits a history entry needs before it is worth prerendering
+    private static final int MIN_VISITS = 5;
+    // How many times more visits the top history entry needs than the next
+    private static final int MIN_VISIT_LEAD = 2;
+    // Prerenders that may be started while editing the url once
+    private static final int MAX_PRERENDERS_PER_EDIT = 3;
+
+    private final Context mContext;
+    private int mNextId;
+    // The session currently prerendering, if any
+    private String mSessionId;
+    private String mUrl;
+    private int mStarted;
+
+    // Accounting
+    private int mCommitted;
+    private long mSavedMillis;
+
+    OmniboxPrerenderer(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * Look at new suggestions for typed and prerender the top one if it is
+     * a confident match.
+     */
+    void onSuggestions(CharSequence typed, List<SuggestItem> items) {
+        if (items == null || items.isEmpty() || typed == null) {
+            return;
+        }
+        String url = pickUrl(typed.toString(), items);
+        if (url == null || url.equals(mUrl)) {
+            return;
+        }
+        if (mStarted >= MAX_PRERENDERS_PER_EDIT
+                || !PreloadRequestReceiver.isPreloadEnabledOnCurrentNetwork(mContext)) {
+            return;
+        }
+        cancel();
+        mSessionId = ID_PREFIX + mNextId++;
+        mUrl = url;
+        mStarted++;
+        if (LOGD_ENABLED) Log.d(LOGTAG, "Prerendering " + url + " for \"" + typed + "\"");
+        Preloader.getInstance().handlePreloadRequest(mSessionId, url, null, null, SOURCE);
+    }
+
+    private static String pickUrl(String typed, List<SuggestItem> items) {
+        String key = normalize(typed.trim());
+        if (key.length() < MIN_TYPED_LENGTH || key.indexOf(' ') >= 0) {
+            return null;
+        }
+        SuggestItem top = items.get(0);
+        if (top.targetUrl == null || !normalize(top.targetUrl).startsWith(key)) {
+            return null;
+        }
+        if (top.type == SuggestionsAdapter.TYPE_BOOKMARK) {
+            return top.targetUrl;
+        }
+        if (top.type != SuggestionsAdapter.TYPE_HISTORY || top.visits < MIN_VISITS) {
+            return null;
+        }
+        for (int i = 1; i < items.size(); i++) {
+            SuggestItem item = items.get(i);
+            if (item.type == SuggestionsAdapter.TYPE_HISTORY
+                    && top.visits < item.visits * MIN_VISIT_LEAD) {
+                return null;
+            }
+        }
+        return top.targetUrl;
+    }
+
+    /**
+     * The user committed text in the omnibox. If it is the page being
+     * prerendered, the session is handed over.
+     *
+     * @return an intent that shows the preloaded tab, or null if nothing
+     *      matches
+     */
+    Intent onCommit(String text) {
+        if (mSessionId == null || TextUtils.isEmpty(text)) {
+            return null;
+        }
+        String committed = UrlUtils.smartUrlFilter(text, false);
+        if (committed == null || !normalize(committed).equals(normalize(mUrl))
+                || !Preloader.getInstance().hasSession(mSessionId)) {
+            return null;
+        }
+        Intent i = new Intent(Intent.ACTION_VIEW, Uri.parse(mUrl));
+        i.putExtra(PreloadRequestReceiver.EXTRA_PRELOAD_ID, mSessionId);
+        mSessionId = null;
+        mUrl = null;
+        return i;
+    }
+
+    /**
+     * Record how much of the load of a committed prerender had already been
+     * done, see {@link #onCommit(String)}.
+     */
+    void onPrerenderShown(Tab tab) {
+        long saved = tab.getLoadDuration();
+        mCommitted++;
+        mSavedMillis += saved;
+        LogTag.logPrerenderUsed(tab.getUrl(), saved);
+        if (LOGD_ENABLED) {
+            Log.d(LOGTAG, "Prerender of " + tab.getUrl() + " saved " + saved + "ms, "
+                    + getStats());
+        }
+    }
+
+    /**
+     * Editing ended, drop the prerender in progress and reset the budget.
+     */
+    void onEditFinished() {
+        cancel();
+        mStarted = 0;
+    }
+
+    private void cancel() {
+        if (mSessionId != null) {
+            Preloader.getInstance().discardPreload(mSessionId);
+            mSessionId = null;
+            mUrl = null;
+        }
+    }
+
+    String getStats() {
+        return "Omnibox prerender: " + mCommitted + " used, "
+                + (mCommitted > 0 ? mSavedMillis / mCommitted : 0) + "ms saved on average";
+    }
+
+    // Compare urls without their scheme, "www." and trailing slash
+    private static String normalize(String url) {
+        String s = url.toLowerCase(Locale.ROOT);
+        int scheme = s.indexOf("://");
+        if (scheme >= 0) {
+            s = s.substring(scheme + 3);
+        }
+        if (s.startsWith("www.")) {
+            s = s.substring(4);
+        }
+        if (s.endsWith("/")) {
+            s = s.substring(0, s.length() - 1);
+        }
+        return s;
+    }
+}
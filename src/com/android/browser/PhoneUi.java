@@ -436,11 +436,6 @@ public class PhoneUi extends BaseUi {
         mCustomViewContainer.setVisibility(View.GONE);
     }
 
-    @Override
-    public boolean needsRestoreAllTabs() {
-        return false;
-    }
-
     public void toggleNavScreen() {
         if (!showingNavScreen()) {
             showNavScreen();
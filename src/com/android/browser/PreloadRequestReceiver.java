@@ -41,8 +41,8 @@ public class PreloadRequestReceiver extends BroadcastReceiver {
     static final String EXTRA_PRELOAD_DISCARD = "preload_discard";
     static final String EXTRA_SEARCHBOX_CANCEL = "searchbox_cancel";
     static final String EXTRA_SEARCHBOX_SETQUERY = "searchbox_query";
-
-    private ConnectivityManager mConnectivityManager;
+    // Optional name of the requester, preload metrics are grouped by it
+    static final String EXTRA_PRELOAD_SOURCE = "preload_source";
 
     @Override
     public void onReceive(Context context, Intent intent) {
@@ -53,7 +53,7 @@ public class PreloadRequestReceiver extends BroadcastReceiver {
         }
     }
 
-    private boolean isPreloadEnabledOnCurrentNetwork(Context context) {
+    static boolean isPreloadEnabledOnCurrentNetwork(Context context) {
         String preload = BrowserSettings.getInstance().getPreloadEnabled();
         if (LOGD_ENABLED) Log.d(LOGTAG, "Preload setting: " + preload);
         if (BrowserSettings.getPreloadAlwaysPreferenceString(context).equals(preload)) {
@@ -67,12 +67,10 @@ public class PreloadRequestReceiver extends BroadcastReceiver {
         }
     }
 
-    private boolean isOnWifi(Context context) {
-        if (mConnectivityManager == null) {
-            mConnectivityManager = (ConnectivityManager)
-                    context.getSystemService(Context.CONNECTIVITY_SERVICE);
-        }
-        NetworkInfo ni = mConnectivityManager.getActiveNetworkInfo();
+    private static boolean isOnWifi(Context context) {
+        ConnectivityManager cm = (ConnectivityManager)
+                context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo ni = cm.getActiveNetworkInfo();
         if (ni == null) {
             return false;
         }
@@ -126,7 +124,8 @@ public class PreloadRequestReceiver extends BroadcastReceiver {
                     Log.d(LOGTAG, "Preload request(" + id + ", " + url + ", " +
                             headers + ", " + sbQuery + ")");
                 }
-                Preloader.getInstance().handlePreloadRequest(id, url, headers, sbQuery);
+                Preloader.getInstance().handlePreloadRequest(id, url, headers, sbQuery,
+                        i.getStringExtra(EXTRA_PRELOAD_SOURCE));
             }
         }
     }
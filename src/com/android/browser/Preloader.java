@@ -15,16 +15,28 @@
  */
 package com.android.browser;
 
+import android.app.ActivityManager;
 import android.content.Context;
+import android.net.TrafficStats;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.Process;
 import android.util.Log;
 import android.webkit.WebView;
 
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 /**
  * Singleton class for handling preload requests.
+ *
+ * Several sessions can preload at once. The number allowed depends on the
+ * device memory and on whether the active network is metered; when a new
+ * session needs a slot the least recently used one is discarded. Sessions
+ * left untouched time out, sooner on metered networks and while every slot
+ * is taken. Hits, misses and the bytes downloaded by sessions that were
+ * never shown are counted per request source.
  */
 public class Preloader {
 
@@ -32,13 +44,34 @@ public class Preloader {
     private final static boolean LOGD_ENABLED = com.android.browser.Browser.LOGD_ENABLED;
 
     private static final int PRERENDER_TIMEOUT_MILLIS = 30 * 1000; // 30s
+    // On metered networks and while the pool is full
+    private static final int PRERENDER_SHORT_TIMEOUT_MILLIS = 10 * 1000; // 10s
+    // Memory class needed per concurrent session
+    private static final int MEMORY_CLASS_PER_SESSION = 64;
+    // Number of ended session ids remembered to attribute late misses
+    private static final int MAX_ENDED_SESSIONS = 16;
+
+    static final String SOURCE_UNKNOWN = "unknown";
 
     private static Preloader sInstance;
 
     private final Context mContext;
     private final Handler mHandler;
     private final BrowserWebViewFactory mFactory;
-    private volatile PreloaderSession mSession;
+    private final int mMaxSessions;
+    // Session id -> session, least recently used first
+    private final LinkedHashMap<String, PreloaderSession> mSessions =
+            new LinkedHashMap<String, PreloaderSession>(4, 0.75f, true);
+    // Ids of sessions that ended without being shown -> their source
+    private final LinkedHashMap<String, String> mEndedSessions =
+            new LinkedHashMap<String, String>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > MAX_ENDED_SESSIONS;
+        }
+    };
+    private final HashMap<String, SourceStats> mStats = new HashMap<String, SourceStats>();
+    private long mLastRxBytes = TrafficStats.UNSUPPORTED;
 
     public static void initialize(Context context) {
         sInstance = new Preloader(context);
@@ -51,51 +84,92 @@ public class Preloader {
     private Preloader(Context context) {
         mContext = context.getApplicationContext();
         mHandler = new Handler(Looper.getMainLooper());
-        mSession = null;
         mFactory = new BrowserWebViewFactory(context);
+        mMaxSessions = computeMaxSessions(mContext);
+    }
 
+    private static int computeMaxSessions(Context context) {
+        int max = context.getResources().getInteger(R.integer.max_preload_sessions);
+        ActivityManager am = (ActivityManager) context.getSystemService(
+                Context.ACTIVITY_SERVICE);
+        if (am.isLowRamDevice()) {
+            return 1;
+        }
+        return Math.max(1, Math.min(max, am.getMemoryClass() / MEMORY_CLASS_PER_SESSION));
     }
 
-    private PreloaderSession getSession(String id) {
-        if (mSession == null) {
-            if (LOGD_ENABLED) Log.d(LOGTAG, "Create new preload session " + id);
-            mSession = new PreloaderSession(id);
-            WebViewTimersControl.getInstance().onPrerenderStart(
-                    mSession.getWebView());
-            return mSession;
-        } else if (mSession.mId.equals(id)) {
-            if (LOGD_ENABLED) Log.d(LOGTAG, "Returning existing preload session " + id);
-            return mSession;
+    /**
+     * @return how many sessions may preload at once on the current network
+     */
+    int getMaxSessions() {
+        if (NetworkStateHandler.isActiveNetworkMetered(mContext)) {
+            return 1;
         }
+        return mMaxSessions;
+    }
 
-        if (LOGD_ENABLED) Log.d(LOGTAG, "Existing session in progress : " + mSession.mId +
-                " returning null.");
-        return null;
+    /**
+     * @return how long a session is kept after it was last touched. An idle
+     *      session costs data on a metered network and holds a slot others
+     *      need once the pool is full, so it goes sooner there.
+     */
+    synchronized int getTimeoutMillis() {
+        if (NetworkStateHandler.isActiveNetworkMetered(mContext)
+                || mSessions.size() >= getMaxSessions()) {
+            return PRERENDER_SHORT_TIMEOUT_MILLIS;
+        }
+        return PRERENDER_TIMEOUT_MILLIS;
     }
 
-    private PreloaderSession takeSession(String id) {
-        PreloaderSession s = null;
-        if (mSession != null && mSession.mId.equals(id)) {
-            s = mSession;
-            mSession = null;
+    private synchronized PreloaderSession getSession(String id, String source) {
+        PreloaderSession s = mSessions.get(id);
+        if (s != null) {
+            if (LOGD_ENABLED) Log.d(LOGTAG, "Returning existing preload session " + id);
+            return s;
+        }
+        if (source == null) {
+            // Only requests that load something start a session
+            return null;
         }
+        int max = getMaxSessions();
+        while (mSessions.size() >= max) {
+            PreloaderSession eldest = mSessions.values().iterator().next();
+            if (LOGD_ENABLED) Log.d(LOGTAG, "Evicting preload session " + eldest.mId);
+            discardPreload(eldest.mId);
+        }
+        if (LOGD_ENABLED) Log.d(LOGTAG, "Create new preload session " + id);
+        sampleTraffic();
+        s = new PreloaderSession(id, source);
+        mSessions.put(id, s);
+        mEndedSessions.remove(id);
+        WebViewTimersControl.getInstance().onPrerenderStart(s.getWebView());
+        return s;
+    }
 
+    synchronized boolean hasSession(String id) {
+        return mSessions.containsKey(id);
+    }
+
+    private synchronized PreloaderSession takeSession(String id) {
+        sampleTraffic();
+        PreloaderSession s = mSessions.remove(id);
         if (s != null) {
             s.cancelTimeout();
         }
-
         return s;
     }
 
     public void handlePreloadRequest(String id, String url, Map<String, String> headers,
             String searchBoxQuery) {
-        PreloaderSession s = getSession(id);
-        if (s == null) {
-            if (LOGD_ENABLED) Log.d(LOGTAG, "Discarding preload request, existing"
-                    + " session in progress");
-            return;
-        }
+        handlePreloadRequest(id, url, headers, searchBoxQuery, SOURCE_UNKNOWN);
+    }
 
+    /**
+     * @param source where the request came from, used to group the metrics
+     */
+    public void handlePreloadRequest(String id, String url, Map<String, String> headers,
+            String searchBoxQuery, String source) {
+        PreloaderSession s = getSession(id, source != null ? source : SOURCE_UNKNOWN);
         s.touch(); // reset timer
         PreloadedTabControl tab = s.getTabControl();
         if (searchBoxQuery != null) {
@@ -107,7 +181,7 @@ public class Preloader {
     }
 
     public void cancelSearchBoxPreload(String id) {
-        PreloaderSession s = getSession(id);
+        PreloaderSession s = getSession(id, null);
         if (s != null) {
             s.touch(); // reset timer
             PreloadedTabControl tab = s.getTabControl();
@@ -119,9 +193,16 @@ public class Preloader {
         PreloaderSession s = takeSession(id);
         if (s != null) {
             if (LOGD_ENABLED) Log.d(LOGTAG, "Discard preload session " + id);
-            WebViewTimersControl.getInstance().onPrerenderDone(s == null ? null : s.getWebView());
+            synchronized (this) {
+                SourceStats stats = getSourceStats(s.mSource);
+                stats.discarded++;
+                stats.wastedBytes += s.mRxBytes;
+                mEndedSessions.put(id, s.mSource);
+            }
+            WebViewTimersControl.getInstance().onPrerenderDone(s.getWebView());
             PreloadedTabControl t = s.getTabControl();
             t.destroy();
+            if (LOGD_ENABLED) Log.d(LOGTAG, getStats());
         } else {
             if (LOGD_ENABLED) Log.d(LOGTAG, "Ignored discard request " + id);
         }
@@ -134,12 +215,78 @@ public class Preloader {
     public PreloadedTabControl getPreloadedTab(String id) {
         PreloaderSession s = takeSession(id);
         if (LOGD_ENABLED) Log.d(LOGTAG, "Showing preload session " + id + "=" + s);
-        return s == null ? null : s.getTabControl();
+        synchronized (this) {
+            if (s != null) {
+                getSourceStats(s.mSource).hits++;
+            } else {
+                String source = mEndedSessions.remove(id);
+                getSourceStats(source != null ? source : SOURCE_UNKNOWN).misses++;
+            }
+        }
+        if (s == null) {
+            return null;
+        }
+        WebViewTimersControl.getInstance().onPrerenderDone(s.getWebView());
+        return s.getTabControl();
+    }
+
+    /**
+     * @return hits, misses and wasted bytes for each request source
+     */
+    public synchronized String getStats() {
+        StringBuilder sb = new StringBuilder("Preloader: ");
+        sb.append(mSessions.size()).append('/').append(getMaxSessions()).append(" sessions");
+        for (Map.Entry<String, SourceStats> entry : mStats.entrySet()) {
+            SourceStats stats = entry.getValue();
+            sb.append(", ").append(entry.getKey()).append(": ")
+                    .append(stats.hits).append(" hits, ")
+                    .append(stats.misses).append(" misses, ")
+                    .append(stats.discarded).append(" discarded, ")
+                    .append(stats.wastedBytes / 1024).append("k wasted");
+        }
+        return sb.toString();
+    }
+
+    private SourceStats getSourceStats(String source) {
+        SourceStats stats = mStats.get(source);
+        if (stats == null) {
+            stats = new SourceStats();
+            mStats.put(source, stats);
+        }
+        return stats;
+    }
+
+    /**
+     * Split the bytes received by the process since the last sample evenly
+     * over the open sessions. This is only an estimate: the browser's own
+     * traffic during a preload is counted too.
+     */
+    private void sampleTraffic() {
+        long rx = TrafficStats.getUidRxBytes(Process.myUid());
+        if (rx == TrafficStats.UNSUPPORTED) {
+            return;
+        }
+        if (mLastRxBytes != TrafficStats.UNSUPPORTED && !mSessions.isEmpty()) {
+            long share = (rx - mLastRxBytes) / mSessions.size();
+            for (PreloaderSession s : mSessions.values()) {
+                s.mRxBytes += share;
+            }
+        }
+        mLastRxBytes = rx;
+    }
+
+    private static class SourceStats {
+        int hits;
+        int misses;
+        int discarded;
+        long wastedBytes;
     }
 
     private class PreloaderSession {
         private final String mId;
+        private final String mSource;
         private final PreloadedTabControl mTabControl;
+        private long mRxBytes;
 
         private final Runnable mTimeoutTask = new Runnable(){
             @Override
@@ -148,11 +295,12 @@ public class Preloader {
                 discardPreload(mId);
             }};
 
-        public PreloaderSession(String id) {
+        public PreloaderSession(String id, String source) {
             mId = id;
+            mSource = source;
+            // Touched by the request once the session is in the pool
             mTabControl = new PreloadedTabControl(
                     new Tab(new PreloadController(mContext), mFactory.createWebView(false)));
-            touch();
         }
 
         public void cancelTimeout() {
@@ -161,7 +309,7 @@ public class Preloader {
 
         public void touch() {
             cancelTimeout();
-            mHandler.postDelayed(mTimeoutTask, PRERENDER_TIMEOUT_MILLIS);
+            mHandler.postDelayed(mTimeoutTask, getTimeoutMillis());
         }
 
         public PreloadedTabControl getTabControl() {
@@ -20,10 +20,15 @@ import android.app.SearchManager;
 import android.content.Context;
 import android.database.Cursor;
 import android.net.Uri;
-import android.os.AsyncTask;
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.OperationCanceledException;
+import android.os.SystemClock;
 import android.provider.BrowserContract;
 import android.text.Html;
 import android.text.TextUtils;
+import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.View.OnClickListener;
@@ -39,6 +44,9 @@ import com.android.browser.search.SearchEngine;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 
 /**
  * adapter to wrap multiple cursors for url/search completions
@@ -46,6 +54,15 @@ import java.util.List;
 public class SuggestionsAdapter extends BaseAdapter implements Filterable,
         OnClickListener {
 
+    private static final String LOGTAG = "SuggestionsAdapter";
+    private static final boolean LOGV_ENABLED = Browser.LOGV_ENABLED;
+
+    // Time the input has to be stable before remote suggestions are fetched
+    private static final long SUGGEST_DEBOUNCE_DELAY = 150;
+
+    // Remote suggestions are fetched one at a time
+    private static final Executor sSuggestExecutor = Executors.newSingleThreadExecutor();
+
     public static final int TYPE_BOOKMARK = 0;
     public static final int TYPE_HISTORY = 1;
     public static final int TYPE_SUGGEST_URL = 2;
@@ -56,16 +73,16 @@ public class SuggestionsAdapter extends BaseAdapter implements Filterable,
             OmniboxSuggestions._ID,
             OmniboxSuggestions.TITLE,
             OmniboxSuggestions.URL,
-            OmniboxSuggestions.IS_BOOKMARK
+            OmniboxSuggestions.IS_BOOKMARK,
+            OmniboxSuggestions.VISITS
             };
 
-    private static final String COMBINED_SELECTION =
-            "(url LIKE ? OR url LIKE ? OR url LIKE ? OR url LIKE ? OR title LIKE ?)";
-
     final Context mContext;
     final Filter mFilter;
     SuggestionResults mMixedResults;
     List<SuggestItem> mSuggestResults, mFilterResults;
+    // The queries mSuggestResults and mFilterResults answer
+    String mSuggestQuery, mFilterQuery;
     List<CursorSource> mSources;
     boolean mLandscapeMode;
     final CompletionListener mListener;
@@ -74,6 +91,8 @@ public class SuggestionsAdapter extends BaseAdapter implements Filterable,
     final Object mResultsLock = new Object();
     boolean mIncognitoMode;
     BrowserSettings mSettings;
+    final OmniboxPrerenderer mPrerenderer;
+    final SuggestionFetcher mFetcher;
 
     interface CompletionListener {
 
@@ -93,9 +112,15 @@ public class SuggestionsAdapter extends BaseAdapter implements Filterable,
                 getInteger(R.integer.max_suggest_lines_landscape);
 
         mFilter = new SuggestFilter();
+        mPrerenderer = new OmniboxPrerenderer(ctx);
+        mFetcher = new SuggestionFetcher();
         addSource(new CombinedCursor());
     }
 
+    OmniboxPrerenderer getPrerenderer() {
+        return mPrerenderer;
+    }
+
     public void setLandscapeMode(boolean mode) {
         mLandscapeMode = mode;
         notifyDataSetChanged();
@@ -198,45 +223,246 @@ public class SuggestionsAdapter extends BaseAdapter implements Filterable,
         view.findViewById(R.id.suggestion).setOnClickListener(this);
     }
 
-    class SlowFilterTask extends AsyncTask<CharSequence, Void, List<SuggestItem>> {
+    /**
+     * Fetches remote suggestions for the latest query only. Requests are
+     * debounced, at most one fetch runs at a time, and a fetch is cancelled
+     * as soon as its query is superseded. Results are tagged with the query
+     * they answer, see {@link #buildSuggestionResults()}.
+     *
+     * Apart from {@link #request(CharSequence)} all methods must be called
+     * on the UI thread.
+     */
+    class SuggestionFetcher {
 
-        @Override
-        protected List<SuggestItem> doInBackground(CharSequence... params) {
-            SuggestCursor cursor = new SuggestCursor();
-            cursor.runQuery(params[0]);
-            List<SuggestItem> results = new ArrayList<SuggestItem>();
-            int count = cursor.getCount();
-            for (int i = 0; i < count; i++) {
-                results.add(cursor.getItem());
-                cursor.moveToNext();
+        private final Handler mHandler = new Handler(Looper.getMainLooper());
+        private final Runnable mStart = new Runnable() {
+            @Override
+            public void run() {
+                start();
+            }
+        };
+        // The query waiting for the debounce delay, if any
+        private String mPending;
+        private FetchTask mInFlight;
+
+        // Accounting
+        private int mRequests;
+        private int mCoalesced;
+        private int mCancelled;
+        private int mCompleted;
+        private int mProvisional;
+        private int mStale;
+        private long mTotalLatency;
+        private long mMaxLatency;
+
+        /**
+         * Ask for suggestions for query. May be called on any thread.
+         */
+        void request(CharSequence query) {
+            final String q = query != null ? query.toString() : "";
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    schedule(q);
+                }
+            });
+        }
+
+        private void schedule(String query) {
+            mRequests++;
+            if (mPending != null) {
+                mCoalesced++;
             }
-            cursor.close();
-            return results;
+            mPending = query;
+            if (mInFlight != null && !query.equals(mInFlight.query)) {
+                cancelInFlight();
+            }
+            mHandler.removeCallbacks(mStart);
+            mHandler.postDelayed(mStart, SUGGEST_DEBOUNCE_DELAY);
         }
 
-        @Override
-        protected void onPostExecute(List<SuggestItem> items) {
-            mSuggestResults = items;
+        private void start() {
+            String query = mPending;
+            mPending = null;
+            if (query == null || mIncognitoMode) {
+                return;
+            }
+            if (mInFlight != null) {
+                if (query.equals(mInFlight.query)) {
+                    // Already being fetched
+                    mCoalesced++;
+                    return;
+                }
+                cancelInFlight();
+            }
+            mInFlight = new FetchTask(query);
+            sSuggestExecutor.execute(mInFlight);
+        }
+
+        /**
+         * Drop the pending request and cancel the fetch in progress.
+         */
+        void cancel() {
+            mHandler.removeCallbacks(mStart);
+            mPending = null;
+            cancelInFlight();
+        }
+
+        private void cancelInFlight() {
+            if (mInFlight == null) {
+                return;
+            }
+            final CancellationSignal signal = mInFlight.signal;
+            mInFlight = null;
+            mCancelled++;
+            // Cancelling disconnects the request, keep that off the UI thread
+            BackgroundHandler.execute(new Runnable() {
+                @Override
+                public void run() {
+                    signal.cancel();
+                }
+            });
+        }
+
+        private void deliver(FetchTask task, List<SuggestItem> items) {
+            if (task != mInFlight) {
+                // Cancelled, and already counted as such
+                return;
+            }
+            mInFlight = null;
+            long latency = SystemClock.uptimeMillis() - task.startTime;
+            mCompleted++;
+            mTotalLatency += latency;
+            mMaxLatency = Math.max(mMaxLatency, latency);
+            if (mPending != null) {
+                // The input moved on while this was being fetched
+                mStale++;
+            }
+            if (LOGV_ENABLED) {
+                Log.v(LOGTAG, "Suggestions for \"" + task.query + "\" took " + latency
+                        + "ms, " + getStats());
+            }
+            publish(task.query, items);
+        }
+
+        // Cached results shown while the fetch is still running
+        private void deliverProvisional(FetchTask task, List<SuggestItem> items) {
+            if (task != mInFlight) {
+                return;
+            }
+            mProvisional++;
+            publish(task.query, items);
+        }
+
+        private void publish(String query, List<SuggestItem> items) {
+            if (mIncognitoMode) {
+                return;
+            }
+            synchronized (mResultsLock) {
+                mSuggestResults = items;
+                mSuggestQuery = query;
+            }
             mMixedResults = buildSuggestionResults();
             notifyDataSetChanged();
         }
+
+        String getStats() {
+            return "Suggestions: " + mRequests + " requests, " + mCoalesced + " coalesced, "
+                    + mCancelled + " cancelled, " + mCompleted + " completed, " + mProvisional
+                    + " served from cache first, " + mStale + " stale, "
+                    + (mCompleted > 0 ? mTotalLatency / mCompleted : 0) + "ms average, "
+                    + mMaxLatency + "ms max";
+        }
+
+        private class FetchTask implements Runnable {
+
+            final String query;
+            final CancellationSignal signal = new CancellationSignal();
+            final long startTime = SystemClock.uptimeMillis();
+
+            FetchTask(String q) {
+                query = q;
+            }
+
+            @Override
+            public void run() {
+                if (signal.isCanceled()) {
+                    return;
+                }
+                SuggestCursor cursor = new SuggestCursor();
+                cursor.runCachedQuery(query);
+                if (cursor.getCount() > 0) {
+                    final List<SuggestItem> cached = readItems(cursor);
+                    mHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            deliverProvisional(FetchTask.this, cached);
+                        }
+                    });
+                }
+                final List<SuggestItem> results;
+                try {
+                    cursor.runQuery(query, signal);
+                    results = readItems(cursor);
+                } catch (OperationCanceledException e) {
+                    return;
+                } finally {
+                    cursor.close();
+                }
+                if (signal.isCanceled()) {
+                    return;
+                }
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        deliver(FetchTask.this, results);
+                    }
+                });
+            }
+
+            private List<SuggestItem> readItems(SuggestCursor cursor) {
+                List<SuggestItem> items = new ArrayList<SuggestItem>();
+                int count = cursor.getCount();
+                for (int i = 0; i < count; i++) {
+                    items.add(cursor.getItem());
+                    cursor.moveToNext();
+                }
+                return items;
+            }
+        }
     }
 
     SuggestionResults buildSuggestionResults() {
         SuggestionResults mixed = new SuggestionResults();
         List<SuggestItem> filter, suggest;
+        String filterQuery, suggestQuery;
         synchronized (mResultsLock) {
             filter = mFilterResults;
             suggest = mSuggestResults;
+            filterQuery = mFilterQuery;
+            suggestQuery = mSuggestQuery;
         }
         if (filter != null) {
             for (SuggestItem item : filter) {
                 mixed.addResult(item);
             }
         }
-        if (suggest != null) {
-            for (SuggestItem item : suggest) {
-                mixed.addResult(item);
+        if (suggest != null && filterQuery != null && suggestQuery != null) {
+            if (filterQuery.equals(suggestQuery)) {
+                for (SuggestItem item : suggest) {
+                    mixed.addResult(item);
+                }
+            } else if (filterQuery.startsWith(suggestQuery)) {
+                // Until the answer for what is typed now arrives, keep the
+                // older suggestions that still match it
+                String prefix = filterQuery.toLowerCase(Locale.getDefault());
+                for (SuggestItem item : suggest) {
+                    String title = getSuggestionTitle(item);
+                    if (title != null
+                            && title.toLowerCase(Locale.getDefault()).startsWith(prefix)) {
+                        mixed.addResult(item);
+                    }
+                }
             }
         }
         return mixed;
@@ -259,7 +485,7 @@ public class SuggestionsAdapter extends BaseAdapter implements Filterable,
 
         void startSuggestionsAsync(final CharSequence constraint) {
             if (!mIncognitoMode) {
-                new SlowFilterTask().execute(constraint);
+                mFetcher.request(constraint);
             }
         }
 
@@ -286,6 +512,7 @@ public class SuggestionsAdapter extends BaseAdapter implements Filterable,
             }
             synchronized (mResultsLock) {
                 mFilterResults = filterResults;
+                mFilterQuery = constraint != null ? constraint.toString() : "";
             }
             SuggestionResults mixed = buildSuggestionResults();
             res.count = mixed.getLineCount();
@@ -312,6 +539,9 @@ public class SuggestionsAdapter extends BaseAdapter implements Filterable,
             if (fresults.values instanceof SuggestionResults) {
                 mMixedResults = (SuggestionResults) fresults.values;
                 notifyDataSetChanged();
+                if (!mIncognitoMode) {
+                    mPrerenderer.onSuggestions(constraint, mMixedResults.items);
+                }
             }
         }
     }
@@ -378,6 +608,9 @@ public class SuggestionsAdapter extends BaseAdapter implements Filterable,
         public String url;
         public int type;
         public String extra;
+        // Unstripped url and visit count of bookmark and history items
+        public String targetUrl;
+        public int visits;
 
         public SuggestItem(String text, String u, int t) {
             title = text;
@@ -421,8 +654,11 @@ public class SuggestionsAdapter extends BaseAdapter implements Filterable,
                 String title = mCursor.getString(1);
                 String url = mCursor.getString(2);
                 boolean isBookmark = (mCursor.getInt(3) == 1);
-                return new SuggestItem(getTitle(title, url), getUrl(title, url),
+                SuggestItem item = new SuggestItem(getTitle(title, url), getUrl(title, url),
                         isBookmark ? TYPE_BOOKMARK : TYPE_HISTORY);
+                item.targetUrl = url;
+                item.visits = mCursor.getInt(4);
+                return item;
             }
             return null;
         }
@@ -436,26 +672,30 @@ public class SuggestionsAdapter extends BaseAdapter implements Filterable,
             String like = constraint + "%";
             String[] args = null;
             String selection = null;
+            int limit = Math.max(mLinesLandscape, mLinesPortrait);
+            Uri.Builder ub = OmniboxSuggestions.CONTENT_URI.buildUpon();
             if (like.startsWith("http") || like.startsWith("file")) {
                 args = new String[1];
                 args[0] = like;
                 selection = "url LIKE ?";
             } else {
-                args = new String[5];
-                args[0] = "http://" + like;
-                args[1] = "http://www." + like;
-                args[2] = "https://" + like;
-                args[3] = "https://www." + like;
-                // To match against titles.
-                args[4] = like;
-                selection = COMBINED_SELECTION;
+                // Matched in process once the index is built, unless it
+                // leaves out entries that could fill the limit
+                OmniboxIndex index = OmniboxIndex.getInstance();
+                mCursor = index != null ? index.query(constraint.toString(), limit) : null;
+                if (mCursor != null) {
+                    mCursor.moveToFirst();
+                    return;
+                }
+                // Host and title word prefixes are matched by the provider's
+                // full text index
+                ub.appendQueryParameter(OmniboxSuggestions.PARAM_FILTER,
+                        constraint.toString());
             }
-            Uri.Builder ub = OmniboxSuggestions.CONTENT_URI.buildUpon();
-            ub.appendQueryParameter(BrowserContract.PARAM_LIMIT,
-                    Integer.toString(Math.max(mLinesLandscape, mLinesPortrait)));
+            ub.appendQueryParameter(BrowserContract.PARAM_LIMIT, Integer.toString(limit));
             mCursor =
                     mContext.getContentResolver().query(ub.build(), COMBINED_PROJECTION,
-                            selection, (constraint != null) ? args : null, null);
+                            selection, args, null);
             if (mCursor != null) {
                 mCursor.moveToFirst();
             }
@@ -516,13 +756,41 @@ public class SuggestionsAdapter extends BaseAdapter implements Filterable,
 
         @Override
         public void runQuery(CharSequence constraint) {
+            runQuery(constraint, null);
+        }
+
+        /**
+         * Query only what the search engine can answer without a request.
+         */
+        public void runCachedQuery(CharSequence constraint) {
             if (mCursor != null) {
                 mCursor.close();
             }
+            mCursor = null;
+            SearchEngine searchEngine = mSettings.getSearchEngine();
+            if (!TextUtils.isEmpty(constraint) && searchEngine != null
+                    && searchEngine.supportsSuggestions()) {
+                mCursor = searchEngine.getCachedSuggestions(constraint.toString());
+                if (mCursor != null) {
+                    mCursor.moveToFirst();
+                }
+            }
+        }
+
+        /**
+         * Like {@link #runQuery(CharSequence)}, giving up when signal is
+         * cancelled.
+         */
+        public void runQuery(CharSequence constraint, CancellationSignal signal) {
+            if (mCursor != null) {
+                mCursor.close();
+            }
+            mCursor = null;
             SearchEngine searchEngine = mSettings.getSearchEngine();
             if (!TextUtils.isEmpty(constraint)) {
                 if (searchEngine != null && searchEngine.supportsSuggestions()) {
-                    mCursor = searchEngine.getSuggestions(mContext, constraint.toString());
+                    mCursor = searchEngine.getSuggestions(mContext, constraint.toString(),
+                            signal);
                     if (mCursor != null) {
                         mCursor.moveToFirst();
                     }
@@ -538,8 +806,13 @@ public class SuggestionsAdapter extends BaseAdapter implements Filterable,
     }
 
     public void clearCache() {
-        mFilterResults = null;
-        mSuggestResults = null;
+        mFetcher.cancel();
+        synchronized (mResultsLock) {
+            mFilterResults = null;
+            mSuggestResults = null;
+            mFilterQuery = null;
+            mSuggestQuery = null;
+        }
         notifyDataSetInvalidated();
     }
 
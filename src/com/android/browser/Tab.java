@@ -33,10 +33,10 @@ import android.graphics.Paint;
 import android.graphics.Picture;
 import android.graphics.PorterDuff;
 import android.graphics.PorterDuffXfermode;
+import android.graphics.Rect;
 import android.net.Uri;
 import android.net.http.SslError;
 import android.os.Bundle;
-import android.os.Handler;
 import android.os.Message;
 import android.os.SystemClock;
 import android.security.KeyChain;
@@ -79,7 +79,6 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.nio.ByteBuffer;
 import java.security.Principal;
 import java.util.LinkedList;
 import java.util.Map;
@@ -101,10 +100,14 @@ class Tab implements PictureListener {
     // of the browser.
     private static final String CONSOLE_LOGTAG = "browser";
 
-    private static final int MSG_CAPTURE = 42;
-    private static final int CAPTURE_DELAY = 100;
     private static final int INITIAL_PROGRESS = 5;
 
+    // Rough costs used by getMemoryFootprint(). A live WebView holds its
+    // renderer state and tiles, each back/forward entry its serialized
+    // page state.
+    private static final long WEBVIEW_FOOTPRINT = 6 * 1024 * 1024;
+    private static final long HISTORY_ITEM_FOOTPRINT = 64 * 1024;
+
     private static Bitmap sDefaultFavicon;
 
     private static Paint sAlphaPaint = new Paint();
@@ -169,6 +172,9 @@ class Tab implements PictureListener {
     private int mPageLoadProgress;
     // The time the load started, used to find load page time
     private long mLoadStartTime;
+    // The lookup index of the TabControl holding this tab
+    private TabIndex mIndex;
+    private long mLoadFinishTime;
     // Application identifier used to find tabs that another application wants
     // to reuse.
     private String mAppId;
@@ -194,7 +200,20 @@ class Tab implements PictureListener {
     private int mCaptureWidth;
     private int mCaptureHeight;
     private Bitmap mCapture;
-    private Handler mHandler;
+    // Set once mCapture was handed out by getScreenshot(); views may still
+    // display it, so it must not go back to the pool
+    private boolean mCaptureShared;
+    // Uptime of the last capture
+    private long mLastCaptureTime;
+    // Pictures the WebView reported while this tab was its picture
+    // listener, and the one the capture was drawn from, -1 if the capture
+    // may be out of date. Captures skip the draw when nothing changed.
+    private boolean mTrackingPictures;
+    private int mPictureGeneration;
+    private int mCapturedGeneration = -1;
+    private int mCapturedLeft;
+    private int mCapturedTop;
+    private int mCapturedWidth;
     private boolean mUpdateThumbnail;
 
     /**
@@ -349,6 +368,7 @@ class Tab implements PictureListener {
             mPageLoadProgress = INITIAL_PROGRESS;
             mCurrentState = new PageState(mContext,
                     view.isPrivateBrowsingEnabled(), url, favicon);
+            updateIndex();
             mLoadStartTime = SystemClock.uptimeMillis();
 
             if (isPrivateBrowsingEnabled()) {
@@ -388,6 +408,7 @@ class Tab implements PictureListener {
         @Override
         public void onPageFinished(WebView view, String url) {
             mDisableOverrideUrlLoading = false;
+            mLoadFinishTime = SystemClock.uptimeMillis();
             if (!isPrivateBrowsingEnabled()) {
                 LogTag.logPageFinishedLoading(
                         url, SystemClock.uptimeMillis() - mLoadStartTime);
@@ -674,6 +695,18 @@ class Tab implements PictureListener {
             mCurrentState.mSslCertificateError = null;
         }
         mCurrentState.mIncognito = view.isPrivateBrowsingEnabled();
+        updateIndex();
+    }
+
+    void setIndex(TabIndex index) {
+        mIndex = index;
+    }
+
+    // Re-index the tab after its WebView, app id or url changed
+    private void updateIndex() {
+        if (mIndex != null) {
+            mIndex.update(this);
+        }
     }
 
     // Called by DeviceAccountLogin when the Tab needs to have the auto-login UI
@@ -1204,16 +1237,6 @@ class Tab implements PictureListener {
             mId = TabControl.getNextId();
         }
         setWebView(w);
-        mHandler = new Handler() {
-            @Override
-            public void handleMessage(Message m) {
-                switch (m.what) {
-                case MSG_CAPTURE:
-                    capture();
-                    break;
-                }
-            }
-        };
     }
 
     public boolean shouldUpdateThumbnail() {
@@ -1227,23 +1250,24 @@ class Tab implements PictureListener {
      */
     public void refreshIdAfterPreload() {
         mId = TabControl.getNextId();
+        updateIndex();
     }
 
     public void updateShouldCaptureThumbnails() {
         if (mWebViewController.shouldCaptureThumbnails()) {
             synchronized (Tab.this) {
                 if (mCapture == null) {
-                    mCapture = Bitmap.createBitmap(mCaptureWidth, mCaptureHeight,
+                    mCapture = BitmapPool.getInstance().get(mCaptureWidth, mCaptureHeight,
                             Bitmap.Config.RGB_565);
                     mCapture.eraseColor(Color.WHITE);
                     if (mInForeground) {
-                        postCapture();
+                        requestCapture();
                     }
                 }
             }
         } else {
             synchronized (Tab.this) {
-                mCapture = null;
+                releaseCapture();
                 deleteThumbnail();
             }
         }
@@ -1284,7 +1308,7 @@ class Tab implements PictureListener {
         mWebViewController.onSetWebView(this, w);
 
         if (mMainView != null) {
-            mMainView.setPictureListener(null);
+            setTrackingPictures(false);
             if (w != null) {
                 syncCurrentState(w, null);
             } else {
@@ -1304,7 +1328,7 @@ class Tab implements PictureListener {
             mMainView.setDownloadListener(mDownloadListener);
             TabControl tc = mWebViewController.getTabControl();
             if (tc != null && tc.getOnThumbnailUpdatedListener() != null) {
-                mMainView.setPictureListener(this);
+                setTrackingPictures(true);
             }
             if (restore && (mSavedState != null)) {
                 restoreUserAgent();
@@ -1317,6 +1341,7 @@ class Tab implements PictureListener {
                 mSavedState = null;
             }
         }
+        updateIndex();
     }
 
     /**
@@ -1332,6 +1357,23 @@ class Tab implements PictureListener {
         }
     }
 
+    /**
+     * Save the tab's state and destroy its WebViews, leaving only the saved
+     * state and the thumbnail. The tab is brought back by giving it a new
+     * WebView, see {@link TabControl#prefetchTab(Tab)}.
+     */
+    void hibernate() {
+        saveState();
+        destroy();
+    }
+
+    /**
+     * @return true if the tab has no WebView and only holds its saved state
+     */
+    boolean isHibernated() {
+        return mMainView == null;
+    }
+
     /**
      * Remove the tab from the parent
      */
@@ -1349,6 +1391,22 @@ class Tab implements PictureListener {
         deleteThumbnail();
     }
 
+    /**
+     * Drop the capture bitmap once the tab has been closed or stops
+     * capturing. It goes back to the {@link BitmapPool} only if it was
+     * never handed out, otherwise it is left to the garbage collector.
+     */
+    void releaseCapture() {
+        synchronized (Tab.this) {
+            if (!mCaptureShared) {
+                BitmapPool.getInstance().put(mCapture);
+            }
+            mCapture = null;
+            mCaptureShared = false;
+            mCapturedGeneration = -1;
+        }
+    }
+
     /**
      * Create a new subwindow unless a subwindow already exists.
      * @return True if a new subwindow was created. False if one already exists.
@@ -1390,6 +1448,7 @@ class Tab implements PictureListener {
             mSubView.destroy();
             mSubView = null;
             mSubViewContainer = null;
+            updateIndex();
         }
     }
 
@@ -1504,7 +1563,7 @@ class Tab implements PictureListener {
         }
         capture();
         mInForeground = false;
-        pause();
+        // The WebView is paused by TabControl's BackgroundTabThrottler
         mMainView.setOnCreateContextMenuListener(null);
         if (mSubView != null) {
             mSubView.setOnCreateContextMenuListener(null);
@@ -1570,6 +1629,7 @@ class Tab implements PictureListener {
 
     void setSubWebView(WebView subView) {
         mSubView = subView;
+        updateIndex();
     }
 
     View getSubViewContainer() {
@@ -1618,6 +1678,7 @@ class Tab implements PictureListener {
      */
     void setAppId(String id) {
         mAppId = id;
+        updateIndex();
     }
 
     boolean closeOnBack() {
@@ -1720,6 +1781,19 @@ class Tab implements PictureListener {
         return mInPageLoad;
     }
 
+    /**
+     * @return how long the last page load took, or how long the current one
+     *         has been running. A redirect restarts the timer.
+     */
+    long getLoadDuration() {
+        if (mLoadStartTime == 0) {
+            return 0;
+        }
+        long end = mLoadFinishTime >= mLoadStartTime
+                ? mLoadFinishTime : SystemClock.uptimeMillis();
+        return end - mLoadStartTime;
+    }
+
     /**
      * @return The Bundle with the tab's state if it can be saved, otherwise null
      */
@@ -1809,12 +1883,60 @@ class Tab implements PictureListener {
         }
     };
 
+    /**
+     * @return an estimate, in bytes, of the memory held by this tab: its
+     *      WebViews, their back/forward lists and the capture bitmap
+     */
+    long getMemoryFootprint() {
+        long size = getWebViewFootprint(mMainView) + getWebViewFootprint(mSubView);
+        synchronized (Tab.this) {
+            if (mCapture != null) {
+                size += mCapture.getByteCount();
+            }
+        }
+        return size;
+    }
+
+    private static long getWebViewFootprint(WebView view) {
+        if (view == null) {
+            return 0;
+        }
+        WebBackForwardList list = view.copyBackForwardList();
+        return WEBVIEW_FOOTPRINT + list.getSize() * HISTORY_ITEM_FOOTPRINT;
+    }
+
+    /**
+     * @return the capture, for callers that keep or display it. It is no
+     *      longer given back to the {@link BitmapPool}; callers that only
+     *      read it use {@link #copyScreenshot()}.
+     */
     public Bitmap getScreenshot() {
         synchronized (Tab.this) {
+            if (mCapture != null) {
+                mCaptureShared = true;
+            }
             return mCapture;
         }
     }
 
+    /**
+     * @return a copy of the capture from the {@link BitmapPool}, to give back
+     *      once read, or null if there is no capture
+     */
+    Bitmap copyScreenshot() {
+        synchronized (Tab.this) {
+            if (mCapture == null) {
+                return null;
+            }
+            Bitmap copy = BitmapPool.getInstance().get(mCapture.getWidth(),
+                    mCapture.getHeight(), mCapture.getConfig());
+            Canvas c = new Canvas(copy);
+            c.drawBitmap(mCapture, 0, 0, null);
+            c.setBitmap(null);
+            return copy;
+        }
+    }
+
     public boolean isSnapshot() {
         return false;
     }
@@ -1860,6 +1982,7 @@ class Tab implements PictureListener {
             mPageLoadProgress = INITIAL_PROGRESS;
             mInPageLoad = true;
             mCurrentState = new PageState(mContext, false, url, null);
+            updateIndex();
             mWebViewController.onPageStarted(this, mMainView, null);
             WebResourceResponse res = HomeProvider.shouldInterceptRequest(mContext, url);
             if (res != null) {
@@ -1887,12 +2010,26 @@ class Tab implements PictureListener {
         if (mMainView.getContentWidth() <= 0 || mMainView.getContentHeight() <= 0) {
             return;
         }
-        Canvas c = new Canvas(mCapture);
         final int left = mMainView.getScrollX();
         final int top = mMainView.getScrollY() + mMainView.getVisibleTitleHeight();
+        final int width = mMainView.getWidth();
+        TabControl tc = mWebViewController.getTabControl();
+        if (mTrackingPictures && mCapturedGeneration == mPictureGeneration
+                && left == mCapturedLeft && top == mCapturedTop && width == mCapturedWidth) {
+            // No new picture and the same viewport, the capture is current
+            if (tc != null) {
+                tc.getCaptureScheduler().cancel(this);
+            }
+            return;
+        }
+        mCapturedGeneration = mPictureGeneration;
+        mCapturedLeft = left;
+        mCapturedTop = top;
+        mCapturedWidth = width;
+        Canvas c = new Canvas(mCapture);
         int state = c.save();
         c.translate(-left, -top);
-        float scale = mCaptureWidth / (float) mMainView.getWidth();
+        float scale = mCaptureWidth / (float) width;
         c.scale(scale, scale, left, top);
         if (mMainView instanceof BrowserWebView) {
             ((BrowserWebView)mMainView).drawContent(c);
@@ -1908,9 +2045,12 @@ class Tab implements PictureListener {
         c.drawRect(0, mCapture.getHeight() - 1, mCapture.getWidth(),
                 mCapture.getHeight(), sAlphaPaint);
         c.setBitmap(null);
-        mHandler.removeMessages(MSG_CAPTURE);
+        mLastCaptureTime = SystemClock.uptimeMillis();
+        if (tc != null) {
+            tc.getCaptureScheduler().cancel(this);
+        }
+        // DataController skips writing thumbnails that didn't change
         persistThumbnail();
-        TabControl tc = mWebViewController.getTabControl();
         if (tc != null) {
             OnThumbnailUpdatedListener updateListener
                     = tc.getOnThumbnailUpdatedListener();
@@ -1920,14 +2060,33 @@ class Tab implements PictureListener {
         }
     }
 
+    long getLastCaptureTime() {
+        return mLastCaptureTime;
+    }
+
+    /**
+     * Make this tab the picture listener of its WebView, or stop it, while
+     * thumbnails are on screen.
+     */
+    void setTrackingPictures(boolean tracking) {
+        if (mMainView != null) {
+            mMainView.setPictureListener(tracking ? this : null);
+        }
+        mTrackingPictures = tracking && mMainView != null;
+        // Pictures may have been missed, the next capture has to draw
+        mCapturedGeneration = -1;
+    }
+
     @Override
     public void onNewPicture(WebView view, Picture picture) {
-        postCapture();
+        mPictureGeneration++;
+        requestCapture();
     }
 
-    private void postCapture() {
-        if (!mHandler.hasMessages(MSG_CAPTURE)) {
-            mHandler.sendEmptyMessageDelayed(MSG_CAPTURE, CAPTURE_DELAY);
+    private void requestCapture() {
+        TabControl tc = mWebViewController.getTabControl();
+        if (tc != null) {
+            tc.getCaptureScheduler().requestCapture(this);
         }
     }
 
@@ -1971,20 +2130,23 @@ class Tab implements PictureListener {
     }
 
     void updateCaptureFromBlob(byte[] blob) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPreferredConfig = Bitmap.Config.RGB_565;
+        Bitmap thumbnail = BitmapPool.getInstance().decode(blob, options);
+        if (thumbnail == null) {
+            Log.w(LOGTAG, "Failed to decode saved capture, " + blob.length + " bytes");
+            return;
+        }
         synchronized (Tab.this) {
-            if (mCapture == null) {
-                return;
-            }
-            ByteBuffer buffer = ByteBuffer.wrap(blob);
-            try {
-                mCapture.copyPixelsFromBuffer(buffer);
-            } catch (RuntimeException rex) {
-                Log.e(LOGTAG, "Load capture has mismatched sizes; buffer: "
-                        + buffer.capacity() + " blob: " + blob.length
-                        + "capture: " + mCapture.getByteCount());
-                throw rex;
+            if (mCapture != null) {
+                Canvas c = new Canvas(mCapture);
+                c.drawBitmap(thumbnail, null,
+                        new Rect(0, 0, mCapture.getWidth(), mCapture.getHeight()), null);
+                c.setBitmap(null);
+                mCapturedGeneration = -1;
             }
         }
+        BitmapPool.getInstance().put(thumbnail);
     }
 
     @Override
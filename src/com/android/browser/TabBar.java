@@ -466,7 +466,8 @@ public class TabBar extends LinearLayout implements OnClickListener {
 
             @Override
             public void onAnimationStart(Animator animation) {
-                mTabs.addTab(tv);
+                // Preloaded tabs open next to the tab they came from
+                mTabs.addTab(tv, mTabControl.getTabPosition(tab));
             }
 
         });
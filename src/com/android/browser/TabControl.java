@@ -16,14 +16,17 @@
 
 package com.android.browser;
 
+import android.content.ComponentCallbacks2;
 import android.os.Bundle;
+import android.os.Looper;
+import android.os.MessageQueue;
 import android.util.Log;
 import android.webkit.WebView;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
-import java.util.Vector;
 
 class TabControl {
     // Log Tag
@@ -32,25 +35,47 @@ class TabControl {
     // next Tab ID, starting at 1
     private static long sNextId = 1;
 
-    private static final String POSITIONS = "positions";
+    static final String POSITIONS = "positions";
     private static final String CURRENT = "current";
 
     public static interface OnThumbnailUpdatedListener {
         void onThumbnailUpdated(Tab t);
     }
 
+    public static interface OnTabEvictedListener {
+        /**
+         * Called after a background tab's WebView was saved and destroyed
+         * to make room.
+         * @param freed the estimated number of bytes released
+         * @param level the trim level that caused the eviction
+         */
+        void onTabEvicted(Tab t, long freed, int level);
+    }
+
     // Maximum number of tabs.
     private int mMaxTabs;
     // Private array of WebViews that are used as tabs.
     private ArrayList<Tab> mTabs;
     // Queue of most recently viewed tabs.
     private ArrayList<Tab> mTabQueue;
+    // Position of each tab in mTabs.
+    private final HashMap<Tab, Integer> mPositions = new HashMap<Tab, Integer>();
+    // Lookups by id, WebView, app id and url
+    private final TabIndex mIndex = new TabIndex();
     // Current position in mTabs.
     private int mCurrentTab = -1;
     // the main browser controller
     private final Controller mController;
 
     private OnThumbnailUpdatedListener mOnThumbnailUpdatedListener;
+    private OnTabEvictedListener mOnTabEvictedListener;
+    private final ThumbnailCaptureScheduler mCaptureScheduler =
+            new ThumbnailCaptureScheduler();
+    private final BackgroundTabThrottler mThrottler = new BackgroundTabThrottler();
+    // Estimated bytes the tabs may hold before background ones are evicted
+    private final long mMemoryBudget;
+    // Number of tabs either side of the current one to restore live
+    private int mLiveNeighbours;
 
     /**
      * Construct a new TabControl object
@@ -60,6 +85,8 @@ class TabControl {
         mMaxTabs = mController.getMaxTabs();
         mTabs = new ArrayList<Tab>(mMaxTabs);
         mTabQueue = new ArrayList<Tab>(mMaxTabs);
+        mMemoryBudget = mController.getTabMemoryBudget();
+        mLiveNeighbours = mController.getLiveTabNeighbours();
     }
 
     synchronized static long getNextId() {
@@ -148,7 +175,53 @@ class TabControl {
         if (tab == null) {
             return -1;
         }
-        return mTabs.indexOf(tab);
+        Integer position = mPositions.get(tab);
+        return position != null ? position : -1;
+    }
+
+    /**
+     * @return the open tab with the given id, or null
+     */
+    Tab getTabFromId(long id) {
+        return mIndex.getById(id);
+    }
+
+    private void addToTabs(Tab t) {
+        insertIntoTabs(t, mTabs.size());
+    }
+
+    private void insertIntoTabs(Tab t, int position) {
+        mTabs.add(position, t);
+        for (int i = position; i < mTabs.size(); i++) {
+            mPositions.put(mTabs.get(i), i);
+        }
+        mIndex.add(t);
+    }
+
+    private void removeFromTabs(Tab t) {
+        Integer position = mPositions.remove(t);
+        if (position == null) {
+            return;
+        }
+        mTabs.remove((int) position);
+        for (int i = position; i < mTabs.size(); i++) {
+            mPositions.put(mTabs.get(i), i);
+        }
+        mIndex.remove(t);
+    }
+
+    // The tab that comes first in mTabs
+    private Tab getFirst(List<Tab> tabs) {
+        Tab first = null;
+        int firstPosition = Integer.MAX_VALUE;
+        for (Tab t : tabs) {
+            int position = getTabPosition(t);
+            if (position >= 0 && position < firstPosition) {
+                first = t;
+                firstPosition = position;
+            }
+        }
+        return first;
     }
 
     boolean canCreateNewTab() {
@@ -169,17 +242,22 @@ class TabControl {
         return false;
     }
 
-    void addPreloadedTab(Tab tab) {
-        for (Tab current : mTabs) {
-            if (current != null && current.getId() == tab.getId()) {
-                throw new IllegalStateException("Tab with id " + tab.getId() + " already exists: "
-                        + current.toString());
-            }
+    /**
+     * Add a preloaded tab right after the given tab, or last if after is
+     * null or not open.
+     */
+    void addPreloadedTab(Tab tab, Tab after) {
+        Tab current = getTabFromId(tab.getId());
+        if (current != null) {
+            throw new IllegalStateException("Tab with id " + tab.getId() + " already exists: "
+                    + current.toString());
         }
-        mTabs.add(tab);
+        int position = after != null ? getTabPosition(after) : -1;
+        insertIntoTabs(tab, position >= 0 ? position + 1 : mTabs.size());
         tab.setController(mController);
         mController.onSetWebView(tab, tab.getWebView());
         tab.putInBackground();
+        mThrottler.onBackground(tab);
     }
 
     /**
@@ -202,9 +280,10 @@ class TabControl {
 
         // Create a new tab and add it to the tab list
         Tab t = new Tab(mController, w, state);
-        mTabs.add(t);
+        addToTabs(t);
         // Initially put the tab in the background.
         t.putInBackground();
+        mThrottler.onBackground(t);
         return t;
     }
 
@@ -239,7 +318,7 @@ class TabControl {
         Tab current = getCurrentTab();
 
         // Remove t from our list of tabs.
-        mTabs.remove(t);
+        removeFromTabs(t);
 
         // Put the tab in the background only if it is the current one.
         if (current == t) {
@@ -255,9 +334,12 @@ class TabControl {
         t.destroy();
         // clear it's references to parent and children
         t.removeFromTree();
+        t.releaseCapture();
 
         // Remove it from the queue of viewed tabs.
         mTabQueue.remove(t);
+        mCaptureScheduler.cancel(t);
+        mThrottler.onRemoved(t);
         return true;
     }
 
@@ -269,7 +351,11 @@ class TabControl {
             t.destroy();
         }
         mTabs.clear();
+        mPositions.clear();
+        mIndex.clear();
         mTabQueue.clear();
+        mCaptureScheduler.cancelAll();
+        mThrottler.cancelAll();
     }
 
     /**
@@ -326,6 +412,38 @@ class TabControl {
         }
     }
 
+    /**
+     * Like saveState, but only saves the state of dirtyTabs. The positions
+     * and current tab are always saved, so this can be layered on top of
+     * an earlier save of the other tabs.
+     * @param outState
+     * @param dirtyTabs the tabs that changed since they were last saved
+     */
+    void saveState(Bundle outState, Collection<Tab> dirtyTabs) {
+        final int numTabs = getTabCount();
+        if (numTabs == 0) {
+            return;
+        }
+        long[] ids = new long[numTabs];
+        int i = 0;
+        for (Tab tab : mTabs) {
+            if (dirtyTabs.contains(tab)) {
+                Bundle tabState = tab.saveState();
+                if (tabState == null) {
+                    ids[i++] = -1;
+                    // Since we won't be restoring the thumbnail, delete it
+                    tab.deleteThumbnail();
+                    continue;
+                }
+                outState.putBundle(Long.toString(tab.getId()), tabState);
+            }
+            ids[i++] = tab.getId();
+        }
+        outState.putLongArray(POSITIONS, ids);
+        Tab current = getCurrentTab();
+        outState.putLong(CURRENT, current != null ? current.getId() : -1);
+    }
+
     /**
      * Check if the state can be restored.  If the state can be restored, the
      * current tab id is returned.  This can be passed to restoreState below
@@ -372,17 +490,19 @@ class TabControl {
      * @param currentId The tab id to restore.
      * @param inState The saved state of all the tabs.
      * @param restoreIncognitoTabs Restoring private browsing tabs
-     * @param restoreAll All webviews get restored, not just the current tab
+     * @param restoreNeighbours The tabs next to the current one are restored
+     *        live too, the rest stay hibernated until selected
      *        (this does not override handling of incognito tabs)
      */
     void restoreState(Bundle inState, long currentId,
-            boolean restoreIncognitoTabs, boolean restoreAll) {
+            boolean restoreIncognitoTabs, boolean restoreNeighbours) {
         if (currentId == -1) {
             return;
         }
         long[] ids = inState.getLongArray(POSITIONS);
         long maxId = -Long.MAX_VALUE;
         HashMap<Long, Tab> tabMap = new HashMap<Long, Tab>();
+        Tab current = null;
         for (long id : ids) {
             if (id > maxId) {
                 maxId = id;
@@ -395,27 +515,19 @@ class TabControl {
             } else if (!restoreIncognitoTabs
                     && state.getBoolean(Tab.INCOGNITO)) {
                 // ignore tab
-            } else if (id == currentId || restoreAll) {
-                Tab t = createNewTab(state, false);
-                if (t == null) {
-                    // We could "break" at this point, but we want
-                    // sNextId to be set correctly.
-                    continue;
-                }
-                tabMap.put(id, t);
-                // Me must set the current tab before restoring the state
-                // so that all the client classes are set.
-                if (id == currentId) {
-                    setCurrentTab(t);
-                }
             } else {
-                // Create a new tab and don't restore the state yet, add it
-                // to the tab list
+                // Every tab comes back hibernated, holding just its state
+                // and thumbnail. The current one gets its WebView when it
+                // is selected below.
                 Tab t = new Tab(mController, state);
                 tabMap.put(id, t);
-                mTabs.add(t);
-                // added the tab to the front as they are not current
-                mTabQueue.add(0, t);
+                addToTabs(t);
+                if (id == currentId) {
+                    current = t;
+                } else {
+                    // added the tab to the front as they are not current
+                    mTabQueue.add(0, t);
+                }
             }
         }
 
@@ -423,10 +535,20 @@ class TabControl {
         // and new tabs
         sNextId = maxId + 1;
 
-        if (mCurrentTab == -1) {
-            if (getTabCount() > 0) {
-                setCurrentTab(getTab(0));
-            }
+        if (current != null) {
+            setCurrentTab(current);
+        } else if (getTabCount() > 0) {
+            setCurrentTab(getTab(0));
+        }
+        if (restoreNeighbours && mLiveNeighbours > 0) {
+            // Wake the tabs next to the current one once startup settles
+            Looper.myQueue().addIdleHandler(new MessageQueue.IdleHandler() {
+                @Override
+                public boolean queueIdle() {
+                    prefetchNeighbours();
+                    return false;
+                }
+            });
         }
         // restore parent/child relationships
         for (long id : ids) {
@@ -445,65 +567,129 @@ class TabControl {
     }
 
     /**
-     * Free the memory in this order, 1) free the background tabs; 2) free the
-     * WebView cache;
+     * Give a hibernated tab its WebView back without selecting it, so that
+     * switching to it later doesn't have to wait for the restore.
+     * @return true if the tab is live afterwards
      */
-    void freeMemory() {
-        if (getTabCount() == 0) return;
+    boolean prefetchTab(Tab t) {
+        if (t == null || !mTabs.contains(t)) {
+            return false;
+        }
+        if (t.isHibernated()) {
+            rehydrate(t);
+            t.putInBackground();
+            mThrottler.onBackground(t);
+        }
+        return true;
+    }
 
-        // free the least frequently used background tabs
-        Vector<Tab> tabs = getHalfLeastUsedTabs(getCurrentTab());
-        if (tabs.size() > 0) {
-            Log.w(LOGTAG, "Free " + tabs.size() + " tabs in the browser");
-            for (Tab t : tabs) {
-                // store the WebView's state.
-                t.saveState();
-                // destroy the tab
-                t.destroy();
-            }
+    private void prefetchNeighbours() {
+        if (mCurrentTab == -1) {
             return;
         }
-
-        // free the WebView's unused memory (this includes the cache)
-        Log.w(LOGTAG, "Free WebView's unused memory and cache");
-        WebView view = getCurrentWebView();
-        if (view != null) {
-            view.freeMemory();
+        for (int i = 1; i <= mLiveNeighbours; i++) {
+            prefetchTab(getTab(mCurrentTab - i));
+            prefetchTab(getTab(mCurrentTab + i));
         }
     }
 
-    private Vector<Tab> getHalfLeastUsedTabs(Tab current) {
-        Vector<Tab> tabsToGo = new Vector<Tab>();
+    private void rehydrate(Tab t) {
+        // Same work as in createNewTab() except don't do new Tab()
+        t.setWebView(createNewWebView(t.isPrivateBrowsingEnabled()));
+    }
 
-        // Don't do anything if we only have 1 tab or if the current tab is
-        // null.
-        if (getTabCount() == 1 || current == null) {
-            return tabsToGo;
+    /**
+     * Bring the tabs back under the memory budget for the given trim level,
+     * see {@link android.content.ComponentCallbacks2}. Background tabs are
+     * evicted least recently used first; the current tab and its parent are
+     * always kept. At TRIM_MEMORY_COMPLETE the current WebView is also asked
+     * to free what it can.
+     */
+    void trimMemory(int level) {
+        if (getTabCount() == 0) return;
+
+        long budget = getBudgetForLevel(level);
+        if (budget >= 0) {
+            evictTabs(budget, level);
         }
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE) {
+            // free the WebView's unused memory (this includes the cache)
+            Log.w(LOGTAG, "Free WebView's unused memory and cache");
+            WebView view = getCurrentWebView();
+            if (view != null) {
+                view.freeMemory();
+            }
+        }
+    }
 
-        if (mTabQueue.size() == 0) {
-            return tabsToGo;
+    /**
+     * @return the budget to trim to at the given level, or -1 to leave the
+     *      tabs alone
+     */
+    private long getBudgetForLevel(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE) {
+            return 0;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            return mMemoryBudget / 4;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+            return mMemoryBudget / 2;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            // Not a memory signal, just that we are no longer visible
+            return -1;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            return mMemoryBudget / 4;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            return mMemoryBudget / 2;
         }
+        return mMemoryBudget;
+    }
 
-        // Rip through the queue starting at the beginning and tear down half of
-        // available tabs which are not the current tab or the parent of the
-        // current tab.
-        int openTabCount = 0;
-        for (Tab t : mTabQueue) {
-            if (t != null && t.getWebView() != null) {
-                openTabCount++;
-                if (t != current && t != current.getParent()) {
-                    tabsToGo.add(t);
-                }
+    /**
+     * Save and destroy background tabs, least recently used first, until the
+     * estimated footprint of all tabs is within budget.
+     * @return the number of tabs evicted
+     */
+    private int evictTabs(long budget, int level) {
+        Tab current = getCurrentTab();
+        long total = getMemoryFootprint();
+        if (total <= budget || current == null) {
+            return 0;
+        }
+        int evicted = 0;
+        // Copy the queue, the listener may close tabs
+        for (Tab t : new ArrayList<Tab>(mTabQueue)) {
+            if (total <= budget) {
+                break;
+            }
+            if (t == null || t.isHibernated()
+                    || t == current || t == current.getParent()) {
+                continue;
+            }
+            long before = t.getMemoryFootprint();
+            t.hibernate();
+            long freed = before - t.getMemoryFootprint();
+            total -= freed;
+            evicted++;
+            if (mOnTabEvictedListener != null) {
+                mOnTabEvictedListener.onTabEvicted(t, freed, level);
             }
         }
-
-        openTabCount /= 2;
-        if (tabsToGo.size() > openTabCount) {
-            tabsToGo.setSize(openTabCount);
+        if (evicted > 0) {
+            Log.w(LOGTAG, "Freed " + evicted + " tabs in the browser, now using ~"
+                    + (total / 1024) + "k of a " + (budget / 1024) + "k budget");
         }
+        return evicted;
+    }
 
-        return tabsToGo;
+    /**
+     * @return the estimated memory used by all tabs, in bytes
+     */
+    long getMemoryFootprint() {
+        long total = 0;
+        for (Tab t : mTabs) {
+            total += t.getMemoryFootprint();
+        }
+        return total;
     }
 
     Tab getLeastUsedTab(Tab current) {
@@ -530,12 +716,7 @@ class TabControl {
      * @param view The WebView used to find the tab.
      */
     Tab getTabFromView(WebView view) {
-        for (Tab t : mTabs) {
-            if (t.getSubWebView() == view || t.getWebView() == view) {
-                return t;
-            }
-        }
-        return null;
+        return mIndex.getByView(view);
     }
 
     /**
@@ -546,12 +727,7 @@ class TabControl {
         if (id == null) {
             return null;
         }
-        for (Tab t : mTabs) {
-            if (id.equals(t.getAppId())) {
-                return t;
-            }
-        }
-        return null;
+        return getFirst(mIndex.getByAppId(id));
     }
 
     /**
@@ -589,12 +765,7 @@ class TabControl {
             return currentTab;
         }
         // Now check all the rest.
-        for (Tab tab : mTabs) {
-            if (tabMatchesUrl(tab, url)) {
-                return tab;
-            }
-        }
-        return null;
+        return getFirst(mIndex.getByUrl(url));
     }
 
     /**
@@ -648,6 +819,7 @@ class TabControl {
         }
         if (current != null) {
             current.putInBackground();
+            mThrottler.onBackground(current);
             mCurrentTab = -1;
         }
         if (newTab == null) {
@@ -662,15 +834,12 @@ class TabControl {
         mTabQueue.add(newTab);
 
         // Display the new current tab
-        mCurrentTab = mTabs.indexOf(newTab);
-        WebView mainView = newTab.getWebView();
-        boolean needRestore = mainView == null;
-        if (needRestore) {
-            // Same work as in createNewTab() except don't do new Tab()
-            mainView = createNewWebView();
-            newTab.setWebView(mainView);
+        mCurrentTab = getTabPosition(newTab);
+        if (newTab.isHibernated()) {
+            rehydrate(newTab);
         }
         newTab.putInForeground();
+        mThrottler.onForeground(newTab);
         return true;
     }
 
@@ -680,13 +849,15 @@ class TabControl {
         mController.setActiveTab(tab);
     }
 
+    public void setOnTabEvictedListener(OnTabEvictedListener listener) {
+        mOnTabEvictedListener = listener;
+    }
+
     public void setOnThumbnailUpdatedListener(OnThumbnailUpdatedListener listener) {
         mOnThumbnailUpdatedListener = listener;
+        mCaptureScheduler.setThumbnailsVisible(listener != null);
         for (Tab t : mTabs) {
-            WebView web = t.getWebView();
-            if (web != null) {
-                web.setPictureListener(listener != null ? t : null);
-            }
+            t.setTrackingPictures(listener != null);
         }
     }
 
@@ -694,4 +865,8 @@ class TabControl {
         return mOnThumbnailUpdatedListener;
     }
 
+    ThumbnailCaptureScheduler getCaptureScheduler() {
+        return mCaptureScheduler;
+    }
+
 }
@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser;
+
+import android.webkit.WebView;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Hash indexes over the open tabs by id, WebView, application id and url,
+ * so that {@link TabControl} lookups don't scan every tab. A tab is indexed
+ * under the keys it had when it was last added or updated; while it is in
+ * the index the tab calls {@link #update(Tab)} when they change.
+ *
+ * Urls are indexed exactly as TabControl compares them, by both the current
+ * and the original url.
+ */
+class TabIndex {
+
+    private final HashMap<Long, Tab> mById = new HashMap<Long, Tab>();
+    private final HashMap<WebView, Tab> mByView = new HashMap<WebView, Tab>();
+    private final HashMap<String, List<Tab>> mByAppId = new HashMap<String, List<Tab>>();
+    private final HashMap<String, List<Tab>> mByUrl = new HashMap<String, List<Tab>>();
+    // The keys each tab is indexed under
+    private final HashMap<Tab, Keys> mKeys = new HashMap<Tab, Keys>();
+
+    private static class Keys {
+        long id;
+        WebView view;
+        WebView subView;
+        String appId;
+        String url;
+        String originalUrl;
+
+        Keys(Tab t) {
+            id = t.getId();
+            view = t.getWebView();
+            subView = t.getSubWebView();
+            appId = t.getAppId();
+            url = t.getUrl();
+            originalUrl = t.getOriginalUrl();
+        }
+    }
+
+    void add(Tab t) {
+        t.setIndex(this);
+        Keys keys = new Keys(t);
+        mKeys.put(t, keys);
+        mById.put(keys.id, t);
+        if (keys.view != null) {
+            mByView.put(keys.view, t);
+        }
+        if (keys.subView != null) {
+            mByView.put(keys.subView, t);
+        }
+        put(mByAppId, keys.appId, t);
+        put(mByUrl, keys.url, t);
+        if (keys.originalUrl != null && !keys.originalUrl.equals(keys.url)) {
+            put(mByUrl, keys.originalUrl, t);
+        }
+    }
+
+    void remove(Tab t) {
+        Keys keys = mKeys.remove(t);
+        if (keys == null) {
+            return;
+        }
+        t.setIndex(null);
+        if (mById.get(keys.id) == t) {
+            mById.remove(keys.id);
+        }
+        if (keys.view != null && mByView.get(keys.view) == t) {
+            mByView.remove(keys.view);
+        }
+        if (keys.subView != null && mByView.get(keys.subView) == t) {
+            mByView.remove(keys.subView);
+        }
+        take(mByAppId, keys.appId, t);
+        take(mByUrl, keys.url, t);
+        take(mByUrl, keys.originalUrl, t);
+    }
+
+    /**
+     * Index the tab under its current keys.
+     */
+    void update(Tab t) {
+        if (mKeys.containsKey(t)) {
+            remove(t);
+            add(t);
+        }
+    }
+
+    void clear() {
+        for (Tab t : mKeys.keySet()) {
+            t.setIndex(null);
+        }
+        mById.clear();
+        mByView.clear();
+        mByAppId.clear();
+        mByUrl.clear();
+        mKeys.clear();
+    }
+
+    Tab getById(long id) {
+        return mById.get(id);
+    }
+
+    Tab getByView(WebView view) {
+        return mByView.get(view);
+    }
+
+    /**
+     * @return the tabs with the application id, possibly empty
+     */
+    List<Tab> getByAppId(String appId) {
+        return get(mByAppId, appId);
+    }
+
+    /**
+     * @return the tabs whose current or original url is url, possibly empty
+     */
+    List<Tab> getByUrl(String url) {
+        return get(mByUrl, url);
+    }
+
+    private static List<Tab> get(HashMap<String, List<Tab>> map, String key) {
+        List<Tab> tabs = key != null ? map.get(key) : null;
+        return tabs != null ? tabs : new ArrayList<Tab>(0);
+    }
+
+    private static void put(HashMap<String, List<Tab>> map, String key, Tab t) {
+        if (key == null) {
+            return;
+        }
+        List<Tab> tabs = map.get(key);
+        if (tabs == null) {
+            // Almost always a single tab per key
+            tabs = new ArrayList<Tab>(1);
+            map.put(key, tabs);
+        }
+        tabs.add(t);
+    }
+
+    private static void take(HashMap<String, List<Tab>> map, String key, Tab t) {
+        if (key == null) {
+            return;
+        }
+        List<Tab> tabs = map.get(key);
+        if (tabs != null) {
+            tabs.remove(t);
+            if (tabs.isEmpty()) {
+                map.remove(key);
+            }
+        }
+    }
+}
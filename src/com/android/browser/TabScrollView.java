@@ -127,7 +127,18 @@ public class TabScrollView extends HorizontalScrollView {
     }
 
     void addTab(View tab) {
-        mContentView.addView(tab);
+        addTab(tab, mContentView.getChildCount());
+    }
+
+    // index < 0 adds the tab last
+    void addTab(View tab, int index) {
+        if (index < 0 || index > mContentView.getChildCount()) {
+            index = mContentView.getChildCount();
+        }
+        mContentView.addView(tab, index);
+        if (mSelected >= index) {
+            mSelected++;
+        }
         tab.setActivated(false);
     }
 
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.os.SystemClock;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Decides when tabs redraw their thumbnails. Content changes only ask for
+ * a capture; the scheduler holds each tab to a minimum interval between
+ * captures, so animating pages don't redraw on every frame, and runs the
+ * captures that are due in batches that fit in a frame. While no thumbnails
+ * are on screen, captures for background tabs are dropped, they are taken
+ * again when the tab goes to the background.
+ */
+class ThumbnailCaptureScheduler {
+
+    // Delay before the first capture after a change, to coalesce bursts
+    private static final long CAPTURE_DELAY = 100;
+    // Minimum time between two captures of the same tab
+    private static final long MIN_CAPTURE_INTERVAL = 500;
+    // Time a batch of captures may take before yielding to the next frame
+    private static final long FRAME_BUDGET = 8;
+    private static final long FRAME_INTERVAL = 16;
+
+    private static final int MSG_RUN = 1;
+
+    // Tab -> uptime at which it may be captured
+    private final LinkedHashMap<Tab, Long> mPending = new LinkedHashMap<Tab, Long>();
+    private boolean mThumbnailsVisible;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper()) {
+        @Override
+        public void handleMessage(Message msg) {
+            if (msg.what == MSG_RUN) {
+                runPending();
+            }
+        }
+    };
+
+    /**
+     * Ask for the tab's thumbnail to be redrawn. Repeated requests before
+     * the capture happens are merged.
+     */
+    void requestCapture(Tab t) {
+        if (mPending.containsKey(t)) {
+            return;
+        }
+        long now = SystemClock.uptimeMillis();
+        long due = Math.max(now + CAPTURE_DELAY,
+                t.getLastCaptureTime() + MIN_CAPTURE_INTERVAL);
+        mPending.put(t, due);
+        scheduleNext(now);
+    }
+
+    /**
+     * Forget about a pending capture, because the tab was captured or
+     * closed.
+     */
+    void cancel(Tab t) {
+        mPending.remove(t);
+    }
+
+    void cancelAll() {
+        mPending.clear();
+        mHandler.removeMessages(MSG_RUN);
+    }
+
+    /**
+     * Tell the scheduler whether tab thumbnails are on screen, i.e. the tab
+     * switcher is showing.
+     */
+    void setThumbnailsVisible(boolean visible) {
+        mThumbnailsVisible = visible;
+        if (!visible) {
+            Iterator<Tab> it = mPending.keySet().iterator();
+            while (it.hasNext()) {
+                if (!it.next().inForeground()) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    boolean areThumbnailsVisible() {
+        return mThumbnailsVisible;
+    }
+
+    private void runPending() {
+        long start = SystemClock.uptimeMillis();
+        long now = start;
+        Iterator<Map.Entry<Tab, Long>> it = mPending.entrySet().iterator();
+        while (it.hasNext() && now - start < FRAME_BUDGET) {
+            Map.Entry<Tab, Long> entry = it.next();
+            if (entry.getValue() > now) {
+                continue;
+            }
+            Tab t = entry.getKey();
+            it.remove();
+            t.capture();
+            now = SystemClock.uptimeMillis();
+            // capture() may have cancelled other requests
+            it = mPending.entrySet().iterator();
+        }
+        if (now - start >= FRAME_BUDGET) {
+            // Over budget, leave the rest for after the next frame
+            now += FRAME_INTERVAL;
+        }
+        scheduleNext(now);
+    }
+
+    private void scheduleNext(long earliest) {
+        mHandler.removeMessages(MSG_RUN);
+        if (mPending.isEmpty()) {
+            return;
+        }
+        long next = Long.MAX_VALUE;
+        for (long due : mPending.values()) {
+            next = Math.min(next, due);
+        }
+        mHandler.sendEmptyMessageAtTime(MSG_RUN, Math.max(next, earliest));
+    }
+}
@@ -52,8 +52,6 @@ public interface UI {
 
     public boolean onMenuKey();
 
-    public boolean needsRestoreAllTabs();
-
     public void addTab(Tab tab);
 
     public void removeTab(Tab tab);
@@ -73,6 +73,8 @@ public interface UiController {
 
     void handleNewIntent(Intent intent);
 
+    boolean openPreloadedTabFrom(Tab parent, Intent intent);
+
     boolean shouldShowErrorConsole();
 
     void hideCustomView();
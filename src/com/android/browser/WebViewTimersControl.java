@@ -32,7 +32,8 @@ public class WebViewTimersControl {
     private static WebViewTimersControl sInstance;
 
     private boolean mBrowserActive;
-    private boolean mPrerenderActive;
+    // Number of preloads in progress
+    private int mPrerenderCount;
 
     /**
      * Get the static instance. Must be called from UI thread.
@@ -58,7 +59,7 @@ public class WebViewTimersControl {
     }
 
     private void maybePauseTimers(WebView wv) {
-        if (!mBrowserActive && !mPrerenderActive && wv != null) {
+        if (!mBrowserActive && mPrerenderCount == 0 && wv != null) {
             if (LOGD_ENABLED) Log.d(LOGTAG, "Pausing webview timers, view=" + wv);
             wv.pauseTimers();
         }
@@ -78,13 +79,13 @@ public class WebViewTimersControl {
 
     public void onPrerenderStart(WebView wv) {
         if (LOGD_ENABLED) Log.d(LOGTAG, "onPrerenderStart");
-        mPrerenderActive = true;
+        mPrerenderCount++;
         resumeTimers(wv);
     }
 
     public void onPrerenderDone(WebView wv) {
         if (LOGD_ENABLED) Log.d(LOGTAG, "onPrerenderDone");
-        mPrerenderActive = false;
+        mPrerenderCount = Math.max(0, mPrerenderCount - 1);
         maybePauseTimers(wv);
     }
 
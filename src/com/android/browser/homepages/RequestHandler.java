@@ -30,6 +30,7 @@ import android.util.Log;
 
 import com.android.browser.R;
 import com.android.browser.homepages.Template.ListEntityIterator;
+import com.android.browser.provider.BrowserProvider2;
 
 import java.io.File;
 import java.io.IOException;
@@ -110,7 +111,7 @@ public class RequestHandler extends Thread {
         Template t = Template.getCachedTemplate(mContext, R.raw.most_visited);
         Cursor historyResults = mContext.getContentResolver().query(
                 History.CONTENT_URI, PROJECTION, SELECTION,
-                null, History.VISITS + " DESC LIMIT 12");
+                null, BrowserProvider2.HISTORY_FRECENCY + " DESC LIMIT 12");
         Cursor cursor = historyResults;
         try {
             if (cursor.getCount() < 12) {
@@ -35,7 +35,15 @@ import android.database.MatrixCursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.os.ParcelFileDescriptor;
+import android.os.Process;
+import android.os.SystemClock;
 import android.provider.BaseColumns;
 import android.provider.Browser;
 import android.provider.Browser.BookmarkColumns;
@@ -61,12 +69,16 @@ import com.google.common.annotations.VisibleForTesting;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class BrowserProvider2 extends SQLiteContentProvider {
 
@@ -77,6 +89,10 @@ public class BrowserProvider2 extends SQLiteContentProvider {
     static final Uri LEGACY_AUTHORITY_URI = new Uri.Builder()
             .authority(LEGACY_AUTHORITY).scheme("content").build();
 
+    /**
+     * Tab thumbnails, keyed by tab id. These are kept in files rather than
+     * in the database, see {@link ThumbnailStore}.
+     */
     public static interface Thumbnails {
         public static final Uri CONTENT_URI = Uri.withAppendedPath(
                 BrowserContract.AUTHORITY_URI, "thumbnails");
@@ -84,6 +100,61 @@ public class BrowserProvider2 extends SQLiteContentProvider {
         public static final String THUMBNAIL = "thumbnail";
     }
 
+    static final String THUMBNAILS_DIRECTORY = "thumbnails";
+    static final long THUMBNAILS_BUDGET = 8 * 1024 * 1024;
+
+    /**
+     * The images behind the favicon, thumbnail and touch icon columns. The
+     * images table only stores hashes, the bytes live in an
+     * {@link ImageBlobStore}. List queries can ask for the *_URI columns
+     * and open the image lazily instead of carrying it in the cursor.
+     */
+    public static interface ImageBlobs {
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(
+                BrowserContract.AUTHORITY_URI, "image_blobs");
+        public static final String CONTENT_ITEM_TYPE = "image/*";
+        public static final String FAVICON_URI = "favicon_uri";
+        public static final String THUMBNAIL_URI = "thumbnail_uri";
+        public static final String TOUCH_ICON_URI = "touch_icon_uri";
+    }
+
+    static final String IMAGE_BLOBS_DIRECTORY = "images";
+    // Only sweep unreferenced images this often, it lists the whole store
+    static final long IMAGE_BLOBS_SWEEP_INTERVAL = 10 * 60 * 1000;
+
+    // Image collection runs this long after a write, in slices of at most
+    // IMAGE_GC_SLICE_MILLIS spaced so writers get the database in between
+    static final long IMAGE_GC_DELAY = 1000;
+    static final long IMAGE_GC_SLICE_MILLIS = 50;
+    static final long IMAGE_GC_SLICE_INTERVAL = 100;
+    static final int IMAGE_GC_BATCH_SIZE = 50;
+
+    /**
+     * History column ranking urls by how often and how recently they were
+     * visited. Every visit adds {@link #FRECENCY_VISIT_WEIGHT} and the score
+     * halves every {@link #FRECENCY_HALF_LIFE}, so top N reads can walk the
+     * index on it instead of sorting on visits and dates.
+     */
+    public static final String HISTORY_FRECENCY = "frecency";
+    public static final int FRECENCY_VISIT_WEIGHT = 100;
+    public static final long FRECENCY_HALF_LIFE = 30L * 24 * 60 * 60 * 1000;
+    /**
+     * History update parameter: visits to add to the updated rows, along with
+     * their frecency. The counts are added in the same statement as the other
+     * values, so a concurrent decay is not undone by a stale read.
+     */
+    public static final String PARAM_ADD_VISITS = "addVisits";
+
+    // The decay is applied to all rows at most every FRECENCY_DECAY_INTERVAL,
+    // in batches of FRECENCY_DECAY_BATCH_SIZE rows spaced like image collection
+    static final long FRECENCY_DECAY_INTERVAL = 12 * 60 * 60 * 1000;
+    static final long FRECENCY_DECAY_CHECK_DELAY = 60 * 1000;
+    static final int FRECENCY_DECAY_BATCH_SIZE = 500;
+    @VisibleForTesting
+    public static final String KEY_FRECENCY_DECAYED = "frecency_decayed";
+    static final String KEY_FRECENCY_DECAY_FROM = "frecency_decay_from";
+    static final String KEY_FRECENCY_DECAY_FACTOR = "frecency_decay_factor";
+
     public static interface OmniboxSuggestions {
         public static final Uri CONTENT_URI = Uri.withAppendedPath(
                 BrowserContract.AUTHORITY_URI, "omnibox_suggestions");
@@ -91,6 +162,15 @@ public class BrowserProvider2 extends SQLiteContentProvider {
         public static final String URL = "url";
         public static final String TITLE = "title";
         public static final String IS_BOOKMARK = "bookmark";
+        public static final String VISITS = "visits";
+        public static final String DATE = "date";
+        public static final String FRECENCY = HISTORY_FRECENCY;
+
+        /**
+         * Query parameter holding the text typed into the omnibox. When set
+         * the matches come from the full text index rather than the selection.
+         */
+        public static final String PARAM_FILTER = "filter";
     }
 
     static final String TABLE_BOOKMARKS = "bookmarks";
@@ -100,7 +180,9 @@ public class BrowserProvider2 extends SQLiteContentProvider {
     static final String TABLE_SYNC_STATE = "syncstate";
     static final String TABLE_SETTINGS = "settings";
     static final String TABLE_SNAPSHOTS = "snapshots";
+    // No longer used, tab thumbnails moved to ThumbnailStore in version 35
     static final String TABLE_THUMBNAILS = "thumbnails";
+    static final String TABLE_OMNIBOX_INDEX = "omnibox_fts";
 
     static final String TABLE_BOOKMARKS_JOIN_IMAGES = "bookmarks LEFT OUTER JOIN images " +
             "ON bookmarks.url = images." + Images.URL;
@@ -137,13 +219,20 @@ public class BrowserProvider2 extends SQLiteContentProvider {
             "history.url LIKE ? OR history.url LIKE ? OR history.url LIKE ? OR history.url LIKE ?"
             + " OR history.title LIKE ? OR bookmarks.title LIKE ?";
 
+    private static final String DEFAULT_SORT_OMNIBOX_SUGGESTIONS =
+            "bookmark DESC, frecency DESC";
+
     private static final String ZERO_QUERY_SUGGEST_SELECTION =
             TABLE_HISTORY + "." + History.DATE_LAST_VISITED + " != 0";
 
-    private static final String IMAGE_PRUNE =
-            "url_key NOT IN (SELECT url FROM bookmarks " +
-            "WHERE url IS NOT NULL AND deleted == 0) AND url_key NOT IN " +
-            "(SELECT url FROM history WHERE url IS NOT NULL)";
+    // Images that may have lost their last bookmark or history row are
+    // queued here by triggers and collected in the background
+    static final String TABLE_IMAGE_GC = "image_gc";
+
+    private static final String IMAGE_COLLECT =
+            Images.URL + "=? AND NOT EXISTS (SELECT 1 FROM bookmarks " +
+            "WHERE url=? AND deleted=0) AND NOT EXISTS " +
+            "(SELECT 1 FROM history WHERE url=?)";
 
     static final int THUMBNAILS = 10;
     static final int THUMBNAILS_ID = 11;
@@ -166,6 +255,7 @@ public class BrowserProvider2 extends SQLiteContentProvider {
     static final int SYNCSTATE_ID = 4001;
 
     static final int IMAGES = 5000;
+    static final int IMAGE_BLOBS_ID = 5001;
 
     static final int COMBINED = 6000;
     static final int COMBINED_ID = 6001;
@@ -222,6 +312,7 @@ public class BrowserProvider2 extends SQLiteContentProvider {
         matcher.addURI(authority, "syncstate", SYNCSTATE);
         matcher.addURI(authority, "syncstate/#", SYNCSTATE_ID);
         matcher.addURI(authority, "images", IMAGES);
+        matcher.addURI(authority, "image_blobs/*", IMAGE_BLOBS_ID);
         matcher.addURI(authority, "combined", COMBINED);
         matcher.addURI(authority, "combined/#", COMBINED_ID);
         matcher.addURI(authority, "settings", SETTINGS);
@@ -258,6 +349,7 @@ public class BrowserProvider2 extends SQLiteContentProvider {
         map.put(Bookmarks.FAVICON, Bookmarks.FAVICON);
         map.put(Bookmarks.THUMBNAIL, Bookmarks.THUMBNAIL);
         map.put(Bookmarks.TOUCH_ICON, Bookmarks.TOUCH_ICON);
+        putImageUriColumns(map);
         map.put(Bookmarks.IS_FOLDER, Bookmarks.IS_FOLDER);
         map.put(Bookmarks.PARENT, Bookmarks.PARENT);
         map.put(Bookmarks.POSITION, Bookmarks.POSITION);
@@ -308,9 +400,11 @@ public class BrowserProvider2 extends SQLiteContentProvider {
         map.put(History.FAVICON, History.FAVICON);
         map.put(History.THUMBNAIL, History.THUMBNAIL);
         map.put(History.TOUCH_ICON, History.TOUCH_ICON);
+        putImageUriColumns(map);
         map.put(History.DATE_CREATED, History.DATE_CREATED);
         map.put(History.DATE_LAST_VISITED, History.DATE_LAST_VISITED);
         map.put(History.VISITS, History.VISITS);
+        map.put(HISTORY_FRECENCY, HISTORY_FRECENCY);
         map.put(History.USER_ENTERED, History.USER_ENTERED);
 
         // Sync state
@@ -326,6 +420,7 @@ public class BrowserProvider2 extends SQLiteContentProvider {
         map.put(Images.FAVICON, Images.FAVICON);
         map.put(Images.THUMBNAIL, Images.THUMBNAIL);
         map.put(Images.TOUCH_ICON, Images.TOUCH_ICON);
+        putImageUriColumns(map);
 
         // Combined history half
         map = COMBINED_HISTORY_PROJECTION_MAP;
@@ -338,9 +433,11 @@ public class BrowserProvider2 extends SQLiteContentProvider {
                 TABLE_BOOKMARKS + "." + Bookmarks._ID +
                 " IS NOT NULL THEN 1 ELSE 0 END AS " + Combined.IS_BOOKMARK);
         map.put(Combined.VISITS, Combined.VISITS);
+        map.put(HISTORY_FRECENCY, qualifyColumn(TABLE_HISTORY, HISTORY_FRECENCY));
         map.put(Combined.FAVICON, Combined.FAVICON);
         map.put(Combined.THUMBNAIL, Combined.THUMBNAIL);
         map.put(Combined.TOUCH_ICON, Combined.TOUCH_ICON);
+        putImageUriColumns(map);
         map.put(Combined.USER_ENTERED, "NULL AS " + Combined.USER_ENTERED);
 
         // Combined bookmark half
@@ -352,9 +449,11 @@ public class BrowserProvider2 extends SQLiteContentProvider {
         map.put(Combined.DATE_LAST_VISITED, "NULL AS " + Combined.DATE_LAST_VISITED);
         map.put(Combined.IS_BOOKMARK, "1 AS " + Combined.IS_BOOKMARK);
         map.put(Combined.VISITS, "0 AS " + Combined.VISITS);
+        map.put(HISTORY_FRECENCY, "0 AS " + HISTORY_FRECENCY);
         map.put(Combined.FAVICON, Combined.FAVICON);
         map.put(Combined.THUMBNAIL, Combined.THUMBNAIL);
         map.put(Combined.TOUCH_ICON, Combined.TOUCH_ICON);
+        putImageUriColumns(map);
         map.put(Combined.USER_ENTERED, "NULL AS " + Combined.USER_ENTERED);
 
         // Searches
@@ -369,6 +468,19 @@ public class BrowserProvider2 extends SQLiteContentProvider {
         map.put(Settings.VALUE, Settings.VALUE);
     }
 
+    static final void putImageUriColumns(HashMap<String, String> map) {
+        map.put(ImageBlobs.FAVICON_URI, imageUriColumn(Images.FAVICON, ImageBlobs.FAVICON_URI));
+        map.put(ImageBlobs.THUMBNAIL_URI,
+                imageUriColumn(Images.THUMBNAIL, ImageBlobs.THUMBNAIL_URI));
+        map.put(ImageBlobs.TOUCH_ICON_URI,
+                imageUriColumn(Images.TOUCH_ICON, ImageBlobs.TOUCH_ICON_URI));
+    }
+
+    static final String imageUriColumn(String hashColumn, String alias) {
+        // NULL hashes stay NULL through the concatenation
+        return "'" + ImageBlobs.CONTENT_URI + "/' || " + hashColumn + " AS " + alias;
+    }
+
     static final String bookmarkOrHistoryColumn(String column) {
         return "CASE WHEN bookmarks." + column + " IS NOT NULL THEN " +
                 "bookmarks." + column + " ELSE history." + column + " END AS " + column;
@@ -385,6 +497,15 @@ public class BrowserProvider2 extends SQLiteContentProvider {
     }
 
     DatabaseHelper mOpenHelper;
+    ThumbnailStore mThumbnailStore;
+    ImageBlobStore mImageBlobStore;
+    // Set by writers on binder threads, cleared by the sweep on the gc thread
+    final AtomicBoolean mSweepImageBlobs = new AtomicBoolean();
+    volatile long mLastImageBlobSweep;
+    // Set by writers on binder threads, taken by whichever transaction ends next
+    final AtomicBoolean mCollectImages = new AtomicBoolean();
+    ImageGcHandler mImageGcHandler;
+    final AtomicBoolean mDecayFrecency = new AtomicBoolean();
     SyncStateContentProviderHelper mSyncHelper = new SyncStateContentProviderHelper();
     // This is so provider tests can intercept widget updating
     ContentObserver mWidgetObserver = null;
@@ -393,7 +514,7 @@ public class BrowserProvider2 extends SQLiteContentProvider {
 
     final class DatabaseHelper extends SQLiteOpenHelper {
         static final String DATABASE_NAME = "browser2.db";
-        static final int DATABASE_VERSION = 32;
+        static final int DATABASE_VERSION = 38;
         public DatabaseHelper(Context context) {
             super(context, DATABASE_NAME, null, DATABASE_VERSION);
             setWriteAheadLoggingEnabled(true);
@@ -424,8 +545,6 @@ public class BrowserProvider2 extends SQLiteContentProvider {
                     Bookmarks.SYNC5 + " TEXT" +
                     ");");
 
-            // TODO indices
-
             db.execSQL("CREATE TABLE " + TABLE_HISTORY + "(" +
                     History._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
                     History.TITLE + " TEXT," +
@@ -433,17 +552,11 @@ public class BrowserProvider2 extends SQLiteContentProvider {
                     History.DATE_CREATED + " INTEGER," +
                     History.DATE_LAST_VISITED + " INTEGER," +
                     History.VISITS + " INTEGER NOT NULL DEFAULT 0," +
-                    History.USER_ENTERED + " INTEGER" +
+                    History.USER_ENTERED + " INTEGER," +
+                    HISTORY_FRECENCY + " REAL NOT NULL DEFAULT 0" +
                     ");");
 
-            db.execSQL("CREATE TABLE " + TABLE_IMAGES + " (" +
-                    Images.URL + " TEXT UNIQUE NOT NULL," +
-                    Images.FAVICON + " BLOB," +
-                    Images.THUMBNAIL + " BLOB," +
-                    Images.TOUCH_ICON + " BLOB" +
-                    ");");
-            db.execSQL("CREATE INDEX imagesUrlIndex ON " + TABLE_IMAGES +
-                    "(" + Images.URL + ")");
+            createImages(db);
 
             db.execSQL("CREATE TABLE " + TABLE_SEARCHES + " (" +
                     Searches._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
@@ -456,8 +569,10 @@ public class BrowserProvider2 extends SQLiteContentProvider {
                     Settings.VALUE + " TEXT NOT NULL" +
                     ");");
 
+            createIndices(db);
+            createOmniboxIndex(db);
+            createImageGc(db);
             createAccountsView(db);
-            createThumbnails(db);
 
             mSyncHelper.createDatabase(db);
 
@@ -469,15 +584,59 @@ public class BrowserProvider2 extends SQLiteContentProvider {
             createOmniboxSuggestions(db);
         }
 
-        void createOmniboxSuggestions(SQLiteDatabase db) {
-            db.execSQL(SQL_CREATE_VIEW_OMNIBOX_SUGGESTIONS);
+        /**
+         * Indices backing the hot lookups: visit/title updates and bookmark
+         * status checks by url, folder listings by parent, the history list
+         * ordered by date or frecency and the image prune anti-joins.
+         */
+        void createIndices(SQLiteDatabase db) {
+            db.execSQL("CREATE INDEX IF NOT EXISTS historyUrlIndex ON " + TABLE_HISTORY +
+                    "(" + History.URL + ", " + History.VISITS + ")");
+            db.execSQL("CREATE INDEX IF NOT EXISTS historyDateIndex ON " + TABLE_HISTORY +
+                    "(" + History.DATE_LAST_VISITED + ")");
+            db.execSQL("CREATE INDEX IF NOT EXISTS historyFrecencyIndex ON " + TABLE_HISTORY +
+                    "(" + HISTORY_FRECENCY + ")");
+            db.execSQL("CREATE INDEX IF NOT EXISTS bookmarksUrlIndex ON " + TABLE_BOOKMARKS +
+                    "(" + Bookmarks.URL + ", " + Bookmarks.IS_DELETED + ")");
+            db.execSQL("CREATE INDEX IF NOT EXISTS bookmarksParentIndex ON " + TABLE_BOOKMARKS +
+                    "(" + Bookmarks.PARENT + ", " + Bookmarks.IS_DELETED + ", "
+                    + Bookmarks.POSITION + ")");
+        }
+
+        /**
+         * (Re)builds the full text index behind omnibox suggestions. History
+         * rows are keyed by their _id and bookmarks by their negated _id; the
+         * triggers keep it current from then on.
+         */
+        void createOmniboxIndex(SQLiteDatabase db) {
+            db.execSQL("DROP TABLE IF EXISTS " + TABLE_OMNIBOX_INDEX);
+            db.execSQL(SQL_CREATE_OMNIBOX_INDEX);
+            for (String trigger : OMNIBOX_INDEX_TRIGGERS) {
+                db.execSQL("DROP TRIGGER IF EXISTS " + trigger);
+            }
+            db.execSQL(SQL_CREATE_TRIGGER_HISTORY_INSERT);
+            db.execSQL(SQL_CREATE_TRIGGER_HISTORY_UPDATE);
+            db.execSQL(SQL_CREATE_TRIGGER_HISTORY_DELETE);
+            db.execSQL(SQL_CREATE_TRIGGER_BOOKMARKS_INSERT);
+            db.execSQL(SQL_CREATE_TRIGGER_BOOKMARKS_UPDATE);
+            db.execSQL(SQL_CREATE_TRIGGER_BOOKMARKS_DELETE);
+            db.execSQL("INSERT INTO " + TABLE_OMNIBOX_INDEX + "(docid, url_key, title)"
+                    + " SELECT _id, " + sqlStripUrl("url") + ", title FROM history");
+            db.execSQL("INSERT INTO " + TABLE_OMNIBOX_INDEX + "(docid, url_key, title)"
+                    + " SELECT -_id, " + sqlStripUrl("url") + ", title FROM bookmarks"
+                    + " WHERE folder = 0");
+        }
+
+        void createImageGc(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE_IMAGE_GC + " ("
+                    + "url_key TEXT PRIMARY KEY)");
+            for (String trigger : IMAGE_GC_TRIGGERS) {
+                db.execSQL(trigger);
+            }
         }
 
-        void createThumbnails(SQLiteDatabase db) {
-            db.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE_THUMBNAILS + " (" +
-                    Thumbnails._ID + " INTEGER PRIMARY KEY," +
-                    Thumbnails.THUMBNAIL + " BLOB NOT NULL" +
-                    ");");
+        void createOmniboxSuggestions(SQLiteDatabase db) {
+            db.execSQL(SQL_CREATE_VIEW_OMNIBOX_SUGGESTIONS);
         }
 
         void enableSync(SQLiteDatabase db) {
@@ -542,6 +701,7 @@ public class BrowserProvider2 extends SQLiteContentProvider {
                             imageValues.put(Images.URL, url);
                             imageValues.put(Images.FAVICON, c.getBlob(2));
                             imageValues.put(Images.TOUCH_ICON, c.getBlob(3));
+                            storeImageBlobs(imageValues);
                             db.insert(TABLE_IMAGES, Images.THUMBNAIL, imageValues);
                             db.insert(TABLE_BOOKMARKS, Bookmarks.DIRTY, values);
                         }
@@ -588,6 +748,45 @@ public class BrowserProvider2 extends SQLiteContentProvider {
             return false;
         }
 
+        void createImages(SQLiteDatabase db) {
+            // The image columns hold ImageBlobStore hashes
+            db.execSQL("CREATE TABLE " + TABLE_IMAGES + " (" +
+                    Images.URL + " TEXT UNIQUE NOT NULL," +
+                    Images.FAVICON + " TEXT," +
+                    Images.THUMBNAIL + " TEXT," +
+                    Images.TOUCH_ICON + " TEXT" +
+                    ");");
+            db.execSQL("CREATE INDEX imagesUrlIndex ON " + TABLE_IMAGES +
+                    "(" + Images.URL + ")");
+        }
+
+        void moveImagesToBlobStore(SQLiteDatabase db) {
+            db.execSQL("ALTER TABLE " + TABLE_IMAGES + " RENAME TO images_old");
+            db.execSQL("DROP INDEX IF EXISTS imagesUrlIndex");
+            createImages(db);
+            Cursor c = db.query("images_old", new String[] {
+                    Images.URL, Images.FAVICON, Images.THUMBNAIL, Images.TOUCH_ICON },
+                    null, null, null, null, null);
+            try {
+                while (c.moveToNext()) {
+                    ContentValues values = new ContentValues();
+                    values.put(Images.URL, c.getString(0));
+                    for (int i = 1; i < 4; i++) {
+                        if (c.getType(i) == Cursor.FIELD_TYPE_BLOB) {
+                            values.put(c.getColumnName(i), c.getBlob(i));
+                        } else {
+                            values.put(c.getColumnName(i), c.getString(i));
+                        }
+                    }
+                    storeImageBlobs(values);
+                    db.insert(TABLE_IMAGES, Images.FAVICON, values);
+                }
+            } finally {
+                c.close();
+            }
+            db.execSQL("DROP TABLE images_old");
+        }
+
         void createAccountsView(SQLiteDatabase db) {
             db.execSQL("CREATE VIEW IF NOT EXISTS v_accounts AS "
                     + "SELECT NULL AS " + Accounts.ACCOUNT_NAME
@@ -607,9 +806,6 @@ public class BrowserProvider2 extends SQLiteContentProvider {
             if (oldVersion < 32) {
                 createOmniboxSuggestions(db);
             }
-            if (oldVersion < 31) {
-                createThumbnails(db);
-            }
             if (oldVersion < 30) {
                 db.execSQL("DROP VIEW IF EXISTS " + VIEW_SNAPSHOTS_COMBINED);
                 db.execSQL("DROP TABLE IF EXISTS " + TABLE_SNAPSHOTS);
@@ -632,6 +828,54 @@ public class BrowserProvider2 extends SQLiteContentProvider {
                 mSyncHelper.onAccountsChanged(db, new Account[] {}); // remove all sync info
                 onCreate(db);
             }
+            // Runs last so it only ever sees the current table layout
+            if (oldVersion < 33) {
+                createIndices(db);
+            }
+            if (oldVersion < 34) {
+                createOmniboxIndex(db);
+            }
+            if (oldVersion < 35) {
+                // The raw pixel blobs aren't carried over, tabs recapture
+                db.execSQL("DROP TABLE IF EXISTS " + TABLE_THUMBNAILS);
+            }
+            if (oldVersion < 36) {
+                moveImagesToBlobStore(db);
+            }
+            if (oldVersion < 37) {
+                createImageGc(db);
+                // Check everything once, replacing the old prune
+                db.execSQL("INSERT OR IGNORE INTO " + TABLE_IMAGE_GC
+                        + " SELECT " + Images.URL + " FROM " + TABLE_IMAGES);
+            }
+            if (oldVersion < 38) {
+                // Tables recreated above already have the column
+                if (!hasColumn(db, TABLE_HISTORY, HISTORY_FRECENCY)) {
+                    db.execSQL("ALTER TABLE " + TABLE_HISTORY + " ADD COLUMN "
+                            + HISTORY_FRECENCY + " REAL NOT NULL DEFAULT 0");
+                    // Nothing is known about when the visits were, count them all
+                    db.execSQL("UPDATE " + TABLE_HISTORY + " SET " + HISTORY_FRECENCY
+                            + " = " + History.VISITS + " * " + FRECENCY_VISIT_WEIGHT);
+                }
+                createIndices(db);
+                db.execSQL("DROP VIEW IF EXISTS " + VIEW_OMNIBOX_SUGGESTIONS);
+                createOmniboxSuggestions(db);
+            }
+        }
+
+        boolean hasColumn(SQLiteDatabase db, String table, String column) {
+            Cursor c = db.rawQuery("PRAGMA table_info(" + table + ")", null);
+            try {
+                int name = c.getColumnIndexOrThrow("name");
+                while (c.moveToNext()) {
+                    if (column.equals(c.getString(name))) {
+                        return true;
+                    }
+                }
+                return false;
+            } finally {
+                c.close();
+            }
         }
 
         public void onOpen(SQLiteDatabase db) {
@@ -703,6 +947,7 @@ public class BrowserProvider2 extends SQLiteContentProvider {
                         if (thumb != null) {
                             imageValues.put(Images.THUMBNAIL, thumb);
                         }
+                        storeImageBlobs(imageValues);
                         db.insert(TABLE_IMAGES, Images.FAVICON, imageValues);
                     }
                 }
@@ -798,6 +1043,26 @@ public class BrowserProvider2 extends SQLiteContentProvider {
         }
     }
 
+    ThumbnailStore getThumbnailStore() {
+        synchronized (this) {
+            if (mThumbnailStore == null) {
+                mThumbnailStore = new ThumbnailStore(
+                        getContext().getDir(THUMBNAILS_DIRECTORY, 0), THUMBNAILS_BUDGET);
+            }
+            return mThumbnailStore;
+        }
+    }
+
+    ImageBlobStore getImageBlobStore() {
+        synchronized (this) {
+            if (mImageBlobStore == null) {
+                mImageBlobStore = new ImageBlobStore(
+                        getContext().getDir(IMAGE_BLOBS_DIRECTORY, 0));
+            }
+            return mImageBlobStore;
+        }
+    }
+
     @Override
     public boolean isCallerSyncAdapter(Uri uri) {
         return uri.getBooleanQueryParameter(BrowserContract.CALLER_IS_SYNCADAPTER, false);
@@ -824,6 +1089,12 @@ public class BrowserProvider2 extends SQLiteContentProvider {
             mUpdateWidgets = false;
         }
         mSyncToNetwork = true;
+        if (mCollectImages.getAndSet(false) || mSweepImageBlobs.get()) {
+            getImageGcHandler().scheduleCollect();
+        }
+        if (mDecayFrecency.compareAndSet(false, true)) {
+            getImageGcHandler().scheduleDecay();
+        }
     }
 
     @Override
@@ -844,10 +1115,27 @@ public class BrowserProvider2 extends SQLiteContentProvider {
                 return Searches.CONTENT_TYPE;
             case SEARCHES_ID:
                 return Searches.CONTENT_ITEM_TYPE;
+            case IMAGE_BLOBS_ID:
+                return ImageBlobs.CONTENT_ITEM_TYPE;
         }
         return null;
     }
 
+    @Override
+    public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
+        if (URI_MATCHER.match(uri) != IMAGE_BLOBS_ID) {
+            throw new FileNotFoundException("No files supported by provider at " + uri);
+        }
+        if (!"r".equals(mode)) {
+            throw new FileNotFoundException("Images are read only " + uri);
+        }
+        File file = getImageBlobStore().getFile(uri.getLastPathSegment());
+        if (file == null) {
+            throw new FileNotFoundException("No image at " + uri);
+        }
+        return ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY);
+    }
+
     boolean isNullAccount(String account) {
         if (account == null) return true;
         account = account.trim();
@@ -1012,7 +1300,7 @@ public class BrowserProvider2 extends SQLiteContentProvider {
                     cursor.setNotificationUri(getContext().getContentResolver(),
                             BrowserContract.AUTHORITY_URI);
                 }
-                return cursor;
+                return ImageBlobCursor.wrap(cursor, getImageBlobStore());
             }
 
             case BOOKMARKS_DEFAULT_FOLDER_ID: {
@@ -1104,19 +1392,37 @@ public class BrowserProvider2 extends SQLiteContentProvider {
             }
 
             case THUMBNAILS_ID: {
-                selection = DatabaseUtils.concatenateWhere(
-                        selection, Thumbnails._ID + " = ?");
-                selectionArgs = DatabaseUtils.appendSelectionArgs(selectionArgs,
-                        new String[] { Long.toString(ContentUris.parseId(uri)) });
-                // fall through
+                return queryThumbnails(projection,
+                        new long[] { ContentUris.parseId(uri) });
             }
+
             case THUMBNAILS: {
-                qb.setTables(TABLE_THUMBNAILS);
-                break;
+                return queryThumbnails(projection, getThumbnailStore().getIds());
             }
 
             case OMNIBOX_SUGGESTIONS: {
-                qb.setTables(VIEW_OMNIBOX_SUGGESTIONS);
+                String filter = uri.getQueryParameter(OmniboxSuggestions.PARAM_FILTER);
+                if (filter == null) {
+                    qb.setTables(VIEW_OMNIBOX_SUGGESTIONS);
+                    break;
+                }
+                String[] match = buildOmniboxMatch(filter);
+                if (match == null) {
+                    // Nothing the index can match, e.g. only punctuation
+                    qb.setTables(VIEW_OMNIBOX_SUGGESTIONS);
+                    selection = DatabaseUtils.concatenateWhere(selection, "0");
+                    break;
+                }
+                qb.setTables("(" + SQL_SELECT_OMNIBOX_INDEX_SUGGESTIONS + ")");
+                String[] args = new String[] { match[0], match[1], match[0], match[1] };
+                if (selectionArgs == null) {
+                    selectionArgs = args;
+                } else {
+                    selectionArgs = DatabaseUtils.appendSelectionArgs(args, selectionArgs);
+                }
+                if (sortOrder == null) {
+                    sortOrder = DEFAULT_SORT_OMNIBOX_SUGGESTIONS;
+                }
                 break;
             }
 
@@ -1128,7 +1434,44 @@ public class BrowserProvider2 extends SQLiteContentProvider {
         Cursor cursor = qb.query(db, projection, selection, selectionArgs, groupBy,
                 null, sortOrder, limit);
         cursor.setNotificationUri(getContext().getContentResolver(), BrowserContract.AUTHORITY_URI);
-        return cursor;
+        return ImageBlobCursor.wrap(cursor, getImageBlobStore());
+    }
+
+    private Cursor queryThumbnails(String[] projection, long[] ids) {
+        if (projection == null) {
+            projection = new String[] { Thumbnails._ID, Thumbnails.THUMBNAIL };
+        }
+        MatrixCursor c = new MatrixCursor(projection);
+        ThumbnailStore store = getThumbnailStore();
+        for (long id : ids) {
+            byte[] thumbnail = null;
+            if (Arrays.asList(projection).contains(Thumbnails.THUMBNAIL)) {
+                thumbnail = store.get(id);
+                if (thumbnail == null) {
+                    continue;
+                }
+            }
+            MatrixCursor.RowBuilder row = c.newRow();
+            for (String column : projection) {
+                if (Thumbnails._ID.equals(column)) {
+                    row.add(id);
+                } else if (Thumbnails.THUMBNAIL.equals(column)) {
+                    row.add(thumbnail);
+                } else {
+                    throw new IllegalArgumentException("Unknown thumbnail column " + column);
+                }
+            }
+        }
+        return c;
+    }
+
+    private boolean putThumbnail(ContentValues values) {
+        Long id = values.getAsLong(Thumbnails._ID);
+        byte[] thumbnail = values.getAsByteArray(Thumbnails.THUMBNAIL);
+        if (id == null || thumbnail == null) {
+            throw new IllegalArgumentException("Thumbnails need an id and a thumbnail");
+        }
+        return getThumbnailStore().put(id, thumbnail);
     }
 
     private Cursor doSuggestQuery(String selection, String[] selectionArgs, String limit) {
@@ -1137,9 +1480,13 @@ public class BrowserProvider2 extends SQLiteContentProvider {
             selectionArgs = null;
         } else {
             String like = selectionArgs[0] + "%";
+            String[] match = null;
             if (selectionArgs[0].startsWith("http")
                     || selectionArgs[0].startsWith("file")) {
                 selectionArgs[0] = like;
+            } else if ((match = buildOmniboxMatch(selectionArgs[0])) != null) {
+                selectionArgs = new String[] { match[0], match[1], match[0], match[1] };
+                selection = SUGGEST_INDEX_SELECTION;
             } else {
                 selectionArgs = new String[6];
                 selectionArgs[0] = "http://" + like;
@@ -1162,6 +1509,57 @@ public class BrowserProvider2 extends SQLiteContentProvider {
         return new SuggestionsCursor(c);
     }
 
+    /**
+     * Turns text typed into the omnibox into a pair of full text match
+     * expressions: the first anchors the words to the start of the stripped
+     * url, the second matches them anywhere in the title. The last word is
+     * matched as a prefix. Returns null if there is nothing to match.
+     */
+    static String[] buildOmniboxMatch(String filter) {
+        // The "simple" tokenizer only folds ASCII, whatever the locale, so
+        // e.g. Turkish casing must not turn "I" into a dotless i. Non-ASCII
+        // capitals are folded here but indexed as typed, and don't match.
+        String lower = filter.toLowerCase(Locale.ROOT);
+        for (String prefix : new String[] { "http://", "https://" }) {
+            if (lower.startsWith(prefix)) {
+                lower = lower.substring(prefix.length());
+                break;
+            }
+        }
+        if (lower.startsWith("www.")) {
+            lower = lower.substring(4);
+        }
+        // Split the same way the "simple" tokenizer does: every ASCII
+        // character that isn't a letter or digit separates tokens
+        ArrayList<String> tokens = new ArrayList<String>();
+        int start = -1;
+        for (int i = 0; i <= lower.length(); i++) {
+            char c = i < lower.length() ? lower.charAt(i) : ' ';
+            boolean isTokenChar = c >= 0x80 || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9');
+            if (isTokenChar && start < 0) {
+                start = i;
+            } else if (!isTokenChar && start >= 0) {
+                tokens.add(lower.substring(start, i));
+                start = -1;
+            }
+        }
+        if (tokens.isEmpty()) {
+            return null;
+        }
+        StringBuilder url = new StringBuilder();
+        StringBuilder title = new StringBuilder();
+        for (int i = 0; i < tokens.size(); i++) {
+            String term = tokens.get(i) + (i == tokens.size() - 1 ? "*" : "");
+            if (i > 0) {
+                url.append(' ');
+                title.append(' ');
+            }
+            url.append("url_key:").append(i == 0 ? "^" : "").append(term);
+            title.append("title:").append(term);
+        }
+        return new String[] { url.toString(), title.toString() };
+    }
+
     private String[] createCombinedQuery(
             Uri uri, String[] projection, SQLiteQueryBuilder qb) {
         String[] args = null;
@@ -1291,7 +1689,7 @@ public class BrowserProvider2 extends SQLiteContentProvider {
                 selection = (String) withAccount[0];
                 selectionArgs = (String[]) withAccount[1];
                 deleted = deleteBookmarks(selection, selectionArgs, callerIsSyncAdapter);
-                pruneImages();
+                collectImagesLater();
                 if (deleted > 0) {
                     refreshWidgets();
                 }
@@ -1307,7 +1705,7 @@ public class BrowserProvider2 extends SQLiteContentProvider {
             case HISTORY: {
                 filterSearchClient(selectionArgs);
                 deleted = db.delete(TABLE_HISTORY, selection, selectionArgs);
-                pruneImages();
+                collectImagesLater();
                 break;
             }
 
@@ -1373,14 +1771,15 @@ public class BrowserProvider2 extends SQLiteContentProvider {
                 break;
             }
             case THUMBNAILS_ID: {
-                selection = DatabaseUtils.concatenateWhere(
-                        selection, Thumbnails._ID + " = ?");
-                selectionArgs = DatabaseUtils.appendSelectionArgs(selectionArgs,
-                        new String[] { Long.toString(ContentUris.parseId(uri)) });
-                // fall through
+                deleted = getThumbnailStore().delete(ContentUris.parseId(uri)) ? 1 : 0;
+                break;
             }
             case THUMBNAILS: {
-                deleted = db.delete(TABLE_THUMBNAILS, selection, selectionArgs);
+                if (selection != null) {
+                    throw new UnsupportedOperationException(
+                            "Thumbnails can only be deleted by id " + uri);
+                }
+                deleted = getThumbnailStore().deleteAll();
                 break;
             }
             default: {
@@ -1506,6 +1905,11 @@ public class BrowserProvider2 extends SQLiteContentProvider {
                     db.insertOrThrow(TABLE_IMAGES, Images.FAVICON, imageValues);
                 }
 
+                // Visits imported without a score count as recent ones
+                Integer visits = values.getAsInteger(History.VISITS);
+                if (visits != null && !values.containsKey(HISTORY_FRECENCY)) {
+                    values.put(HISTORY_FRECENCY, visits * FRECENCY_VISIT_WEIGHT);
+                }
                 id = db.insertOrThrow(TABLE_HISTORY, History.VISITS, values);
                 break;
             }
@@ -1527,7 +1931,7 @@ public class BrowserProvider2 extends SQLiteContentProvider {
             }
 
             case THUMBNAILS: {
-                id = db.replaceOrThrow(TABLE_THUMBNAILS, null, values);
+                id = putThumbnail(values) ? values.getAsLong(Thumbnails._ID) : -1;
                 break;
             }
 
@@ -1718,7 +2122,9 @@ public class BrowserProvider2 extends SQLiteContentProvider {
                 // fall through
             }
             case HISTORY: {
-                modified = updateHistoryInTransaction(values, selection, selectionArgs);
+                String addVisits = uri.getQueryParameter(PARAM_ADD_VISITS);
+                modified = updateHistoryInTransaction(values, selection, selectionArgs,
+                        addVisits != null ? Integer.parseInt(addVisits) : 0);
                 break;
             }
 
@@ -1743,6 +2149,7 @@ public class BrowserProvider2 extends SQLiteContentProvider {
                 if (TextUtils.isEmpty(url)) {
                     throw new IllegalArgumentException("Images.URL is required");
                 }
+                storeImageBlobs(values);
                 if (!shouldUpdateImages(db, url, values)) {
                     return 0;
                 }
@@ -1765,9 +2172,10 @@ public class BrowserProvider2 extends SQLiteContentProvider {
                     postNotifyUri(History.CONTENT_URI);
                     updatedLegacy = values.containsKey(Images.FAVICON);
                 }
-                if (pruneImages() > 0 || updatedLegacy) {
+                if (updatedLegacy) {
                     postNotifyUri(LEGACY_AUTHORITY_URI);
                 }
+                collectImagesLater();
                 // Even though we may be calling notifyUri on Bookmarks, don't
                 // sync to network as images aren't synced. Otherwise this
                 // unnecessarily triggers a bookmark sync.
@@ -1787,8 +2195,11 @@ public class BrowserProvider2 extends SQLiteContentProvider {
             }
 
             case THUMBNAILS: {
-                modified = db.update(TABLE_THUMBNAILS, values,
-                        selection, selectionArgs);
+                if (selection != null) {
+                    throw new UnsupportedOperationException(
+                            "Thumbnails can only be updated by id " + uri);
+                }
+                modified = putThumbnail(values) ? 1 : 0;
                 break;
             }
 
@@ -1796,7 +2207,7 @@ public class BrowserProvider2 extends SQLiteContentProvider {
                 throw new UnsupportedOperationException("Unknown update URI " + uri);
             }
         }
-        pruneImages();
+        collectImagesLater();
         if (modified > 0) {
             postNotifyUri(uri);
             if (shouldNotifyLegacy(uri)) {
@@ -1821,34 +2232,23 @@ public class BrowserProvider2 extends SQLiteContentProvider {
         };
         Cursor cursor = db.query(TABLE_IMAGES, projection, Images.URL + "=?",
                 new String[] { url }, null, null, null);
-        byte[] nfavicon = values.getAsByteArray(Images.FAVICON);
-        byte[] nthumb = values.getAsByteArray(Images.THUMBNAIL);
-        byte[] ntouch = values.getAsByteArray(Images.TOUCH_ICON);
-        byte[] cfavicon = null;
-        byte[] cthumb = null;
-        byte[] ctouch = null;
+        // The values have been through storeImageBlobs(), so compare hashes
+        String nfavicon = values.getAsString(Images.FAVICON);
+        String nthumb = values.getAsString(Images.THUMBNAIL);
+        String ntouch = values.getAsString(Images.TOUCH_ICON);
         try {
             if (cursor.getCount() <= 0) {
                 return nfavicon != null || nthumb != null || ntouch != null;
             }
             while (cursor.moveToNext()) {
-                if (nfavicon != null) {
-                    cfavicon = cursor.getBlob(0);
-                    if (!Arrays.equals(nfavicon, cfavicon)) {
-                        return true;
-                    }
+                if (nfavicon != null && !nfavicon.equals(cursor.getString(0))) {
+                    return true;
                 }
-                if (nthumb != null) {
-                    cthumb = cursor.getBlob(1);
-                    if (!Arrays.equals(nthumb, cthumb)) {
-                        return true;
-                    }
+                if (nthumb != null && !nthumb.equals(cursor.getString(1))) {
+                    return true;
                 }
-                if (ntouch != null) {
-                    ctouch = cursor.getBlob(2);
-                    if (!Arrays.equals(ntouch, ctouch)) {
-                        return true;
-                    }
+                if (ntouch != null && !ntouch.equals(cursor.getString(2))) {
+                    return true;
                 }
             }
         } finally {
@@ -2012,7 +2412,8 @@ public class BrowserProvider2 extends SQLiteContentProvider {
     /**
      * Does a query to find the matching bookmarks and updates each one with the provided values.
      */
-    int updateHistoryInTransaction(ContentValues values, String selection, String[] selectionArgs) {
+    int updateHistoryInTransaction(ContentValues values, String selection, String[] selectionArgs,
+            int addVisits) {
         int count = 0;
         final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         filterSearchClient(selectionArgs);
@@ -2032,7 +2433,11 @@ public class BrowserProvider2 extends SQLiteContentProvider {
 
             while (cursor.moveToNext()) {
                 args[0] = cursor.getString(0);
-                count += db.update(TABLE_HISTORY, values, "_id=?", args);
+                if (addVisits != 0) {
+                    count += updateHistoryAddingVisits(db, values, addVisits, args[0]);
+                } else {
+                    count += db.update(TABLE_HISTORY, values, "_id=?", args);
+                }
 
                 // Update the images over in their table
                 if (imageValues != null) {
@@ -2052,6 +2457,37 @@ public class BrowserProvider2 extends SQLiteContentProvider {
         return count;
     }
 
+    /**
+     * Updates a history row with values and adds visits to its visit count
+     * and their weight to its frecency, in a single statement.
+     */
+    private static int updateHistoryAddingVisits(SQLiteDatabase db, ContentValues values,
+            int visits, String id) {
+        StringBuilder sql = new StringBuilder("UPDATE " + TABLE_HISTORY + " SET ");
+        ArrayList<Object> args = new ArrayList<Object>(values.size() + 3);
+        for (String key : values.keySet()) {
+            if (History.VISITS.equals(key) || HISTORY_FRECENCY.equals(key)) {
+                continue;
+            }
+            sql.append(key).append("=?, ");
+            args.add(values.get(key));
+        }
+        sql.append(History.VISITS + "=" + History.VISITS + "+?, "
+                + HISTORY_FRECENCY + "=" + HISTORY_FRECENCY + "+? WHERE " + History._ID + "=?");
+        args.add(visits);
+        args.add(visits * FRECENCY_VISIT_WEIGHT);
+        args.add(id);
+        SQLiteStatement statement = db.compileStatement(sql.toString());
+        try {
+            for (int i = 0; i < args.size(); i++) {
+                DatabaseUtils.bindObjectToProgram(statement, i + 1, args.get(i));
+            }
+            return statement.executeUpdateDelete();
+        } finally {
+            statement.close();
+        }
+    }
+
     String appendAccountToSelection(Uri uri, String selection) {
         final String accountName = uri.getQueryParameter(RawContacts.ACCOUNT_NAME);
         final String accountType = uri.getQueryParameter(RawContacts.ACCOUNT_TYPE);
@@ -2111,13 +2547,268 @@ public class BrowserProvider2 extends SQLiteContentProvider {
 
         if (imageValues != null) {
             imageValues.put(Images.URL,  url);
+            storeImageBlobs(imageValues);
         }
         return imageValues;
     }
 
-    int pruneImages() {
+    /**
+     * Moves any image blobs in values to the {@link ImageBlobStore},
+     * replacing them with their hashes.
+     */
+    void storeImageBlobs(ContentValues values) {
+        for (String column : new String[] {
+                Images.FAVICON, Images.THUMBNAIL, Images.TOUCH_ICON }) {
+            Object value = values.get(column);
+            if (value instanceof byte[]) {
+                // Failing to write just loses the image, same as a null blob
+                values.put(column, getImageBlobStore().put((byte[]) value));
+                mSweepImageBlobs.set(true);
+            }
+        }
+    }
+
+    /**
+     * Deletes the stored images no longer referenced from the images table.
+     */
+    void sweepImageBlobs() {
+        // Cleared first, so images replaced while sweeping get another sweep
+        if (!mSweepImageBlobs.compareAndSet(true, false)) {
+            return;
+        }
+        boolean swept = false;
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        // Hold the transaction so no other writer can reference a new image
+        // between reading the hashes and deleting the files
+        db.beginTransaction();
+        try {
+            HashSet<String> live = new HashSet<String>();
+            Cursor c = db.query(TABLE_IMAGES, new String[] {
+                    Images.FAVICON, Images.THUMBNAIL, Images.TOUCH_ICON },
+                    null, null, null, null, null);
+            try {
+                while (c.moveToNext()) {
+                    for (int i = 0; i < 3; i++) {
+                        if (!c.isNull(i)) {
+                            live.add(c.getString(i));
+                        }
+                    }
+                }
+            } finally {
+                c.close();
+            }
+            getImageBlobStore().sweep(live);
+            db.setTransactionSuccessful();
+            swept = true;
+        } finally {
+            db.endTransaction();
+            if (!swept) {
+                mSweepImageBlobs.set(true);
+            }
+        }
+        mLastImageBlobSweep = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Has the images queued by the image_gc triggers collected once the
+     * current transaction ends.
+     */
+    void collectImagesLater() {
+        mCollectImages.set(true);
+    }
+
+    /**
+     * Deletes the queued images that no bookmark or history row refers to
+     * anymore, in batches, until the queue is empty or budgetMillis is up.
+     * @return true if there are still images queued
+     */
+    @VisibleForTesting
+    public boolean collectImages(long budgetMillis) {
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        final long start = SystemClock.uptimeMillis();
+        String[] args = new String[3];
+        do {
+            db.beginTransaction();
+            try {
+                Cursor c = db.query(TABLE_IMAGE_GC, new String[] { "url_key" },
+                        null, null, null, null, null, Integer.toString(IMAGE_GC_BATCH_SIZE));
+                try {
+                    if (c.getCount() == 0) {
+                        return false;
+                    }
+                    while (c.moveToNext()) {
+                        String url = c.getString(0);
+                        args[0] = args[1] = args[2] = url;
+                        if (db.delete(TABLE_IMAGES, IMAGE_COLLECT, args) > 0) {
+                            mSweepImageBlobs.set(true);
+                        }
+                        db.delete(TABLE_IMAGE_GC, "url_key=?", new String[] { url });
+                    }
+                } finally {
+                    c.close();
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } while (SystemClock.uptimeMillis() - start < budgetMillis);
+        return true;
+    }
+
+    /**
+     * Applies the frecency decay for the time since the last pass to all
+     * history rows, in batches by _id, until done or budgetMillis is up. A
+     * pass that was cut short resumes where it stopped, with its own factor.
+     * Nothing is notified, the order of the rows barely changes.
+     * @return true if the pass is not done yet
+     */
+    @VisibleForTesting
+    public boolean decayFrecency(long budgetMillis) {
         final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
-        return db.delete(TABLE_IMAGES, IMAGE_PRUNE, null);
+        final long start = SystemClock.uptimeMillis();
+        String from = getSetting(db, KEY_FRECENCY_DECAY_FROM);
+        String factor = getSetting(db, KEY_FRECENCY_DECAY_FACTOR);
+        if (from == null || factor == null) {
+            long now = System.currentTimeMillis();
+            String decayed = getSetting(db, KEY_FRECENCY_DECAYED);
+            long elapsed = decayed != null ? now - Long.parseLong(decayed) : -1;
+            if (elapsed < 0) {
+                // First run or the clock went back, start counting from now
+                putSetting(db, KEY_FRECENCY_DECAYED, Long.toString(now));
+                return false;
+            }
+            if (elapsed < FRECENCY_DECAY_INTERVAL) {
+                return false;
+            }
+            from = "0";
+            factor = Double.toString(Math.pow(0.5, (double) elapsed / FRECENCY_HALF_LIFE));
+            db.beginTransaction();
+            try {
+                putSetting(db, KEY_FRECENCY_DECAYED, Long.toString(now));
+                putSetting(db, KEY_FRECENCY_DECAY_FROM, from);
+                putSetting(db, KEY_FRECENCY_DECAY_FACTOR, factor);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        }
+        do {
+            db.beginTransaction();
+            try {
+                // The last _id of the batch, none if this is the last batch
+                String to = null;
+                Cursor c = db.rawQuery("SELECT " + History._ID + " FROM " + TABLE_HISTORY
+                        + " WHERE " + History._ID + " > ? ORDER BY " + History._ID
+                        + " LIMIT 1 OFFSET " + (FRECENCY_DECAY_BATCH_SIZE - 1),
+                        new String[] { from });
+                try {
+                    if (c.moveToFirst()) {
+                        to = c.getString(0);
+                    }
+                } finally {
+                    c.close();
+                }
+                if (to == null) {
+                    db.execSQL("UPDATE " + TABLE_HISTORY + " SET " + HISTORY_FRECENCY
+                            + " = " + HISTORY_FRECENCY + " * ? WHERE " + History._ID + " > ?",
+                            new String[] { factor, from });
+                    db.delete(TABLE_SETTINGS, Settings.KEY + " IN (?, ?)", new String[] {
+                            KEY_FRECENCY_DECAY_FROM, KEY_FRECENCY_DECAY_FACTOR });
+                    db.setTransactionSuccessful();
+                    return false;
+                }
+                db.execSQL("UPDATE " + TABLE_HISTORY + " SET " + HISTORY_FRECENCY
+                        + " = " + HISTORY_FRECENCY + " * ? WHERE " + History._ID + " > ? AND "
+                        + History._ID + " <= ?", new String[] { factor, from, to });
+                putSetting(db, KEY_FRECENCY_DECAY_FROM, to);
+                db.setTransactionSuccessful();
+                from = to;
+            } finally {
+                db.endTransaction();
+            }
+        } while (SystemClock.uptimeMillis() - start < budgetMillis);
+        return true;
+    }
+
+    private static String getSetting(SQLiteDatabase db, String key) {
+        Cursor c = db.query(TABLE_SETTINGS, new String[] { Settings.VALUE },
+                Settings.KEY + "=?", new String[] { key }, null, null, null);
+        try {
+            return c.moveToFirst() ? c.getString(0) : null;
+        } finally {
+            c.close();
+        }
+    }
+
+    private void putSetting(SQLiteDatabase db, String key, String value) {
+        ContentValues values = new ContentValues();
+        values.put(Settings.KEY, key);
+        values.put(Settings.VALUE, value);
+        insertSettingsInTransaction(db, values);
+    }
+
+    ImageGcHandler getImageGcHandler() {
+        synchronized (this) {
+            if (mImageGcHandler == null) {
+                HandlerThread thread = new HandlerThread("BrowserProvider2 image gc",
+                        Process.THREAD_PRIORITY_BACKGROUND);
+                thread.start();
+                mImageGcHandler = new ImageGcHandler(thread.getLooper());
+            }
+            return mImageGcHandler;
+        }
+    }
+
+    /**
+     * Runs image collection in time boxed slices off the caller's thread,
+     * followed by a sweep of the image files when anything was dropped.
+     * The periodic frecency decay runs here too, the same way.
+     */
+    class ImageGcHandler extends Handler {
+        static final int MSG_COLLECT = 1;
+        static final int MSG_SWEEP = 2;
+        static final int MSG_DECAY = 3;
+
+        ImageGcHandler(Looper looper) {
+            super(looper);
+        }
+
+        void scheduleCollect() {
+            if (!hasMessages(MSG_COLLECT)) {
+                sendEmptyMessageDelayed(MSG_COLLECT, IMAGE_GC_DELAY);
+            }
+        }
+
+        void scheduleDecay() {
+            if (!hasMessages(MSG_DECAY)) {
+                sendEmptyMessageDelayed(MSG_DECAY, FRECENCY_DECAY_CHECK_DELAY);
+            }
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            switch (msg.what) {
+                case MSG_COLLECT:
+                    if (collectImages(IMAGE_GC_SLICE_MILLIS)) {
+                        sendEmptyMessageDelayed(MSG_COLLECT, IMAGE_GC_SLICE_INTERVAL);
+                    } else if (mSweepImageBlobs.get() && !hasMessages(MSG_SWEEP)) {
+                        long sinceSweep = SystemClock.elapsedRealtime() - mLastImageBlobSweep;
+                        sendEmptyMessageDelayed(MSG_SWEEP,
+                                Math.max(0, IMAGE_BLOBS_SWEEP_INTERVAL - sinceSweep));
+                    }
+                    break;
+                case MSG_SWEEP:
+                    sweepImageBlobs();
+                    break;
+                case MSG_DECAY:
+                    if (decayFrecency(IMAGE_GC_SLICE_MILLIS)) {
+                        sendEmptyMessageDelayed(MSG_DECAY, IMAGE_GC_SLICE_INTERVAL);
+                    } else {
+                        sendEmptyMessageDelayed(MSG_DECAY, FRECENCY_DECAY_INTERVAL);
+                    }
+                    break;
+            }
+        }
     }
 
     boolean shouldNotifyLegacy(Uri uri) {
@@ -2255,15 +2946,141 @@ public class BrowserProvider2 extends SQLiteContentProvider {
     private static final String SQL_CREATE_VIEW_OMNIBOX_SUGGESTIONS =
             "CREATE VIEW IF NOT EXISTS v_omnibox_suggestions "
             + " AS "
-            + "  SELECT _id, url, title, 1 AS bookmark, 0 AS visits, 0 AS date"
+            + "  SELECT _id, url, title, 1 AS bookmark, 0 AS visits, 0 AS date,"
+            + "    0 AS frecency"
             + "  FROM bookmarks "
             + "  WHERE deleted = 0 AND folder = 0 "
             + "  UNION ALL "
-            + "  SELECT _id, url, title, 0 AS bookmark, visits, date "
+            + "  SELECT _id, url, title, 0 AS bookmark, visits, date, frecency "
             + "  FROM history "
             + "  WHERE url NOT IN (SELECT url FROM bookmarks"
             + "    WHERE deleted = 0 AND folder = 0) "
-            + "  ORDER BY bookmark DESC, visits DESC, date DESC ";
+            + "  ORDER BY bookmark DESC, frecency DESC ";
+
+    private static final String SQL_CREATE_OMNIBOX_INDEX =
+            "CREATE VIRTUAL TABLE omnibox_fts USING fts4(url_key, title)";
+
+    // Urls are indexed without their scheme and "www." so that the first
+    // token is the host, which is what people start typing
+    static String sqlStripUrl(String column) {
+        return "(CASE"
+                + " WHEN " + column + " LIKE 'http://www.%' THEN substr(" + column + ", 12)"
+                + " WHEN " + column + " LIKE 'https://www.%' THEN substr(" + column + ", 13)"
+                + " WHEN " + column + " LIKE 'http://%' THEN substr(" + column + ", 8)"
+                + " WHEN " + column + " LIKE 'https://%' THEN substr(" + column + ", 9)"
+                + " ELSE " + column + " END)";
+    }
+
+    private static final String[] OMNIBOX_INDEX_TRIGGERS = new String[] {
+            "history_fts_insert", "history_fts_update", "history_fts_delete",
+            "bookmarks_fts_insert", "bookmarks_fts_update", "bookmarks_fts_delete",
+    };
+
+    private static final String SQL_CREATE_TRIGGER_HISTORY_INSERT =
+            "CREATE TRIGGER history_fts_insert AFTER INSERT ON history "
+            + "BEGIN "
+            + "  INSERT INTO omnibox_fts(docid, url_key, title) "
+            + "  VALUES (new._id, " + sqlStripUrl("new.url") + ", new.title); "
+            + "END";
+
+    private static final String SQL_CREATE_TRIGGER_HISTORY_UPDATE =
+            "CREATE TRIGGER history_fts_update AFTER UPDATE OF _id, url, title ON history "
+            + "BEGIN "
+            + "  DELETE FROM omnibox_fts WHERE docid = old._id; "
+            + "  INSERT INTO omnibox_fts(docid, url_key, title) "
+            + "  VALUES (new._id, " + sqlStripUrl("new.url") + ", new.title); "
+            + "END";
+
+    private static final String SQL_CREATE_TRIGGER_HISTORY_DELETE =
+            "CREATE TRIGGER history_fts_delete AFTER DELETE ON history "
+            + "BEGIN "
+            + "  DELETE FROM omnibox_fts WHERE docid = old._id; "
+            + "END";
+
+    private static final String SQL_CREATE_TRIGGER_BOOKMARKS_INSERT =
+            "CREATE TRIGGER bookmarks_fts_insert AFTER INSERT ON bookmarks "
+            + "WHEN new.folder = 0 "
+            + "BEGIN "
+            + "  INSERT INTO omnibox_fts(docid, url_key, title) "
+            + "  VALUES (-new._id, " + sqlStripUrl("new.url") + ", new.title); "
+            + "END";
+
+    private static final String SQL_CREATE_TRIGGER_BOOKMARKS_UPDATE =
+            "CREATE TRIGGER bookmarks_fts_update "
+            + "AFTER UPDATE OF _id, url, title, folder ON bookmarks "
+            + "BEGIN "
+            + "  DELETE FROM omnibox_fts WHERE docid = -old._id; "
+            + "  INSERT INTO omnibox_fts(docid, url_key, title) "
+            + "  SELECT -new._id, " + sqlStripUrl("new.url") + ", new.title "
+            + "  WHERE new.folder = 0; "
+            + "END";
+
+    private static final String SQL_CREATE_TRIGGER_BOOKMARKS_DELETE =
+            "CREATE TRIGGER bookmarks_fts_delete AFTER DELETE ON bookmarks "
+            + "BEGIN "
+            + "  DELETE FROM omnibox_fts WHERE docid = -old._id; "
+            + "END";
+
+    private static final String[] IMAGE_GC_TRIGGERS = new String[] {
+            "CREATE TRIGGER IF NOT EXISTS image_gc_history_delete "
+            + "AFTER DELETE ON history WHEN old.url IS NOT NULL "
+            + "BEGIN "
+            + "  INSERT OR IGNORE INTO image_gc VALUES (old.url); "
+            + "END",
+
+            "CREATE TRIGGER IF NOT EXISTS image_gc_history_update "
+            + "AFTER UPDATE OF url ON history "
+            + "WHEN old.url IS NOT NULL AND old.url IS NOT new.url "
+            + "BEGIN "
+            + "  INSERT OR IGNORE INTO image_gc VALUES (old.url); "
+            + "END",
+
+            "CREATE TRIGGER IF NOT EXISTS image_gc_bookmarks_delete "
+            + "AFTER DELETE ON bookmarks WHEN old.url IS NOT NULL "
+            + "BEGIN "
+            + "  INSERT OR IGNORE INTO image_gc VALUES (old.url); "
+            + "END",
+
+            "CREATE TRIGGER IF NOT EXISTS image_gc_bookmarks_update "
+            + "AFTER UPDATE OF url, deleted ON bookmarks "
+            + "WHEN old.url IS NOT NULL "
+            + "  AND (old.url IS NOT new.url OR new.deleted != 0) "
+            + "BEGIN "
+            + "  INSERT OR IGNORE INTO image_gc VALUES (old.url); "
+            + "END",
+
+            // Images can be stored ahead of, or without, a bookmark or visit
+            "CREATE TRIGGER IF NOT EXISTS image_gc_images_insert "
+            + "AFTER INSERT ON images "
+            + "BEGIN "
+            + "  INSERT OR IGNORE INTO image_gc VALUES (new.url_key); "
+            + "END",
+    };
+
+    // Takes the url and the title match expressions from buildOmniboxMatch
+    private static final String SQL_SELECT_OMNIBOX_MATCHES =
+            "SELECT docid FROM omnibox_fts WHERE omnibox_fts MATCH ? "
+            + "UNION "
+            + "SELECT docid FROM omnibox_fts WHERE omnibox_fts MATCH ?";
+
+    private static final String SUGGEST_INDEX_SELECTION =
+            "history._id IN (" + SQL_SELECT_OMNIBOX_MATCHES + ")"
+            + " OR history.url IN (SELECT url FROM bookmarks WHERE _id IN"
+            + " (SELECT -docid FROM (" + SQL_SELECT_OMNIBOX_MATCHES + ")))";
+
+    // Same rows as v_omnibox_suggestions, restricted to the index matches
+    private static final String SQL_SELECT_OMNIBOX_INDEX_SUGGESTIONS =
+            "  SELECT _id, url, title, 1 AS bookmark, 0 AS visits, 0 AS date,"
+            + "    0 AS frecency"
+            + "  FROM bookmarks "
+            + "  WHERE _id IN (SELECT -docid FROM (" + SQL_SELECT_OMNIBOX_MATCHES + ")) "
+            + "    AND deleted = 0 AND folder = 0 "
+            + "  UNION ALL "
+            + "  SELECT _id, url, title, 0 AS bookmark, visits, date, frecency "
+            + "  FROM history "
+            + "  WHERE _id IN (" + SQL_SELECT_OMNIBOX_MATCHES + ") "
+            + "    AND NOT EXISTS (SELECT 1 FROM bookmarks b WHERE b.url = history.url"
+            + "      AND b.deleted = 0 AND b.folder = 0) ";
 
     private static final String SQL_WHERE_ACCOUNT_HAS_BOOKMARKS =
             "0 < ( "
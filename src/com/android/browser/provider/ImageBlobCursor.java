@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser.provider;
+
+import android.database.CrossProcessCursorWrapper;
+import android.database.Cursor;
+import android.database.CursorWindow;
+import android.database.DatabaseUtils;
+import android.provider.BrowserContract.Images;
+
+/**
+ * Presents the image hashes stored in the images table as the image blobs
+ * callers expect. The bytes are only read from the {@link ImageBlobStore}
+ * when a row's blob is actually asked for.
+ *
+ * Windows filled for other processes carry the bytes, as the public
+ * contract promises; callers that want to load images lazily ask for the
+ * {@link BrowserProvider2.ImageBlobs} uri columns instead.
+ */
+class ImageBlobCursor extends CrossProcessCursorWrapper {
+
+    private static final String[] IMAGE_COLUMNS = new String[] {
+            Images.FAVICON,
+            Images.THUMBNAIL,
+            Images.TOUCH_ICON,
+    };
+
+    private final ImageBlobStore mStore;
+    private final boolean[] mIsImage;
+
+    /**
+     * @return the cursor, wrapped if it has any image columns
+     */
+    static Cursor wrap(Cursor cursor, ImageBlobStore store) {
+        if (cursor == null) {
+            return null;
+        }
+        for (String column : IMAGE_COLUMNS) {
+            if (cursor.getColumnIndex(column) >= 0) {
+                return new ImageBlobCursor(cursor, store);
+            }
+        }
+        return cursor;
+    }
+
+    private ImageBlobCursor(Cursor cursor, ImageBlobStore store) {
+        super(cursor);
+        mStore = store;
+        mIsImage = new boolean[cursor.getColumnCount()];
+        for (String column : IMAGE_COLUMNS) {
+            int index = cursor.getColumnIndex(column);
+            if (index >= 0) {
+                mIsImage[index] = true;
+            }
+        }
+    }
+
+    @Override
+    public byte[] getBlob(int columnIndex) {
+        if (!mIsImage[columnIndex]) {
+            return super.getBlob(columnIndex);
+        }
+        String hash = super.getString(columnIndex);
+        return hash != null ? mStore.get(hash) : null;
+    }
+
+    @Override
+    public int getType(int columnIndex) {
+        if (mIsImage[columnIndex]) {
+            return super.isNull(columnIndex) ? FIELD_TYPE_NULL : FIELD_TYPE_BLOB;
+        }
+        return super.getType(columnIndex);
+    }
+
+    @Override
+    public CursorWindow getWindow() {
+        // The wrapped cursor's window holds the hashes, not the images
+        return null;
+    }
+
+    @Override
+    public void fillWindow(int position, CursorWindow window) {
+        DatabaseUtils.cursorFillWindow(this, position, window);
+    }
+}
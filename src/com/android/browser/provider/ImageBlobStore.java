@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser.provider;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Set;
+
+/**
+ * Content addressed storage for the favicons, thumbnails and touch icons
+ * referenced from the images table. Each distinct image is written once,
+ * named by the SHA-1 of its bytes, so pages sharing a favicon share a file
+ * and the table only has to carry the hash.
+ */
+class ImageBlobStore {
+
+    private static final String LOGTAG = "ImageBlobStore";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final int HASH_LENGTH = 40;
+
+    private final File mDirectory;
+
+    ImageBlobStore(File directory) {
+        mDirectory = directory;
+        mDirectory.mkdirs();
+    }
+
+    /**
+     * Stores the image if it isn't already present.
+     * @return the hash to reference it by, or null if it couldn't be written
+     */
+    String put(byte[] data) {
+        String hash = hash(data);
+        File file = new File(mDirectory, hash);
+        synchronized (this) {
+            if (file.exists()) {
+                // Callers store the hash in the same provider transaction,
+                // which keeps sweep() out until the reference is written
+                return hash;
+            }
+            File temp = new File(mDirectory, hash + TEMP_SUFFIX);
+            FileOutputStream out = null;
+            try {
+                out = new FileOutputStream(temp);
+                out.write(data);
+            } catch (IOException e) {
+                Log.w(LOGTAG, "Failed to write image " + hash, e);
+                temp.delete();
+                return null;
+            } finally {
+                closeQuietly(out);
+            }
+            if (!temp.renameTo(file)) {
+                temp.delete();
+                return null;
+            }
+        }
+        return hash;
+    }
+
+    byte[] get(String hash) {
+        File file = getFile(hash);
+        if (file == null) {
+            return null;
+        }
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            byte[] data = new byte[(int) file.length()];
+            int offset = 0;
+            int read;
+            while (offset < data.length
+                    && (read = in.read(data, offset, data.length - offset)) > 0) {
+                offset += read;
+            }
+            return offset == data.length ? data : null;
+        } catch (IOException e) {
+            Log.w(LOGTAG, "Failed to read image " + hash, e);
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    /**
+     * @return the file holding the image, or null if the hash is malformed
+     *      or unknown
+     */
+    File getFile(String hash) {
+        if (!isValidHash(hash)) {
+            return null;
+        }
+        File file = new File(mDirectory, hash);
+        return file.exists() ? file : null;
+    }
+
+    /**
+     * Deletes every stored image that isn't in live.
+     * @return the number of images deleted
+     */
+    synchronized int sweep(Set<String> live) {
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return 0;
+        }
+        int deleted = 0;
+        for (File file : files) {
+            if (!live.contains(file.getName()) && file.delete()) {
+                deleted++;
+            }
+        }
+        return deleted;
+    }
+
+    static boolean isValidHash(String hash) {
+        if (hash == null || hash.length() != HASH_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < HASH_LENGTH; i++) {
+            char c = hash.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static String hash(byte[] data) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+        byte[] hash = digest.digest(data);
+        StringBuilder hex = new StringBuilder(hash.length * 2);
+        for (byte b : hash) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+            hex.append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    private static void closeQuietly(Closeable c) {
+        if (c != null) {
+            try {
+                c.close();
+            } catch (IOException e) { }
+        }
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser.provider;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps the tab thumbnails behind {@link BrowserProvider2.Thumbnails} as one
+ * file per tab id instead of blobs in the database. The data is stored as
+ * given (the browser hands over compressed images). Files are replaced
+ * atomically, and once the total size goes over the budget the least
+ * recently used thumbnails are evicted.
+ */
+class ThumbnailStore {
+
+    private static final String LOGTAG = "ThumbnailStore";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final File mDirectory;
+    private final long mBudget;
+
+    // id -> file size, least recently used first; loaded on first use
+    private LinkedHashMap<Long, Long> mEntries;
+    private long mTotalSize;
+
+    ThumbnailStore(File directory, long budget) {
+        mDirectory = directory;
+        mBudget = budget;
+    }
+
+    synchronized byte[] get(long id) {
+        Long size = getEntries().get(id);
+        if (size == null) {
+            return null;
+        }
+        File file = getFile(id);
+        byte[] data = new byte[size.intValue()];
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            int offset = 0;
+            int read;
+            while (offset < data.length
+                    && (read = in.read(data, offset, data.length - offset)) > 0) {
+                offset += read;
+            }
+            if (offset != data.length) {
+                throw new IOException("Short read, " + offset + " of " + data.length);
+            }
+        } catch (IOException e) {
+            Log.w(LOGTAG, "Failed to read thumbnail " + id, e);
+            remove(id);
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+        // Persist the access so the eviction order survives a restart
+        file.setLastModified(System.currentTimeMillis());
+        return data;
+    }
+
+    synchronized boolean put(long id, byte[] data) {
+        LinkedHashMap<Long, Long> entries = getEntries();
+        File temp = new File(mDirectory, id + TEMP_SUFFIX);
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(temp);
+            out.write(data);
+            out.getFD().sync();
+        } catch (IOException e) {
+            Log.w(LOGTAG, "Failed to write thumbnail " + id, e);
+            temp.delete();
+            return false;
+        } finally {
+            closeQuietly(out);
+        }
+        File file = getFile(id);
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            return false;
+        }
+        Long old = entries.remove(id);
+        if (old != null) {
+            mTotalSize -= old;
+        }
+        entries.put(id, (long) data.length);
+        mTotalSize += data.length;
+        trimToBudget();
+        return true;
+    }
+
+    synchronized boolean delete(long id) {
+        if (!getEntries().containsKey(id)) {
+            return false;
+        }
+        remove(id);
+        return true;
+    }
+
+    synchronized int deleteAll() {
+        long[] ids = getIds();
+        for (long id : ids) {
+            remove(id);
+        }
+        return ids.length;
+    }
+
+    synchronized long[] getIds() {
+        LinkedHashMap<Long, Long> entries = getEntries();
+        long[] ids = new long[entries.size()];
+        int i = 0;
+        for (Long id : entries.keySet()) {
+            ids[i++] = id;
+        }
+        return ids;
+    }
+
+    synchronized long getTotalSize() {
+        getEntries();
+        return mTotalSize;
+    }
+
+    private void trimToBudget() {
+        Iterator<Map.Entry<Long, Long>> it = mEntries.entrySet().iterator();
+        // Never evict the thumbnail that was just written
+        while (mTotalSize > mBudget && mEntries.size() > 1) {
+            Map.Entry<Long, Long> eldest = it.next();
+            getFile(eldest.getKey()).delete();
+            mTotalSize -= eldest.getValue();
+            it.remove();
+        }
+    }
+
+    private void remove(long id) {
+        Long size = mEntries.remove(id);
+        if (size != null) {
+            mTotalSize -= size;
+        }
+        getFile(id).delete();
+    }
+
+    private File getFile(long id) {
+        return new File(mDirectory, Long.toString(id));
+    }
+
+    private LinkedHashMap<Long, Long> getEntries() {
+        if (mEntries != null) {
+            return mEntries;
+        }
+        mEntries = new LinkedHashMap<Long, Long>(16, 0.75f, true);
+        mTotalSize = 0;
+        mDirectory.mkdirs();
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return mEntries;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long l = lhs.lastModified();
+                long r = rhs.lastModified();
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+        for (File file : files) {
+            long id;
+            try {
+                id = Long.parseLong(file.getName());
+            } catch (NumberFormatException e) {
+                // Left over from an interrupted write
+                file.delete();
+                continue;
+            }
+            mEntries.put(id, file.length());
+            mTotalSize += file.length();
+        }
+        return mEntries;
+    }
+
+    private static void closeQuietly(Closeable c) {
+        if (c != null) {
+            try {
+                c.close();
+            } catch (IOException e) { }
+        }
+    }
+}
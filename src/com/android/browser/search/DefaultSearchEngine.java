@@ -26,6 +26,7 @@ import android.content.pm.ActivityInfo;
 import android.content.pm.PackageManager;
 import android.database.Cursor;
 import android.os.Bundle;
+import android.os.CancellationSignal;
 import android.provider.Browser;
 import android.text.TextUtils;
 import android.util.Log;
@@ -106,9 +107,26 @@ public class DefaultSearchEngine implements SearchEngine {
     }
 
     public Cursor getSuggestions(Context context, String query) {
+        return getSuggestions(context, query, null);
+    }
+
+    public Cursor getCachedSuggestions(String query) {
+        return null;
+    }
+
+    public Cursor getSuggestions(Context context, String query, CancellationSignal signal) {
+        // SearchManager can't abort a query, only skip one that is no longer wanted
+        if (signal != null && signal.isCanceled()) {
+            return null;
+        }
         SearchManager searchManager =
                 (SearchManager) context.getSystemService(Context.SEARCH_SERVICE);
-        return searchManager.getSuggestions(mSearchable, query);
+        Cursor cursor = searchManager.getSuggestions(mSearchable, query);
+        if (cursor != null && signal != null && signal.isCanceled()) {
+            cursor.close();
+            return null;
+        }
+        return cursor;
     }
 
     public boolean supportsSuggestions() {
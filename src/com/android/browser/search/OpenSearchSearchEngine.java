@@ -25,8 +25,6 @@ import java.nio.charset.IllegalCharsetNameException;
 import java.nio.charset.UnsupportedCharsetException;
 import libcore.io.Streams;
 import libcore.net.http.ResponseUtils;
-import org.json.JSONArray;
-import org.json.JSONException;
 
 import android.app.SearchManager;
 import android.content.Context;
@@ -37,6 +35,7 @@ import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.CancellationSignal;
 import android.provider.Browser;
 import android.text.TextUtils;
 import android.util.Log;
@@ -52,6 +51,8 @@ public class OpenSearchSearchEngine implements SearchEngine {
 
     private static final String USER_AGENT = "Android/1.0";
     private static final int HTTP_TIMEOUT_MS = 1000;
+    // Most of a response left unread that is read to keep the connection
+    private static final int MAX_DRAIN_BYTES = 16 * 1024;
 
     // Indices of the columns in the below arrays.
     private static final int COLUMN_INDEX_ID = 0;
@@ -77,6 +78,9 @@ public class OpenSearchSearchEngine implements SearchEngine {
         SearchManager.SUGGEST_COLUMN_TEXT_1,
     };
 
+    // Shared by all engines, engines are recreated when the settings change
+    private static final SuggestionCache sCache = new SuggestionCache();
+
     private final SearchEngineInfo mSearchEngineInfo;
 
     public OpenSearchSearchEngine(Context context, SearchEngineInfo searchEngineInfo) {
@@ -117,9 +121,21 @@ public class OpenSearchSearchEngine implements SearchEngine {
      * suggestions ordered by best match.
      */
     public Cursor getSuggestions(Context context, String query) {
+        return getSuggestions(context, query, null);
+    }
+
+    /**
+     * Like {@link #getSuggestions(Context, String)}, but cancelling signal
+     * disconnects the request in progress.
+     */
+    public Cursor getSuggestions(Context context, String query, CancellationSignal signal) {
         if (TextUtils.isEmpty(query)) {
             return null;
         }
+        SuggestionCache.Entry cached = sCache.get(getName(), query);
+        if (cached != null) {
+            return new SuggestionsCursor(cached);
+        }
         if (!isNetworkConnected(context)) {
             Log.i(TAG, "Not connected to network.");
             return null;
@@ -131,31 +147,35 @@ public class OpenSearchSearchEngine implements SearchEngine {
             return null;
         }
 
-        try {
-            String content = readUrl(suggestUri);
-            if (content == null) return null;
-            /* The data format is a JSON array with items being regular strings or JSON arrays
-             * themselves. We are interested in the second and third elements, both of which
-             * should be JSON arrays. The second element/array contains the suggestions and the
-             * third element contains the descriptions. Some search engines don't support
-             * suggestion descriptions so the third element is optional.
-             */
-            JSONArray results = new JSONArray(content);
-            JSONArray suggestions = results.getJSONArray(1);
-            JSONArray descriptions = null;
-            if (results.length() > 2) {
-                descriptions = results.getJSONArray(2);
-                // Some search engines given an empty array "[]" for descriptions instead of
-                // not including it in the response.
-                if (descriptions.length() == 0) {
-                    descriptions = null;
-                }
-            }
-            return new SuggestionsCursor(suggestions, descriptions);
-        } catch (JSONException e) {
-            Log.w(TAG, "Error", e);
+        SuggestionCache.Entry entry = loadSuggestions(sCache, getName(), query, suggestUri,
+                signal);
+        return entry != null ? new SuggestionsCursor(entry) : null;
+    }
+
+    /**
+     * Returns the cached suggestions for a shorter prefix of query that
+     * also match query, without making a network request.
+     */
+    public Cursor getCachedSuggestions(String query) {
+        if (TextUtils.isEmpty(query)) {
+            return null;
         }
-        return null;
+        SuggestionCache.Entry entry = sCache.getForPrefix(getName(), query);
+        return entry != null ? new SuggestionsCursor(entry) : null;
+    }
+
+    /**
+     * Fetches the suggestions for query from suggestUri and adds them to
+     * cache.
+     *
+     * @return The parsed suggestions, or null if the request failed or was
+     *         cancelled.
+     */
+    static SuggestionCache.Entry loadSuggestions(SuggestionCache cache, String engine,
+            String query, String suggestUri, CancellationSignal signal) {
+        SuggestionParser parser = fetch(suggestUri, signal, SUGGESTIONS_BODY);
+        if (parser == null) return null;
+        return cache.put(engine, query, parser.getSuggestions(), parser.getDescriptions());
     }
 
     /**
@@ -166,36 +186,130 @@ public class OpenSearchSearchEngine implements SearchEngine {
      *         contained no content.
      */
     public String readUrl(String urlString) {
+        return readUrl(urlString, null);
+    }
+
+    /**
+     * Executes a GET request that is disconnected when signal is cancelled.
+     *
+     * @return The response content, or null if the request failed or was
+     *         cancelled.
+     */
+    public static String readUrl(String urlString, CancellationSignal signal) {
+        return fetch(urlString, signal, STRING_BODY);
+    }
+
+    private interface BodyReader<T> {
+        /**
+         * @return the result of the request, null if it failed
+         */
+        T read(InputStream in, Charset charset) throws IOException;
+    }
+
+    private static final BodyReader<String> STRING_BODY = new BodyReader<String>() {
+        @Override
+        public String read(InputStream in, Charset charset) throws IOException {
+            byte[] responseBytes = Streams.readFully(in);
+            return new String(responseBytes, charset);
+        }
+    };
+
+    private static final BodyReader<SuggestionParser> SUGGESTIONS_BODY =
+            new BodyReader<SuggestionParser>() {
+        @Override
+        public SuggestionParser read(InputStream in, Charset charset) throws IOException {
+            SuggestionParser parser = new SuggestionParser();
+            try {
+                return parser.parse(in, charset) ? parser : null;
+            } finally {
+                drain(in);
+                in.close();
+            }
+        }
+    };
+
+    /**
+     * Read what the parser left of a response, so that closing the stream
+     * keeps the connection for reuse. A larger tail drops the connection.
+     */
+    private static void drain(InputStream in) {
+        byte[] buffer = new byte[4096];
+        int left = MAX_DRAIN_BYTES;
+        try {
+            while (left > 0) {
+                int n = in.read(buffer, 0, Math.min(buffer.length, left));
+                if (n < 0) {
+                    return;
+                }
+                left -= n;
+            }
+        } catch (IOException e) {
+            // The connection won't be reused
+        }
+    }
+
+    private static <T> T fetch(String urlString, CancellationSignal signal,
+            BodyReader<T> body) {
         try {
             URL url = new URL(urlString);
-            HttpURLConnection urlConnection = (HttpURLConnection) url.openConnection();
+            final HttpURLConnection urlConnection = (HttpURLConnection) url.openConnection();
             urlConnection.setRequestProperty("User-Agent", USER_AGENT);
             urlConnection.setConnectTimeout(HTTP_TIMEOUT_MS);
-
-            if (urlConnection.getResponseCode() == 200) {
-                final Charset responseCharset;
-                try {
-                    responseCharset = ResponseUtils.responseCharset(urlConnection.getContentType());
-                } catch (UnsupportedCharsetException ucse) {
-                    Log.i(TAG, "Unsupported response charset", ucse);
-                    return null;
-                } catch (IllegalCharsetNameException icne) {
-                    Log.i(TAG, "Illegal response charset", icne);
+            if (signal != null) {
+                // Cancelling from here on aborts the request
+                signal.setOnCancelListener(new CancellationSignal.OnCancelListener() {
+                    @Override
+                    public void onCancel() {
+                        urlConnection.disconnect();
+                    }
+                });
+            }
+            try {
+                if (signal != null && signal.isCanceled()) {
                     return null;
                 }
-
-                byte[] responseBytes = Streams.readFully(urlConnection.getInputStream());
-                return new String(responseBytes, responseCharset);
-            } else {
-                Log.i(TAG, "Suggestion request failed");
-                return null;
+                return readResponse(urlConnection, body);
+            } finally {
+                if (signal != null) {
+                    signal.setOnCancelListener(null);
+                }
             }
         } catch (IOException e) {
+            if (signal != null && signal.isCanceled()) {
+                // Disconnected on purpose
+                return null;
+            }
             Log.w(TAG, "Error", e);
             return null;
         }
     }
 
+    private static <T> T readResponse(HttpURLConnection urlConnection, BodyReader<T> body)
+            throws IOException {
+        if (urlConnection.getResponseCode() != 200) {
+            Log.i(TAG, "Suggestion request failed");
+            // Drain the error body so that the connection can be reused
+            InputStream error = urlConnection.getErrorStream();
+            if (error != null) {
+                Streams.skipAll(error);
+                error.close();
+            }
+            return null;
+        }
+        final Charset responseCharset;
+        try {
+            responseCharset = ResponseUtils.responseCharset(urlConnection.getContentType());
+        } catch (UnsupportedCharsetException ucse) {
+            Log.i(TAG, "Unsupported response charset", ucse);
+            return null;
+        } catch (IllegalCharsetNameException icne) {
+            Log.i(TAG, "Illegal response charset", icne);
+            return null;
+        }
+
+        return body.read(urlConnection.getInputStream(), responseCharset);
+    }
+
     public boolean supportsSuggestions() {
         return mSearchEngineInfo.supportsSuggestions();
     }
@@ -219,18 +333,18 @@ public class OpenSearchSearchEngine implements SearchEngine {
 
     private static class SuggestionsCursor extends AbstractCursor {
 
-        private final JSONArray mSuggestions;
+        private final String[] mSuggestions;
 
-        private final JSONArray mDescriptions;
+        private final String[] mDescriptions;
 
-        public SuggestionsCursor(JSONArray suggestions, JSONArray descriptions) {
-            mSuggestions = suggestions;
-            mDescriptions = descriptions;
+        public SuggestionsCursor(SuggestionCache.Entry entry) {
+            mSuggestions = entry.suggestions;
+            mDescriptions = entry.descriptions;
         }
 
         @Override
         public int getCount() {
-            return mSuggestions.length();
+            return mSuggestions.length;
         }
 
         @Override
@@ -242,17 +356,9 @@ public class OpenSearchSearchEngine implements SearchEngine {
         public String getString(int column) {
             if (mPos != -1) {
                 if ((column == COLUMN_INDEX_QUERY) || (column == COLUMN_INDEX_TEXT_1)) {
-                    try {
-                        return mSuggestions.getString(mPos);
-                    } catch (JSONException e) {
-                        Log.w(TAG, "Error", e);
-                    }
+                    return mSuggestions[mPos];
                 } else if (column == COLUMN_INDEX_TEXT_2) {
-                    try {
-                        return mDescriptions.getString(mPos);
-                    } catch (JSONException e) {
-                        Log.w(TAG, "Error", e);
-                    }
+                    return mPos < mDescriptions.length ? mDescriptions[mPos] : null;
                 } else if (column == COLUMN_INDEX_ICON) {
                     return String.valueOf(R.drawable.magnifying_glass);
                 }
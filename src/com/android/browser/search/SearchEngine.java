@@ -18,6 +18,7 @@ package com.android.browser.search;
 import android.content.Context;
 import android.database.Cursor;
 import android.os.Bundle;
+import android.os.CancellationSignal;
 
 /**
  * Interface for search engines.
@@ -47,6 +48,18 @@ public interface SearchEngine {
      */
     public Cursor getSuggestions(Context context, String query);
 
+    /**
+     * Gets search suggestions, giving up early and returning null once
+     * signal is cancelled. signal may be null.
+     */
+    public Cursor getSuggestions(Context context, String query, CancellationSignal signal);
+
+    /**
+     * Gets search suggestions that are available without a request, for
+     * instance narrowed down from those of a shorter query. May return null.
+     */
+    public Cursor getCachedSuggestions(String query);
+
     /**
      * Checks whether this search engine supports search suggestions.
      */
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser.search;
+
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Bounded cache of parsed search suggestions, keyed by search engine and
+ * query. Entries expire after a fixed time, and the least recently used ones
+ * are dropped once the cache is full.
+ *
+ * The suggestions for a query can be approximated from those cached for a
+ * shorter prefix of it, see {@link #getForPrefix(String, String)}.
+ *
+ * This class is thread safe.
+ */
+class SuggestionCache {
+
+    static final int MAX_ENTRIES = 64;
+    static final long TTL = 5 * 60 * 1000;
+
+    static class Entry {
+        final String[] suggestions;
+        // Null if the engine does not describe its suggestions
+        final String[] descriptions;
+        final long time;
+
+        Entry(String[] s, String[] d, long t) {
+            suggestions = s;
+            descriptions = d;
+            time = t;
+        }
+    }
+
+    private final int mMaxEntries;
+    private final long mTtl;
+    private final LinkedHashMap<String, Entry> mEntries;
+
+    // Accounting
+    private int mHits;
+    private int mPrefixHits;
+    private int mMisses;
+
+    SuggestionCache() {
+        this(MAX_ENTRIES, TTL);
+    }
+
+    SuggestionCache(int maxEntries, long ttl) {
+        mMaxEntries = maxEntries;
+        mTtl = ttl;
+        mEntries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > mMaxEntries;
+            }
+        };
+    }
+
+    /**
+     * @return the fresh suggestions cached for exactly query, or null
+     */
+    synchronized Entry get(String engine, String query) {
+        Entry e = lookup(engine, query);
+        if (e != null) {
+            mHits++;
+        } else {
+            mMisses++;
+        }
+        return e;
+    }
+
+    /**
+     * Find the longest shorter prefix of query with fresh suggestions and
+     * keep those that start with query.
+     *
+     * @return the matching suggestions, or null if there are none
+     */
+    synchronized Entry getForPrefix(String engine, String query) {
+        for (int len = query.length() - 1; len > 0; len--) {
+            Entry e = lookup(engine, query.substring(0, len));
+            if (e != null) {
+                Entry filtered = filter(e, query);
+                if (filtered != null) {
+                    mPrefixHits++;
+                }
+                return filtered;
+            }
+        }
+        return null;
+    }
+
+    synchronized Entry put(String engine, String query, String[] suggestions,
+            String[] descriptions) {
+        Entry e = new Entry(suggestions, descriptions, SystemClock.elapsedRealtime());
+        mEntries.put(key(engine, query), e);
+        return e;
+    }
+
+    synchronized void clear() {
+        mEntries.clear();
+    }
+
+    synchronized String getStats() {
+        return "Suggestion cache: " + mEntries.size() + "/" + mMaxEntries + " entries, "
+                + mHits + " hits, " + mPrefixHits + " prefix hits, " + mMisses + " misses";
+    }
+
+    private Entry lookup(String engine, String query) {
+        String key = key(engine, query);
+        Entry e = mEntries.get(key);
+        if (e != null && SystemClock.elapsedRealtime() - e.time > mTtl) {
+            mEntries.remove(key);
+            return null;
+        }
+        return e;
+    }
+
+    private static Entry filter(Entry e, String query) {
+        String prefix = query.toLowerCase(Locale.getDefault());
+        ArrayList<String> suggestions = new ArrayList<String>();
+        ArrayList<String> descriptions = new ArrayList<String>();
+        for (int i = 0; i < e.suggestions.length; i++) {
+            String s = e.suggestions[i];
+            if (s != null && s.toLowerCase(Locale.getDefault()).startsWith(prefix)) {
+                suggestions.add(s);
+                if (e.descriptions != null) {
+                    descriptions.add(i < e.descriptions.length ? e.descriptions[i] : null);
+                }
+            }
+        }
+        if (suggestions.isEmpty()) {
+            return null;
+        }
+        return new Entry(suggestions.toArray(new String[suggestions.size()]),
+                e.descriptions != null
+                        ? descriptions.toArray(new String[descriptions.size()]) : null,
+                e.time);
+    }
+
+    private static String key(String engine, String query) {
+        return engine + '\n' + query;
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser.search;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+
+/**
+ * Streaming parser for OpenSearch suggestion responses. The response is a
+ * JSON array whose second element is the array of suggestions and whose
+ * optional third element is the array of their descriptions.
+ *
+ * The response is read straight from the stream into one array per column,
+ * without building a JSON tree. At most {@link #MAX_SUGGESTIONS} are kept,
+ * reading stops as soon as they are complete, and a response that needs
+ * more than {@link #MAX_BYTES} to get there is rejected.
+ */
+class SuggestionParser {
+
+    static final int MAX_SUGGESTIONS = 20;
+    static final int MAX_BYTES = 256 * 1024;
+
+    private final int mMaxSuggestions;
+    private final int mMaxBytes;
+    private String[] mSuggestions;
+    private String[] mDescriptions;
+
+    SuggestionParser() {
+        this(MAX_SUGGESTIONS, MAX_BYTES);
+    }
+
+    SuggestionParser(int maxSuggestions, int maxBytes) {
+        mMaxSuggestions = maxSuggestions;
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Parse a response. The stream is left open.
+     *
+     * @return false if the response is not a suggestions response
+     * @throws IOException if the response could not be read, is malformed
+     *      or is too large
+     */
+    boolean parse(InputStream in, Charset charset) throws IOException {
+        mSuggestions = null;
+        mDescriptions = null;
+        JsonReader reader = new JsonReader(
+                new InputStreamReader(new CappedInputStream(in, mMaxBytes), charset));
+        try {
+            reader.beginArray();
+            // The query the suggestions are for
+            if (!reader.hasNext()) {
+                return false;
+            }
+            reader.skipValue();
+            if (!reader.hasNext() || reader.peek() != JsonToken.BEGIN_ARRAY) {
+                return false;
+            }
+            ArrayList<String> suggestions = readStrings(reader, mMaxSuggestions);
+            ArrayList<String> descriptions = null;
+            if (reader.hasNext() && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                descriptions = readStrings(reader, suggestions.size());
+                // Some search engines give an empty array "[]" for descriptions instead of
+                // not including it in the response.
+                if (descriptions.isEmpty()) {
+                    descriptions = null;
+                }
+            }
+            // The rest of the response is of no interest
+            toColumns(suggestions, descriptions);
+            return true;
+        } catch (IllegalStateException e) {
+            // An element of an unexpected type
+            throw new IOException(e);
+        }
+    }
+
+    String[] getSuggestions() {
+        return mSuggestions;
+    }
+
+    /**
+     * @return the descriptions, null if the engine sent none
+     */
+    String[] getDescriptions() {
+        return mDescriptions;
+    }
+
+    // Read up to max values of an array, non strings as null, and skip the rest
+    private static ArrayList<String> readStrings(JsonReader reader, int max)
+            throws IOException {
+        ArrayList<String> values = new ArrayList<String>(Math.min(max, 16));
+        reader.beginArray();
+        while (reader.hasNext()) {
+            if (values.size() >= max) {
+                reader.skipValue();
+            } else if (reader.peek() == JsonToken.STRING || reader.peek() == JsonToken.NUMBER) {
+                values.add(reader.nextString());
+            } else {
+                reader.skipValue();
+                values.add(null);
+            }
+        }
+        reader.endArray();
+        return values;
+    }
+
+    // Drop the suggestions that are not strings, with their descriptions
+    private void toColumns(ArrayList<String> suggestions, ArrayList<String> descriptions) {
+        int count = 0;
+        for (String s : suggestions) {
+            if (s != null) {
+                count++;
+            }
+        }
+        mSuggestions = new String[count];
+        mDescriptions = descriptions != null ? new String[count] : null;
+        int j = 0;
+        for (int i = 0; i < suggestions.size(); i++) {
+            if (suggestions.get(i) == null) {
+                continue;
+            }
+            mSuggestions[j] = suggestions.get(i);
+            if (mDescriptions != null && i < descriptions.size()) {
+                mDescriptions[j] = descriptions.get(i);
+            }
+            j++;
+        }
+    }
+
+    /**
+     * Fails reads beyond a number of bytes.
+     */
+    private static class CappedInputStream extends FilterInputStream {
+
+        private int mRemaining;
+
+        CappedInputStream(InputStream in, int max) {
+            super(in);
+            mRemaining = max;
+        }
+
+        @Override
+        public int read() throws IOException {
+            checkRemaining();
+            int b = super.read();
+            if (b >= 0) {
+                mRemaining--;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            checkRemaining();
+            int n = super.read(buffer, offset, Math.min(count, mRemaining));
+            if (n > 0) {
+                mRemaining -= n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            checkRemaining();
+            long n = super.skip(Math.min(count, mRemaining));
+            if (n > 0) {
+                mRemaining -= n;
+            }
+            return n;
+        }
+
+        private void checkRemaining() throws IOException {
+            if (mRemaining <= 0) {
+                throw new IOException("Response too large");
+            }
+        }
+    }
+}
@@ -25,7 +25,6 @@ import android.database.Cursor;
 import android.database.MergeCursor;
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.Config;
-import android.graphics.BitmapFactory;
 import android.graphics.BitmapFactory.Options;
 import android.net.Uri;
 import android.os.Binder;
@@ -36,6 +35,7 @@ import android.util.Log;
 import android.widget.RemoteViews;
 import android.widget.RemoteViewsService;
 
+import com.android.browser.BitmapPool;
 import com.android.browser.BrowserActivity;
 import com.android.browser.R;
 import com.android.browser.provider.BrowserProvider2;
@@ -166,10 +166,18 @@ public class BookmarkThumbnailWidgetService extends RemoteViewsService {
         private long mCurrentFolder = -1;
         private long mRootFolder = -1;
         private SharedPreferences mPreferences = null;
+        // RemoteViews require a valid bitmap config
+        private final Options mOptions = new Options();
+        // The images of the last row handed out. Its RemoteViews has been
+        // written out by the time the next row is asked for, so they can be
+        // decoded into again.
+        private Bitmap mLastThumbnail;
+        private Bitmap mLastFavicon;
 
         public BookmarkFactory(Context context, int widgetId) {
             mContext = context.getApplicationContext();
             mWidgetId = widgetId;
+            mOptions.inPreferredConfig = Config.ARGB_8888;
         }
 
         void syncState() {
@@ -247,15 +255,13 @@ public class BookmarkThumbnailWidgetService extends RemoteViewsService {
                     views.setImageViewResource(R.id.thumb, R.drawable.thumb_bookmark_widget_folder_holo);
                 }
             } else {
-                // RemoteViews require a valid bitmap config
-                Options options = new Options();
-                options.inPreferredConfig = Config.ARGB_8888;
+                releaseBitmaps();
                 Bitmap thumbnail = null, favicon = null;
                 byte[] blob = mBookmarks.getBlob(BOOKMARK_INDEX_THUMBNAIL);
                 views.setDrawableParameters(R.id.thumb, true, 255, -1, null, -1);
                 if (blob != null && blob.length > 0) {
-                    thumbnail = BitmapFactory.decodeByteArray(
-                            blob, 0, blob.length, options);
+                    thumbnail = BitmapPool.getInstance().decode(blob, mOptions);
+                    mLastThumbnail = thumbnail;
                     views.setImageViewBitmap(R.id.thumb, thumbnail);
                 } else {
                     views.setImageViewResource(R.id.thumb,
@@ -263,8 +269,8 @@ public class BookmarkThumbnailWidgetService extends RemoteViewsService {
                 }
                 blob = mBookmarks.getBlob(BOOKMARK_INDEX_FAVICON);
                 if (blob != null && blob.length > 0) {
-                    favicon = BitmapFactory.decodeByteArray(
-                            blob, 0, blob.length, options);
+                    favicon = BitmapPool.getInstance().decode(blob, mOptions);
+                    mLastFavicon = favicon;
                     views.setImageViewBitmap(R.id.favicon, favicon);
                 } else {
                     views.setImageViewResource(R.id.favicon,
@@ -309,9 +315,17 @@ public class BookmarkThumbnailWidgetService extends RemoteViewsService {
                 mBookmarks.close();
                 mBookmarks = null;
             }
+            releaseBitmaps();
             deleteWidgetState(mContext, mWidgetId);
         }
 
+        private void releaseBitmaps() {
+            BitmapPool.getInstance().put(mLastThumbnail);
+            BitmapPool.getInstance().put(mLastFavicon);
+            mLastThumbnail = null;
+            mLastFavicon = null;
+        }
+
         @Override
         public void onDataSetChanged() {
             long token = Binder.clearCallingIdentity();
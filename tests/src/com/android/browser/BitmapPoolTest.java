@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser;
+
+import android.graphics.Bitmap;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+/**
+ * Tests for {@link BitmapPool}.
+ */
+@SmallTest
+public class BitmapPoolTest extends AndroidTestCase {
+
+    private static final Bitmap.Config CONFIG = Bitmap.Config.ARGB_8888;
+
+    private BitmapPool mPool;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mPool = new BitmapPool(16 * 1024 * 1024);
+    }
+
+    public void testSameSizeIsReused() {
+        // 86400 bytes, not a power of two
+        Bitmap b = Bitmap.createBitmap(180, 120, CONFIG);
+        mPool.put(b);
+        Bitmap reused = mPool.get(180, 120, CONFIG);
+        assertSame(b, reused);
+        assertEquals(180, reused.getWidth());
+        assertEquals(120, reused.getHeight());
+        assertTrue(mPool.getStats().contains("1/1 hits"));
+    }
+
+    public void testSmallerSizeIsReused() {
+        Bitmap b = Bitmap.createBitmap(180, 120, CONFIG);
+        mPool.put(b);
+        Bitmap reused = mPool.get(170, 120, CONFIG);
+        assertSame(b, reused);
+        assertEquals(170, reused.getWidth());
+    }
+
+    public void testLargerSizeIsNotReused() {
+        Bitmap b = Bitmap.createBitmap(180, 120, CONFIG);
+        mPool.put(b);
+        assertNotSame(b, mPool.get(181, 120, CONFIG));
+        assertTrue(mPool.getStats().contains("0/1 hits"));
+    }
+
+    public void testMuchLargerBitmapIsNotUsed() {
+        // Two buckets above the request
+        Bitmap b = Bitmap.createBitmap(512, 512, CONFIG);
+        mPool.put(b);
+        assertNotSame(b, mPool.get(180, 120, CONFIG));
+    }
+
+    public void testReusedOnlyOnce() {
+        Bitmap b = Bitmap.createBitmap(180, 120, CONFIG);
+        mPool.put(b);
+        mPool.put(b);
+        assertSame(b, mPool.get(180, 120, CONFIG));
+        assertNotSame(b, mPool.get(180, 120, CONFIG));
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser;
+
+import android.database.Cursor;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+/**
+ * Tests that {@link OmniboxIndex} matches and orders entries like the
+ * provider's omnibox suggestions, and logs how long a query takes when the
+ * index is full.
+ */
+@SmallTest
+public class OmniboxIndexTest extends AndroidTestCase {
+
+    private static final String LOGTAG = "OmniboxIndexTest";
+
+    private OmniboxIndex mIndex;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mIndex = new OmniboxIndex();
+        put(1, "http://www.example.com/weather", "Local forecast", false, 10);
+        put(2, "https://news.example.org/", "Example News", false, 30);
+        put(3, "http://weather.example.net/", "Weather", true, 0);
+        put(4, "http://forecast.example.com/", null, false, 5);
+    }
+
+    public void testUrlPrefixMatchesHostOnly() {
+        // news.example.org matches by its title
+        assertUrls(query("exam"), "https://news.example.org/",
+                "http://www.example.com/weather");
+        assertUrls(query("www.exam"), "https://news.example.org/",
+                "http://www.example.com/weather");
+        assertUrls(query("http://news"), "https://news.example.org/");
+    }
+
+    public void testTitleMatchesAnyWord() {
+        assertUrls(query("fore"), "http://www.example.com/weather",
+                "http://forecast.example.com/");
+    }
+
+    public void testBookmarksFirstThenFrecency() {
+        assertUrls(query("weat"), "http://weather.example.net/");
+        assertUrls(query("ex"), "https://news.example.org/", "http://www.example.com/weather");
+    }
+
+    public void testEarlierTokensMatchWholeTokens() {
+        assertUrls(query("example com"), "http://www.example.com/weather");
+        assertUrls(query("example co"), "http://www.example.com/weather");
+        assertUrls(query("exam com"));
+    }
+
+    public void testLimitAndReplace() {
+        Cursor c = mIndex.query("e", 1);
+        assertEquals(1, c.getCount());
+        c.close();
+        // A new visit replaces the entry for the url
+        put(5, "http://www.example.com/weather", "Local forecast", false, 100);
+        assertUrls(query("ex"), "http://www.example.com/weather", "https://news.example.org/");
+    }
+
+    public void testFullIndexQueryTime() {
+        for (int i = 0; i < OmniboxIndex.MAX_ENTRIES * 2; i++) {
+            put(100 + i, "http://site" + i + ".example.com/page" + i, "Page number " + i,
+                    i % 50 == 0, i % 97);
+        }
+        long start = System.nanoTime();
+        int queries = 0;
+        for (String typed : new String[] { "s", "si", "site1", "page", "number 12", "zz" }) {
+            Cursor c = mIndex.query(typed, 10);
+            if (c != null) {
+                c.close();
+            }
+            queries++;
+        }
+        Log.i(LOGTAG, ((System.nanoTime() - start) / queries / 1000) + "us per query, "
+                + mIndex.getStats());
+        assertTrue(mIndex.getStats().contains(OmniboxIndex.MAX_ENTRIES + " entries"));
+    }
+
+    public void testTrimmedIndexLeavesMissesToProvider() {
+        for (int i = 0; i < OmniboxIndex.MAX_ENTRIES; i++) {
+            put(100 + i, "http://site" + i + ".example.com/", "Page " + i, false, 1000 + i);
+        }
+        // The index is full and dropped the least visited entries
+        assertNull(query("forecast"));
+        assertNull(query("zz"));
+        Cursor c = query("site");
+        assertEquals(10, c.getCount());
+        c.close();
+        c = mIndex.query("weather", 0);
+        assertEquals(0, c.getCount());
+        c.close();
+    }
+
+    // Every visit is recent, so the frecency follows the visits
+    private void put(long id, String url, String title, boolean bookmark, int visits) {
+        mIndex.put(new OmniboxIndex.Entry(id, url, title, bookmark, visits, visits));
+    }
+
+    private Cursor query(String typed) {
+        return mIndex.query(typed, 10);
+    }
+
+    private static void assertUrls(Cursor c, String... urls) {
+        try {
+            assertEquals(urls.length, c.getCount());
+            for (String url : urls) {
+                assertTrue(c.moveToNext());
+                assertEquals(url, c.getString(2));
+            }
+        } finally {
+            c.close();
+        }
+    }
+}
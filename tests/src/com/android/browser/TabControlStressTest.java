@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser;
+
+import android.os.Bundle;
+import android.test.ActivityInstrumentationTestCase2;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+/**
+ * Restores thousands of synthetic, hibernated tabs into a TabControl and
+ * checks that the id, app id, url and position lookups stay correct as tabs
+ * change and go away. Lookup times are logged under the TabControlStressTest
+ * tag.
+ *
+ * TabControl needs a full Controller, so the test borrows the one of a
+ * launched BrowserActivity but keeps its own TabControl.
+ */
+@LargeTest
+public class TabControlStressTest extends ActivityInstrumentationTestCase2<BrowserActivity> {
+
+    private static final String LOGTAG = "TabControlStressTest";
+    private static final int[] TAB_COUNTS = { 1000, 5000 };
+    private static final long FIRST_ID = 1000000;
+
+    private TabControl mTabControl;
+
+    public TabControlStressTest() {
+        super(BrowserActivity.class);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        runTestOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                if (mTabControl != null) {
+                    mTabControl.destroy();
+                    mTabControl = null;
+                }
+            }
+        });
+        super.tearDown();
+    }
+
+    public void testLookupsAtScale() throws Throwable {
+        for (final int count : TAB_COUNTS) {
+            runTestOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    restoreTabs(count);
+                    long start = System.nanoTime();
+                    for (int i = 0; i < count; i++) {
+                        Tab t = mTabControl.getTab(i);
+                        assertSame(t, mTabControl.getTabFromId(FIRST_ID + i));
+                        assertEquals(i, mTabControl.getTabPosition(t));
+                        assertSame(t, mTabControl.getTabFromAppId(appId(i)));
+                        if (i > 0) {
+                            assertSame(t, mTabControl.findTabWithUrl(url(i)));
+                        }
+                    }
+                    long perLookup = (System.nanoTime() - start) / (count * 4L);
+                    Log.i(LOGTAG, count + " tabs: " + perLookup + "ns per lookup");
+                    mTabControl.destroy();
+                }
+            });
+        }
+    }
+
+    public void testIndexesFollowChanges() throws Throwable {
+        runTestOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                final int count = TAB_COUNTS[0];
+                restoreTabs(count);
+
+                Tab moved = mTabControl.getTab(10);
+                moved.setAppId("moved");
+                assertNull(mTabControl.getTabFromAppId(appId(10)));
+                assertSame(moved, mTabControl.getTabFromAppId("moved"));
+
+                // Two tabs with one app id resolve to the first one
+                mTabControl.getTab(20).setAppId("moved");
+                assertSame(moved, mTabControl.getTabFromAppId("moved"));
+
+                Tab removed = mTabControl.getTab(5);
+                Tab next = mTabControl.getTab(6);
+                assertTrue(mTabControl.removeTab(removed));
+                assertNull(mTabControl.getTabFromId(removed.getId()));
+                assertNull(mTabControl.getTabFromAppId(appId(5)));
+                assertNull(mTabControl.findTabWithUrl(url(5)));
+                assertEquals(-1, mTabControl.getTabPosition(removed));
+                assertEquals(5, mTabControl.getTabPosition(next));
+                assertEquals(count - 2,
+                        mTabControl.getTabPosition(mTabControl.getTab(count - 2)));
+                assertSame(next, mTabControl.findTabWithUrl(url(6)));
+            }
+        });
+    }
+
+    // Must be called on the UI thread
+    private void restoreTabs(int count) {
+        mTabControl = new TabControl(getActivity().getController());
+        Bundle state = new Bundle();
+        long[] ids = new long[count];
+        for (int i = 0; i < count; i++) {
+            ids[i] = FIRST_ID + i;
+            Bundle tab = new Bundle();
+            tab.putLong(Tab.ID, ids[i]);
+            // The first tab is restored live, keep it off the network
+            tab.putString(Tab.CURRURL, i == 0 ? "about:blank" : url(i));
+            tab.putString(Tab.CURRTITLE, "Tab " + i);
+            tab.putString(Tab.APPID, appId(i));
+            state.putBundle(Long.toString(ids[i]), tab);
+        }
+        state.putLongArray(TabControl.POSITIONS, ids);
+        mTabControl.restoreState(state, ids[0], false, false);
+        assertEquals(count, mTabControl.getTabCount());
+    }
+
+    private static String url(int i) {
+        return "http://site" + i + ".example.com/";
+    }
+
+    private static String appId(int i) {
+        return "app" + i;
+    }
+}
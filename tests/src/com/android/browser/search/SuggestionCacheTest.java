@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser.search;
+
+import android.net.Uri;
+import android.os.CancellationSignal;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URLEncoder;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests for {@link SuggestionCache} and the way {@link OpenSearchSearchEngine}
+ * fills it, against a stub suggest server on the loopback interface.
+ */
+@MediumTest
+public class SuggestionCacheTest extends AndroidTestCase {
+
+    private static final String ENGINE = "stub";
+
+    private ServerSocket mServer;
+    private final AtomicInteger mConnections = new AtomicInteger();
+    private final AtomicInteger mRequests = new AtomicInteger();
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = new ServerSocket(0, 0, InetAddress.getByName("127.0.0.1"));
+        Thread t = new Thread("StubSuggestServer") {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        final Socket s = mServer.accept();
+                        mConnections.incrementAndGet();
+                        new Thread() {
+                            @Override
+                            public void run() {
+                                serve(s);
+                            }
+                        }.start();
+                    }
+                } catch (IOException e) {
+                    // Closed by tearDown()
+                }
+            }
+        };
+        t.setDaemon(true);
+        t.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.close();
+        super.tearDown();
+    }
+
+    public void testCachesParsedResponse() {
+        SuggestionCache cache = new SuggestionCache();
+        assertNull(cache.get(ENGINE, "wea"));
+        assertNotNull(load(cache, "wea"));
+        SuggestionCache.Entry e = cache.get(ENGINE, "wea");
+        assertNotNull(e);
+        assertEquals(3, e.suggestions.length);
+        assertEquals("weather", e.suggestions[0]);
+        // The stub sends no descriptions
+        assertNull(e.descriptions);
+        assertEquals(1, mRequests.get());
+    }
+
+    public void testLongerQueryServedFromPrefix() {
+        SuggestionCache cache = new SuggestionCache();
+        load(cache, "wea");
+        SuggestionCache.Entry e = cache.getForPrefix(ENGINE, "weat");
+        assertNotNull(e);
+        assertEquals(1, e.suggestions.length);
+        assertEquals("weather", e.suggestions[0]);
+        assertNull(cache.getForPrefix(ENGINE, "wex"));
+        assertNull(cache.getForPrefix("other", "weat"));
+        assertEquals(1, mRequests.get());
+    }
+
+    public void testEntriesExpire() throws Exception {
+        SuggestionCache cache = new SuggestionCache(SuggestionCache.MAX_ENTRIES, 50);
+        load(cache, "wea");
+        Thread.sleep(100);
+        assertNull(cache.get(ENGINE, "wea"));
+        assertNull(cache.getForPrefix(ENGINE, "weat"));
+    }
+
+    public void testLeastRecentlyUsedEvicted() {
+        SuggestionCache cache = new SuggestionCache(2, SuggestionCache.TTL);
+        load(cache, "a");
+        load(cache, "b");
+        assertNotNull(cache.get(ENGINE, "a"));
+        load(cache, "c");
+        assertNotNull(cache.get(ENGINE, "a"));
+        assertNull(cache.get(ENGINE, "b"));
+        assertNotNull(cache.get(ENGINE, "c"));
+    }
+
+    public void testFailedRequestNotCached() {
+        SuggestionCache cache = new SuggestionCache();
+        assertNull(load(cache, "fail"));
+        assertNull(cache.get(ENGINE, "fail"));
+    }
+
+    public void testCancelledRequestNotCached() {
+        SuggestionCache cache = new SuggestionCache();
+        CancellationSignal signal = new CancellationSignal();
+        signal.cancel();
+        assertNull(OpenSearchSearchEngine.loadSuggestions(cache, ENGINE, "wea",
+                suggestUri("wea"), signal));
+        assertNull(cache.get(ENGINE, "wea"));
+    }
+
+    public void testConnectionReused() {
+        SuggestionCache cache = new SuggestionCache();
+        load(cache, "a");
+        load(cache, "fail");
+        load(cache, "b");
+        assertEquals(3, mRequests.get());
+        assertEquals(1, mConnections.get());
+    }
+
+    private SuggestionCache.Entry load(SuggestionCache cache, String query) {
+        return OpenSearchSearchEngine.loadSuggestions(cache, ENGINE, query, suggestUri(query),
+                null);
+    }
+
+    private String suggestUri(String query) {
+        try {
+            return "http://127.0.0.1:" + mServer.getLocalPort() + "/suggest?q="
+                    + URLEncoder.encode(query, "UTF-8");
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    // Answers keep-alive requests on s until the client goes away
+    private void serve(Socket s) {
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream()));
+            OutputStream out = s.getOutputStream();
+            String line;
+            while ((line = in.readLine()) != null) {
+                String path = line.split(" ")[1];
+                while ((line = in.readLine()) != null && !line.isEmpty()) {
+                    // Skip the headers
+                }
+                mRequests.incrementAndGet();
+                String q = Uri.parse(path).getQueryParameter("q");
+                String status;
+                String body;
+                if ("fail".equals(q)) {
+                    status = "500 Internal Server Error";
+                    body = "unavailable";
+                } else {
+                    status = "200 OK";
+                    body = "[\"" + q + "\",[\"" + q + "ther\",\"" + q + "k\",\"unrelated\"],[]]";
+                }
+                byte[] bytes = body.getBytes("UTF-8");
+                out.write(("HTTP/1.1 " + status + "\r\n"
+                        + "Content-Type: application/json; charset=UTF-8\r\n"
+                        + "Content-Length: " + bytes.length + "\r\n\r\n").getBytes("UTF-8"));
+                out.write(bytes);
+                out.flush();
+            }
+            s.close();
+        } catch (IOException e) {
+            // Client went away
+        }
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser.search;
+
+import android.os.Debug;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Compares time and allocations of the streaming {@link SuggestionParser}
+ * with reading the whole response into a String and a JSONArray tree, for a
+ * typical response and a 100 KB one. Run it on its own with
+ *
+ *   adb shell am instrument -w \
+ *       -e class com.android.browser.search.SuggestionParserBenchmark \
+ *       com.android.browser.tests/android.test.InstrumentationTestRunner
+ *
+ * Every result is logged under the SuggestionParserBenchmark tag as one
+ * line of JSON.
+ */
+@LargeTest
+public class SuggestionParserBenchmark extends AndroidTestCase {
+
+    private static final String LOGTAG = "SuggestionParserBenchmark";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int TYPICAL_COUNT = 10;
+    private static final int LARGE_BYTES = 100 * 1024;
+    private static final int WARMUP = 20;
+    private static final int ITERATIONS = 200;
+
+    public void testParsers() throws Exception {
+        run("typical", response(TYPICAL_COUNT, 0));
+        run("large", response(0, LARGE_BYTES));
+    }
+
+    private void run(String name, final byte[] response) throws Exception {
+        // Both parsers must agree on what is kept
+        String[] tree = parseTree(response);
+        SuggestionParser streaming = parseStreaming(response);
+        assertTrue(Arrays.equals(Arrays.copyOf(tree, streaming.getSuggestions().length),
+                streaming.getSuggestions()));
+
+        measure(name, "json_tree", response.length, new Op() {
+            @Override
+            public void run() throws Exception {
+                parseTree(response);
+            }
+        });
+        measure(name, "streaming", response.length, new Op() {
+            @Override
+            public void run() throws Exception {
+                parseStreaming(response);
+            }
+        });
+    }
+
+    // What OpenSearchSearchEngine used to do
+    private static String[] parseTree(byte[] response) throws IOException, JSONException {
+        InputStream in = new ByteArrayInputStream(response);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) >= 0) {
+            bytes.write(buffer, 0, n);
+        }
+        JSONArray results = new JSONArray(new String(bytes.toByteArray(), UTF_8));
+        JSONArray suggestions = results.getJSONArray(1);
+        String[] strings = new String[suggestions.length()];
+        for (int i = 0; i < strings.length; i++) {
+            strings[i] = suggestions.getString(i);
+        }
+        return strings;
+    }
+
+    private static SuggestionParser parseStreaming(byte[] response) throws IOException {
+        SuggestionParser parser = new SuggestionParser();
+        assertTrue(parser.parse(new ByteArrayInputStream(response), UTF_8));
+        return parser;
+    }
+
+    private interface Op {
+        void run() throws Exception;
+    }
+
+    @SuppressWarnings("deprecation")
+    private void measure(String response, String parser, int size, Op op) throws Exception {
+        for (int i = 0; i < WARMUP; i++) {
+            op.run();
+        }
+        long[] nanos = new long[ITERATIONS];
+        Debug.resetThreadAllocSize();
+        Debug.startAllocCounting();
+        for (int i = 0; i < ITERATIONS; i++) {
+            long start = System.nanoTime();
+            op.run();
+            nanos[i] = System.nanoTime() - start;
+        }
+        Debug.stopAllocCounting();
+        long allocated = Debug.getThreadAllocSize();
+        Arrays.sort(nanos);
+        JSONObject result = new JSONObject();
+        result.put("response", response);
+        result.put("parser", parser);
+        result.put("bytes", size);
+        result.put("iterations", ITERATIONS);
+        result.put("p50_us", nanos[nanos.length / 2] / 1000);
+        result.put("max_us", nanos[nanos.length - 1] / 1000);
+        result.put("alloc_bytes_per_op", allocated / ITERATIONS);
+        Log.i(LOGTAG, result.toString());
+    }
+
+    /**
+     * A response with count suggestions and descriptions, or as many as
+     * fit in about minBytes.
+     */
+    private static byte[] response(int count, int minBytes) throws JSONException {
+        JSONArray suggestions = new JSONArray();
+        JSONArray descriptions = new JSONArray();
+        int bytes = 0;
+        for (int i = 0; i < count || bytes < minBytes; i++) {
+            String suggestion = "weather forecast " + i;
+            String description = "About " + (i * 1000) + " results for " + suggestion;
+            suggestions.put(suggestion);
+            descriptions.put(description);
+            bytes += suggestion.length() + description.length() + 6;
+        }
+        JSONArray response = new JSONArray();
+        response.put("weather");
+        response.put(suggestions);
+        response.put(descriptions);
+        response.put(new JSONObject().put("google:suggesttype", new JSONArray()));
+        return response.toString().getBytes(UTF_8);
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser.search;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Tests for {@link SuggestionParser}.
+ */
+@SmallTest
+public class SuggestionParserTest extends AndroidTestCase {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    public void testSuggestionsWithDescriptions() throws IOException {
+        SuggestionParser parser = parse(new SuggestionParser(),
+                "[\"and\",[\"android\",\"andromeda\"],[\"OS\",\"Galaxy\"]]");
+        assertEquals(Arrays.asList("android", "andromeda"),
+                Arrays.asList(parser.getSuggestions()));
+        assertEquals(Arrays.asList("OS", "Galaxy"),
+                Arrays.asList(parser.getDescriptions()));
+    }
+
+    public void testSuggestionsWithoutDescriptions() throws IOException {
+        SuggestionParser parser = parse(new SuggestionParser(),
+                "[\"and\",[\"android\"]]");
+        assertEquals(Arrays.asList("android"), Arrays.asList(parser.getSuggestions()));
+        assertNull(parser.getDescriptions());
+    }
+
+    public void testEmptyDescriptions() throws IOException {
+        SuggestionParser parser = parse(new SuggestionParser(),
+                "[\"and\",[\"android\",\"andromeda\"],[]]");
+        assertEquals(2, parser.getSuggestions().length);
+        assertNull(parser.getDescriptions());
+    }
+
+    public void testNonStringSuggestionsDropped() throws IOException {
+        SuggestionParser parser = parse(new SuggestionParser(),
+                "[\"q\",[\"a\",42,null,{\"x\":1},[\"y\"],true,\"b\"],"
+                + "[\"da\",\"d42\",\"dnull\",\"dobject\",\"darray\",\"dtrue\",\"db\"]]");
+        assertEquals(Arrays.asList("a", "42", "b"), Arrays.asList(parser.getSuggestions()));
+        assertEquals(Arrays.asList("da", "d42", "db"), Arrays.asList(parser.getDescriptions()));
+    }
+
+    public void testNonStringDescriptions() throws IOException {
+        SuggestionParser parser = parse(new SuggestionParser(),
+                "[\"q\",[\"a\",\"b\",\"c\"],[null,\"db\"]]");
+        assertEquals(Arrays.asList("a", "b", "c"), Arrays.asList(parser.getSuggestions()));
+        assertEquals(Arrays.asList(null, "db", null), Arrays.asList(parser.getDescriptions()));
+    }
+
+    public void testMaxSuggestions() throws IOException {
+        SuggestionParser parser = parse(new SuggestionParser(3, SuggestionParser.MAX_BYTES),
+                "[\"q\",[\"a\",\"b\",\"c\",\"d\",\"e\"],[\"da\",\"db\",\"dc\",\"dd\",\"de\"]]");
+        assertEquals(Arrays.asList("a", "b", "c"), Arrays.asList(parser.getSuggestions()));
+        assertEquals(Arrays.asList("da", "db", "dc"), Arrays.asList(parser.getDescriptions()));
+    }
+
+    public void testDefaultMaxSuggestions() throws IOException {
+        StringBuilder json = new StringBuilder("[\"q\",[");
+        for (int i = 0; i < SuggestionParser.MAX_SUGGESTIONS * 2; i++) {
+            json.append(i > 0 ? ",\"s" : "\"s").append(i).append('"');
+        }
+        json.append("]]");
+        SuggestionParser parser = parse(new SuggestionParser(), json.toString());
+        assertEquals(SuggestionParser.MAX_SUGGESTIONS, parser.getSuggestions().length);
+        assertEquals("s0", parser.getSuggestions()[0]);
+    }
+
+    public void testNotSuggestions() throws IOException {
+        assertFalse(new SuggestionParser().parse(stream("[]"), UTF_8));
+        assertFalse(new SuggestionParser().parse(stream("[\"q\"]"), UTF_8));
+        assertFalse(new SuggestionParser().parse(stream("[\"q\",\"a\"]"), UTF_8));
+    }
+
+    public void testMalformed() {
+        assertParseFails(new SuggestionParser(), "");
+        assertParseFails(new SuggestionParser(), "{\"q\":[\"a\"]}");
+        assertParseFails(new SuggestionParser(), "[\"q\",[\"a\",");
+        assertParseFails(new SuggestionParser(), "[\"q\",[\"a\"}");
+        assertParseFails(new SuggestionParser(), "<html></html>");
+    }
+
+    public void testTooLarge() {
+        StringBuilder json = new StringBuilder("[\"q\",[\"");
+        for (int i = 0; i < 256; i++) {
+            json.append('a');
+        }
+        json.append("\"]]");
+        assertParseFails(new SuggestionParser(SuggestionParser.MAX_SUGGESTIONS, 64),
+                json.toString());
+    }
+
+    public void testDefaultMaxBytes() {
+        StringBuilder json = new StringBuilder("[\"q\",[\"");
+        while (json.length() <= SuggestionParser.MAX_BYTES) {
+            json.append("aaaaaaaaaaaaaaaa");
+        }
+        json.append("\"]]");
+        assertParseFails(new SuggestionParser(), json.toString());
+    }
+
+    public void testReusedParser() throws IOException {
+        SuggestionParser parser = parse(new SuggestionParser(),
+                "[\"q\",[\"a\"],[\"da\"]]");
+        assertFalse(parser.parse(stream("[\"q\"]"), UTF_8));
+        assertNull(parser.getSuggestions());
+        assertNull(parser.getDescriptions());
+    }
+
+    private static SuggestionParser parse(SuggestionParser parser, String json)
+            throws IOException {
+        assertTrue(parser.parse(stream(json), UTF_8));
+        return parser;
+    }
+
+    private static void assertParseFails(SuggestionParser parser, String json) {
+        try {
+            parser.parse(stream(json), UTF_8);
+            fail("Parsed " + json);
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    private static ByteArrayInputStream stream(String json) {
+        return new ByteArrayInputStream(json.getBytes(UTF_8));
+    }
+}
@@ -0,0 +1,326 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser.tests;
+
+import com.android.browser.provider.BrowserProvider2;
+import com.android.browser.provider.BrowserProvider2.OmniboxSuggestions;
+import com.android.browser.provider.BrowserProvider2.Thumbnails;
+import com.android.browser.tests.utils.BP2TestCaseHelper;
+
+import android.app.SearchManager;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.net.Uri;
+import android.os.Build;
+import android.provider.BrowserContract;
+import android.provider.BrowserContract.Accounts;
+import android.provider.BrowserContract.Bookmarks;
+import android.provider.BrowserContract.Combined;
+import android.provider.BrowserContract.History;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Latency benchmark for BrowserProvider2 at several history sizes. The
+ * provider is seeded straight through its database, then each operation is
+ * timed through the content resolver. Run it on its own with
+ *
+ *   adb shell am instrument -w -e class com.android.browser.tests.BP2Benchmark \
+ *       com.android.browser.tests/android.test.InstrumentationTestRunner
+ *
+ * Every result is logged under the BP2Benchmark tag as one line of JSON,
+ * and the whole run is written to bp2-benchmark.json in the test's files
+ * dir, so runs from different commits can be diffed.
+ */
+@LargeTest
+public class BP2Benchmark extends BP2TestCaseHelper {
+
+    private static final String LOGTAG = "BP2Benchmark";
+    private static final String RESULTS_FILE = "bp2-benchmark.json";
+
+    private static final int[] HISTORY_SIZES = { 1000, 10000, 100000 };
+    // Bookmarks are a tree this deep with this many children per folder,
+    // the deepest folders holding only bookmarks
+    private static final int BOOKMARK_DEPTH = 6;
+    private static final int BOOKMARK_FANOUT = 4;
+    private static final int THUMBNAIL_COUNT = 20;
+    private static final int WARMUP = 5;
+    private static final int ITERATIONS = 50;
+
+    private final Random mRandom = new Random(42);
+    private ContentResolver mResolver;
+    private JSONArray mResults;
+    private int mHistoryCount;
+    private long mDeepestFolder;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mResolver = getMockContentResolver();
+        mResults = new JSONArray();
+    }
+
+    public void testProviderAtScale() throws Exception {
+        seedBookmarks();
+        seedThumbnails();
+        for (int size : HISTORY_SIZES) {
+            seedHistory(size);
+            runAll(size);
+        }
+        writeResults();
+    }
+
+    private void runAll(int size) throws JSONException {
+        measure(size, "suggest", new Op() {
+            @Override
+            public void run(int i) {
+                drain(mResolver.query(Uri.withAppendedPath(BrowserContract.AUTHORITY_URI,
+                        SearchManager.SUGGEST_URI_PATH_QUERY), null, null,
+                        new String[] { randomPrefix() }, null));
+            }
+        });
+        measure(size, "omnibox", new Op() {
+            @Override
+            public void run(int i) {
+                Uri uri = OmniboxSuggestions.CONTENT_URI.buildUpon()
+                        .appendQueryParameter(OmniboxSuggestions.PARAM_FILTER, randomPrefix())
+                        .appendQueryParameter(BrowserContract.PARAM_LIMIT, "10")
+                        .build();
+                drain(mResolver.query(uri, null, null, null, null));
+            }
+        });
+        measure(size, "combined", new Op() {
+            @Override
+            public void run(int i) {
+                Uri uri = Combined.CONTENT_URI.buildUpon()
+                        .appendQueryParameter(BrowserContract.PARAM_LIMIT, "100")
+                        .build();
+                drain(mResolver.query(uri, new String[] { Combined.URL, Combined.TITLE,
+                        Combined.FAVICON }, null, null, Combined.DATE_LAST_VISITED + " DESC"));
+            }
+        });
+        measure(size, "bookmark_folder", new Op() {
+            @Override
+            public void run(int i) {
+                Uri uri = ContentUris.withAppendedId(
+                        Uri.withAppendedPath(Bookmarks.CONTENT_URI, "folder"), mDeepestFolder);
+                drain(mResolver.query(uri, null, null, null, null));
+            }
+        });
+        measure(size, "accounts", new Op() {
+            @Override
+            public void run(int i) {
+                drain(mResolver.query(Accounts.CONTENT_URI, null, null, null, null));
+            }
+        });
+        measure(size, "thumbnail", new Op() {
+            @Override
+            public void run(int i) {
+                drain(mResolver.query(ContentUris.withAppendedId(Thumbnails.CONTENT_URI,
+                        i % THUMBNAIL_COUNT), null, null, null, null));
+            }
+        });
+        measure(size, "history_insert", new Op() {
+            @Override
+            public void run(int i) {
+                ContentValues values = new ContentValues();
+                values.put(History.URL, "http://insert" + i + ".example.com/" + mHistoryCount);
+                values.put(History.TITLE, "Inserted " + i);
+                values.put(History.VISITS, 1);
+                mResolver.insert(History.CONTENT_URI, values);
+            }
+        });
+        measure(size, "history_update", new Op() {
+            @Override
+            public void run(int i) {
+                ContentValues values = new ContentValues();
+                values.put(History.VISITS, i + 2);
+                values.put(History.DATE_LAST_VISITED, System.currentTimeMillis());
+                mResolver.update(ContentUris.withAppendedId(History.CONTENT_URI,
+                        1 + mRandom.nextInt(mHistoryCount)), values, null, null);
+            }
+        });
+    }
+
+    private interface Op {
+        void run(int i);
+    }
+
+    private void measure(int size, String name, Op op) throws JSONException {
+        for (int i = 0; i < WARMUP; i++) {
+            op.run(i);
+        }
+        long[] nanos = new long[ITERATIONS];
+        for (int i = 0; i < ITERATIONS; i++) {
+            long start = System.nanoTime();
+            op.run(i);
+            nanos[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(nanos);
+        JSONObject result = new JSONObject();
+        result.put("op", name);
+        result.put("history", size);
+        result.put("iterations", ITERATIONS);
+        result.put("p50_us", percentile(nanos, 50) / 1000);
+        result.put("p99_us", percentile(nanos, 99) / 1000);
+        result.put("max_us", nanos[nanos.length - 1] / 1000);
+        mResults.put(result);
+        Log.i(LOGTAG, result.toString());
+    }
+
+    private static long percentile(long[] sorted, int percentile) {
+        int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+
+    private static void drain(Cursor c) {
+        if (c == null) {
+            return;
+        }
+        try {
+            while (c.moveToNext()) {
+                for (int i = 0; i < c.getColumnCount(); i++) {
+                    if (c.getType(i) == Cursor.FIELD_TYPE_BLOB) {
+                        c.getBlob(i);
+                    } else {
+                        c.getString(i);
+                    }
+                }
+            }
+        } finally {
+            c.close();
+        }
+    }
+
+    private String randomPrefix() {
+        return "site" + mRandom.nextInt(100);
+    }
+
+    private SQLiteDatabase getDatabase() {
+        return getProvider().getDatabaseHelper().getWritableDatabase();
+    }
+
+    /**
+     * Adds history rows until there are size of them, spread over a few
+     * hundred hosts with a long tail of visit counts.
+     */
+    private void seedHistory(int size) {
+        SQLiteDatabase db = getDatabase();
+        SQLiteStatement insert = db.compileStatement("INSERT INTO history"
+                + " (title, url, created, date, visits, user_entered) VALUES (?, ?, ?, ?, ?, 0)");
+        long now = System.currentTimeMillis();
+        db.beginTransaction();
+        try {
+            for (int i = mHistoryCount; i < size; i++) {
+                int host = mRandom.nextInt(500);
+                insert.bindString(1, "Site " + host + " page " + i);
+                insert.bindString(2, "http://www.site" + host + ".example.com/page/" + i);
+                insert.bindLong(3, now - i * 60000L);
+                insert.bindLong(4, now - i * 30000L);
+                insert.bindLong(5, 1 + (int) (100 / (1 + mRandom.nextInt(100))));
+                insert.executeInsert();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            insert.close();
+        }
+        mHistoryCount = size;
+        getProvider().collectImages(Long.MAX_VALUE);
+    }
+
+    private void seedBookmarks() {
+        SQLiteDatabase db = getDatabase();
+        db.beginTransaction();
+        try {
+            mDeepestFolder = seedFolder(db, BrowserProvider2.FIXED_ID_ROOT, 0);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    // Returns the id of the last folder created at the deepest level
+    private long seedFolder(SQLiteDatabase db, long parent, int depth) {
+        long deepest = parent;
+        for (int i = 0; i < BOOKMARK_FANOUT * 4; i++) {
+            ContentValues values = new ContentValues();
+            values.put(Bookmarks.TITLE, "Bookmark " + depth + "." + i);
+            values.put(Bookmarks.URL, "http://www.site" + mRandom.nextInt(500)
+                    + ".example.com/bookmark/" + depth + "/" + i);
+            values.put(Bookmarks.PARENT, parent);
+            values.put(Bookmarks.POSITION, i);
+            values.put(Bookmarks.IS_FOLDER, 0);
+            db.insert("bookmarks", null, values);
+        }
+        if (depth == BOOKMARK_DEPTH) {
+            return deepest;
+        }
+        for (int i = 0; i < BOOKMARK_FANOUT; i++) {
+            ContentValues values = new ContentValues();
+            values.put(Bookmarks.TITLE, "Folder " + depth + "." + i);
+            values.put(Bookmarks.PARENT, parent);
+            values.put(Bookmarks.POSITION, BOOKMARK_FANOUT * 4 + i);
+            values.put(Bookmarks.IS_FOLDER, 1);
+            long folder = db.insert("bookmarks", null, values);
+            // Only the first folder on each level goes all the way down
+            deepest = i == 0 ? seedFolder(db, folder, depth + 1) : deepest;
+        }
+        return deepest;
+    }
+
+    private void seedThumbnails() {
+        byte[] thumbnail = new byte[16 * 1024];
+        mRandom.nextBytes(thumbnail);
+        for (int i = 0; i < THUMBNAIL_COUNT; i++) {
+            ContentValues values = new ContentValues();
+            values.put(Thumbnails._ID, i);
+            values.put(Thumbnails.THUMBNAIL, thumbnail);
+            mResolver.insert(Thumbnails.CONTENT_URI, values);
+        }
+    }
+
+    private void writeResults() throws JSONException, IOException {
+        JSONObject run = new JSONObject();
+        run.put("device", Build.MODEL);
+        run.put("fingerprint", Build.FINGERPRINT);
+        run.put("timestamp", System.currentTimeMillis());
+        run.put("results", mResults);
+        File file = new File(getContext().getFilesDir(), RESULTS_FILE);
+        FileWriter out = new FileWriter(file);
+        try {
+            out.write(run.toString(2));
+        } finally {
+            out.close();
+        }
+        Log.i(LOGTAG, "Results written to " + file);
+    }
+}
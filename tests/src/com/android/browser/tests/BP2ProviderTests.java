@@ -16,19 +16,25 @@
 
 package com.android.browser.tests;
 
+import com.android.browser.provider.BrowserProvider2;
+import com.android.browser.provider.BrowserProvider2.ImageBlobs;
+import com.android.browser.provider.BrowserProvider2.OmniboxSuggestions;
 import com.android.browser.tests.utils.BP2TestCaseHelper;
 
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.Config;
 import android.net.Uri;
+import android.os.ParcelFileDescriptor;
 import android.provider.BrowserContract;
 import android.provider.BrowserContract.Images;
 import android.test.suitebuilder.annotation.SmallTest;
 
 import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
 
 @SmallTest
 public class BP2ProviderTests extends BP2TestCaseHelper {
@@ -56,6 +62,271 @@ public class BP2ProviderTests extends BP2TestCaseHelper {
         assertTrue(updateBookmark(Images.CONTENT_URI, values));
     }
 
+    public void testSharedImageStoredOnce() throws Exception {
+        byte[] favicon = createImage();
+        String[] urls = new String[] { "http://stub1.com/a", "http://stub1.com/b" };
+        for (String url : urls) {
+            insertBookmark(url, url);
+            ContentValues values = new ContentValues();
+            values.put(Images.URL, url);
+            values.put(Images.FAVICON, favicon);
+            assertTrue(updateBookmark(Images.CONTENT_URI, values));
+        }
+
+        SQLiteDatabase db = getProvider().getDatabaseHelper().getReadableDatabase();
+        Cursor c = db.rawQuery("SELECT DISTINCT " + Images.FAVICON + " FROM images", null);
+        String hash;
+        try {
+            assertEquals(1, c.getCount());
+            assertTrue(c.moveToFirst());
+            hash = c.getString(0);
+        } finally {
+            c.close();
+        }
+
+        c = getMockContentResolver().query(BrowserContract.Bookmarks.CONTENT_URI,
+                new String[] { BrowserContract.Bookmarks.FAVICON, ImageBlobs.FAVICON_URI },
+                BrowserContract.Bookmarks.URL + "=?", new String[] { urls[0] }, null);
+        try {
+            assertTrue(c.moveToFirst());
+            assertTrue(Arrays.equals(favicon, c.getBlob(0)));
+            Uri uri = Uri.parse(c.getString(1));
+            assertEquals(Uri.withAppendedPath(ImageBlobs.CONTENT_URI, hash), uri);
+            ParcelFileDescriptor pfd = getProvider().openFile(uri, "r");
+            assertEquals(favicon.length, pfd.getStatSize());
+            pfd.close();
+        } finally {
+            c.close();
+        }
+    }
+
+    private static byte[] createImage() {
+        Bitmap bitmap = Bitmap.createBitmap(1, 1, Config.ARGB_8888);
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        bitmap.compress(Bitmap.CompressFormat.PNG, 100, os);
+        return os.toByteArray();
+    }
+
+    public void testHistoryUrlLookupUsesIndex() {
+        assertPlanSearches("history",
+                "SELECT _id, visits FROM history WHERE url = ?", "http://stub1.com");
+    }
+
+    public void testBookmarkUrlLookupUsesIndex() {
+        assertPlanSearches("bookmarks",
+                "SELECT url FROM bookmarks WHERE url = ? AND deleted = 0",
+                "http://stub1.com");
+    }
+
+    public void testBookmarkFolderListingUsesIndex() {
+        assertPlanSearches("bookmarks",
+                "SELECT _id FROM bookmarks WHERE parent = ? AND deleted = 0", "1");
+    }
+
+    public void testHistoryByDateUsesIndex() {
+        assertPlanAvoidsFullScan("history",
+                "SELECT _id FROM history ORDER BY date DESC LIMIT 10");
+    }
+
+    public void testHistoryByFrecencyUsesIndex() {
+        assertPlanAvoidsFullScan("history",
+                "SELECT _id FROM history ORDER BY frecency DESC LIMIT 12");
+    }
+
+    public void testVisitsSeedFrecencyAndDecay() {
+        for (int i = 0; i < 3; i++) {
+            ContentValues values = new ContentValues();
+            values.put(BrowserContract.History.URL, "http://stub" + i + ".com");
+            values.put(BrowserContract.History.VISITS, 2);
+            assertNotNull(getMockContentResolver().insert(
+                    BrowserContract.History.CONTENT_URI, values));
+        }
+        assertFrecencies(2 * BrowserProvider2.FRECENCY_VISIT_WEIGHT);
+
+        // The first pass only starts the clock
+        assertFalse(getProvider().decayFrecency(Long.MAX_VALUE));
+        assertFrecencies(2 * BrowserProvider2.FRECENCY_VISIT_WEIGHT);
+
+        // One half-life later the scores are halved, once
+        SQLiteDatabase db = getProvider().getDatabaseHelper().getWritableDatabase();
+        ContentValues values = new ContentValues();
+        values.put(BrowserContract.Settings.VALUE,
+                System.currentTimeMillis() - BrowserProvider2.FRECENCY_HALF_LIFE);
+        assertEquals(1, db.update("settings", values, BrowserContract.Settings.KEY + "=?",
+                new String[] { BrowserProvider2.KEY_FRECENCY_DECAYED }));
+        assertFalse(getProvider().decayFrecency(Long.MAX_VALUE));
+        assertFrecencies(BrowserProvider2.FRECENCY_VISIT_WEIGHT);
+        assertFalse(getProvider().decayFrecency(Long.MAX_VALUE));
+        assertFrecencies(BrowserProvider2.FRECENCY_VISIT_WEIGHT);
+    }
+
+    public void testAddVisitsIncrementsInProvider() {
+        for (int i = 0; i < 3; i++) {
+            ContentValues values = new ContentValues();
+            values.put(BrowserContract.History.URL, "http://stub" + i + ".com");
+            values.put(BrowserContract.History.VISITS, 2);
+            assertNotNull(getMockContentResolver().insert(
+                    BrowserContract.History.CONTENT_URI, values));
+        }
+        ContentValues values = new ContentValues();
+        values.put(BrowserContract.History.TITLE, "Stub");
+        // Counts in the values don't override the increment
+        values.put(BrowserContract.History.VISITS, 100);
+        Uri uri = BrowserContract.History.CONTENT_URI.buildUpon()
+                .appendQueryParameter(BrowserProvider2.PARAM_ADD_VISITS, "1")
+                .build();
+        assertEquals(3, getMockContentResolver().update(uri, values, null, null));
+        assertFrecencies(3 * BrowserProvider2.FRECENCY_VISIT_WEIGHT);
+        Cursor c = getMockContentResolver().query(BrowserContract.History.CONTENT_URI,
+                new String[] { BrowserContract.History.VISITS, BrowserContract.History.TITLE },
+                null, null, null);
+        try {
+            while (c.moveToNext()) {
+                assertEquals(3, c.getInt(0));
+                assertEquals("Stub", c.getString(1));
+            }
+        } finally {
+            c.close();
+        }
+    }
+
+    private void assertFrecencies(double expected) {
+        Cursor c = getMockContentResolver().query(BrowserContract.History.CONTENT_URI,
+                new String[] { BrowserProvider2.HISTORY_FRECENCY }, null, null, null);
+        try {
+            assertEquals(3, c.getCount());
+            while (c.moveToNext()) {
+                assertEquals(expected, c.getDouble(0), expected / 1000);
+            }
+        } finally {
+            c.close();
+        }
+    }
+
+    public void testImageCollectionUsesIndices() {
+        String collect = "SELECT url_key FROM images WHERE url_key=?"
+                + " AND NOT EXISTS (SELECT 1 FROM bookmarks WHERE url=? AND deleted=0)"
+                + " AND NOT EXISTS (SELECT 1 FROM history WHERE url=?)";
+        String url = "http://stub1.com";
+        assertPlanSearches("images", collect, url, url, url);
+        assertPlanSearches("bookmarks", collect, url, url, url);
+        assertPlanSearches("history", collect, url, url, url);
+    }
+
+    public void testDeletedHistoryImagesAreCollected() {
+        String url = "http://stub1.com/history";
+        ContentValues values = new ContentValues();
+        values.put(BrowserContract.History.URL, url);
+        values.put(BrowserContract.History.FAVICON, createImage());
+        assertNotNull(getMockContentResolver().insert(
+                BrowserContract.History.CONTENT_URI, values));
+        getProvider().collectImages(Long.MAX_VALUE);
+        assertEquals(1, countImages(url));
+
+        getMockContentResolver().delete(BrowserContract.History.CONTENT_URI,
+                BrowserContract.History.URL + "=?", new String[] { url });
+        assertFalse(getProvider().collectImages(Long.MAX_VALUE));
+        assertEquals(0, countImages(url));
+    }
+
+    private int countImages(String url) {
+        SQLiteDatabase db = getProvider().getDatabaseHelper().getReadableDatabase();
+        Cursor c = db.rawQuery("SELECT COUNT(*) FROM images WHERE url_key=?",
+                new String[] { url });
+        try {
+            assertTrue(c.moveToFirst());
+            return c.getInt(0);
+        } finally {
+            c.close();
+        }
+    }
+
+    public void testOmniboxFilterMatchesHostsAndTitleWords() {
+        insertHistory("http://www.example.com/path", "Example Domain");
+        insertBookmark("https://news.bbc.co.uk/", "BBC News");
+        assertOmniboxMatches("exa", "http://www.example.com/path");
+        assertOmniboxMatches("www.example.c", "http://www.example.com/path");
+        assertOmniboxMatches("domain", "http://www.example.com/path");
+        assertOmniboxMatches("news", "https://news.bbc.co.uk/");
+        assertOmniboxMatches("bbc n", "https://news.bbc.co.uk/");
+        // Only the host is anchored, not the rest of the url
+        assertOmniboxMatches("path");
+        assertOmniboxMatches("...");
+    }
+
+    public void testOmniboxIndexFollowsHistoryUpdates() {
+        Uri uri = insertHistory("http://stub1.com", "stub 1");
+        assertOmniboxMatches("stub", "http://stub1.com");
+        assertTrue(updateHistory(uri, "http://other.com", "renamed"));
+        assertOmniboxMatches("stub");
+        assertOmniboxMatches("renamed", "http://other.com");
+        getMockContentResolver().delete(uri, null, null);
+        assertOmniboxMatches("renamed");
+    }
+
+    private void assertOmniboxMatches(String filter, String... urls) {
+        Uri uri = OmniboxSuggestions.CONTENT_URI.buildUpon()
+                .appendQueryParameter(OmniboxSuggestions.PARAM_FILTER, filter)
+                .build();
+        Cursor c = getMockContentResolver().query(uri,
+                new String[] { OmniboxSuggestions.URL }, null, null, null);
+        try {
+            assertEquals("Matches for " + filter, urls.length, c.getCount());
+            for (String url : urls) {
+                assertTrue(c.moveToNext());
+                assertEquals(url, c.getString(0));
+            }
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Asserts that the query does an indexed search of the table.
+     */
+    private void assertPlanSearches(String table, String sql, String... args) {
+        boolean searched = false;
+        for (String detail : explainQueryPlan(sql, args)) {
+            assertFalse("Full scan: " + detail, isFullScan(table, detail));
+            if (detail.matches("SEARCH (TABLE )?" + table + "\\b.*INDEX.*")) {
+                searched = true;
+            }
+        }
+        assertTrue("No indexed search of " + table + " for " + sql, searched);
+    }
+
+    /**
+     * Asserts that the query never scans the table without an index and
+     * doesn't need a temporary b-tree to sort.
+     */
+    private void assertPlanAvoidsFullScan(String table, String sql, String... args) {
+        for (String detail : explainQueryPlan(sql, args)) {
+            assertFalse("Full scan: " + detail, isFullScan(table, detail));
+            assertFalse("Unindexed sort: " + detail,
+                    detail.startsWith("USE TEMP B-TREE FOR ORDER BY"));
+        }
+    }
+
+    private static boolean isFullScan(String table, String detail) {
+        return detail.matches("SCAN (TABLE )?" + table + "\\b.*")
+                && !detail.contains("INDEX");
+    }
+
+    private String[] explainQueryPlan(String sql, String... args) {
+        SQLiteDatabase db = getProvider().getDatabaseHelper().getReadableDatabase();
+        Cursor c = db.rawQuery("EXPLAIN QUERY PLAN " + sql, args);
+        try {
+            int detailIndex = c.getColumnIndexOrThrow("detail");
+            String[] details = new String[c.getCount()];
+            while (c.moveToNext()) {
+                details[c.getPosition()] = c.getString(detailIndex);
+            }
+            return details;
+        } finally {
+            c.close();
+        }
+    }
+
     public void testIsValidParentNullAccount() {
         doTestIsValidParent(null, null);
     }